@@ -43,6 +43,33 @@ public final class AMOApplication<T extends Application>
         return res;
     }
 
+    /**
+     * Records the result of a command that was executed on the application outside of {@link #execute}.
+     */
+    public AMOResult record(AMOCommand amoCommand, Result result) {
+        AMOResult res = new AMOResult(amoCommand.num(), result);
+        clientMap.put(amoCommand.sender(), res);
+        return res;
+    }
+
+    /**
+     * Returns an application over the given one that remembers the same client results as this one.
+     */
+    public <U extends Application> AMOApplication<U> withApplication(U application) {
+        AMOApplication<U> copy = new AMOApplication<>(application);
+        copy.clientMap.putAll(clientMap);
+        return copy;
+    }
+
+    /**
+     * Remembers the client results of another application too, keeping the later one of a client's two.
+     */
+    public void mergeClients(AMOApplication<?> other) {
+        for (Map.Entry<Address, AMOResult> e : other.clientMap.entrySet()) {
+            clientMap.merge(e.getKey(), e.getValue(), (a, b) -> a.num() >= b.num() ? a : b);
+        }
+    }
+
     public Result executeReadOnly(AMOCommand command) {
         if (!command.readOnly()) {
             throw new IllegalArgumentException();
@@ -3,8 +3,12 @@ package dslabs.kvstore;
 import dslabs.framework.Application;
 import dslabs.framework.Command;
 import dslabs.framework.Result;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.NonNull;
@@ -28,6 +32,13 @@ public class KVStore implements Application {
         String key();
     }
 
+    /**
+     * A command on several keys, such as a transaction, that touches no keys outside of keySet.
+     */
+    public interface MultiKeyCommand extends KVStoreCommand {
+        Set<String> keySet();
+    }
+
     @Data
     public static final class Get implements SingleKeyCommand {
         @NonNull private final String key;
@@ -71,6 +82,81 @@ public class KVStore implements Application {
 
     // Your code here...
 
+    /**
+     * Returns a store holding only the given keys of this one, commands on those keys can execute on it apart from the
+     * rest of the store.
+     */
+    public KVStore partition(Set<String> keys) {
+        KVStore partition = emptyStore();
+        for (String key : keys) {
+            if (store.containsKey(key)) {
+                partition.store.put(key, store.get(key));
+            }
+        }
+        return partition;
+    }
+
+    /**
+     * Copies the given keys back from a partition, removing the ones it no longer holds.
+     */
+    public void merge(KVStore partition, Set<String> keys) {
+        for (String key : keys) {
+            if (partition.store.containsKey(key)) {
+                store.put(key, partition.store.get(key));
+            } else {
+                store.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Splits this store into stores of at most maxKeys keys each, in key order, so that replicas holding the same store
+     * split it the same way. An empty store splits into one empty store.
+     */
+    public List<KVStore> split(int maxKeys) {
+        List<String> keys = new ArrayList<>(store.keySet());
+        Collections.sort(keys);
+        List<KVStore> parts = new ArrayList<>();
+        for (int i = 0; i == 0 || i < keys.size(); i += maxKeys) {
+            KVStore part = emptyStore();
+            for (String key : keys.subList(i, Math.min(i + maxKeys, keys.size()))) {
+                part.store.put(key, store.get(key));
+            }
+            parts.add(part);
+        }
+        return parts;
+    }
+
+    /**
+     * Copies every key of the given store into this one.
+     */
+    public void absorb(KVStore part) {
+        store.putAll(part.store);
+    }
+
+    public int size() {
+        return store.size();
+    }
+
+    public Set<String> keys() {
+        return Collections.unmodifiableSet(store.keySet());
+    }
+
+    /**
+     * Approximate size of the keys and values, counting a char as a byte.
+     */
+    public long bytes() {
+        long bytes = 0;
+        for (Map.Entry<String, String> e : store.entrySet()) {
+            bytes += e.getKey().length() + e.getValue().length();
+        }
+        return bytes;
+    }
+
+    protected KVStore emptyStore() {
+        return new KVStore();
+    }
+
     @Override
     public KVStoreResult execute(Command command) {
         if (command instanceof Get) {
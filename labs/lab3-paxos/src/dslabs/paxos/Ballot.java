@@ -4,13 +4,16 @@ import dslabs.framework.Address;
 import java.io.Serializable;
 import lombok.Data;
 
+/**
+ * Immutable, log entries of a leadership term may share one instance, see {@link PaxosLog#INTERN_BALLOTS}.
+ */
 @Data
 public class Ballot implements Comparable<Ballot>, Serializable {
 
     public static final Ballot INVALID_BALLOT = new Ballot(-1, null);
 
-    private int seqNum;
-    private Address leader;
+    private final int seqNum;
+    private final Address leader;
 
     public Ballot(int seqNum, Address leader) {
         this.seqNum = seqNum;
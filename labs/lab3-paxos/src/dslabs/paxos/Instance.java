@@ -0,0 +1,44 @@
+package dslabs.paxos;
+
+import dslabs.atmostonce.AMOCommand;
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * A command on the fast path along with its ordering attributes, the instances it must execute after (deps) and a
+ * sequence number that orders it among instances that depend on each other.
+ */
+@AllArgsConstructor
+@Data
+public class Instance implements Serializable {
+
+    public enum Status {
+        PRE_ACCEPTED, ACCEPTED, COMMITTED, EXECUTED
+    }
+
+    private InstanceId id;
+    private AMOCommand amoCommand;
+    private int seq;
+    private Set<InstanceId> deps;
+    private Status status;
+
+    public Instance(Instance i) {
+        id = i.id;
+        amoCommand = i.amoCommand;
+        seq = i.seq;
+        deps = new HashSet<>(i.deps);
+        status = i.status;
+    }
+
+    public Instance(Instance i, Status status) {
+        this(i);
+        this.status = status;
+    }
+
+    public boolean committed() {
+        return status == Status.COMMITTED || status == Status.EXECUTED;
+    }
+}
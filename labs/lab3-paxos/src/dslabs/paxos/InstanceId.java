@@ -0,0 +1,19 @@
+package dslabs.paxos;
+
+import dslabs.framework.Address;
+import java.io.Serializable;
+import lombok.Data;
+
+/**
+ * Names a fast path instance, the n'th instance started by a replica.
+ */
+@Data
+public class InstanceId implements Comparable<InstanceId>, Serializable {
+
+    private final Address replica;
+    private final int num;
+
+    public int compareTo(InstanceId i) {
+        return !replica.equals(i.replica) ? replica.compareTo(i.replica) : Integer.compare(num, i.num);
+    }
+}
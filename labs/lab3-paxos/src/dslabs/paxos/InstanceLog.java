@@ -0,0 +1,334 @@
+package dslabs.paxos;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.SetMultimap;
+import dslabs.atmostonce.AMOCommand;
+import dslabs.framework.Address;
+import dslabs.kvstore.KVStore.SingleKeyCommand;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import lombok.Data;
+
+/**
+ * InstanceLog holds the instances of the fast path and finds the order to execute them in.
+ * <p>
+ * Only commands on the same key (see {@link SingleKeyCommand}) interfere, commands without a key interfere with
+ * everything. An instance depends on the latest interfering instance of every replica, the earlier ones are reachable
+ * through it since a replica always knows its own instances. Committed instances execute once everything they reach is
+ * committed, strongly connected components in (seq, id) order.
+ */
+@Data
+public class InstanceLog implements Serializable {
+
+  private final Address[] servers;
+
+  private final Map<InstanceId, Instance> instances;
+  private final Map<AMOCommand, InstanceId> commandToInstance;
+  private final Map<String, Map<Address, Integer>> latest; // key -> replica -> highest instance num
+  private final Map<Address, Integer> latestUnkeyed;
+
+  private final SortedSet<InstanceId> unexecuted; // committed, not executed
+  private final Set<InstanceId> missing; // unknown or uncommitted, holding up execution
+
+  // command leader bookkeeping for its own instances
+  private final SortedSet<InstanceId> uncommitted;
+  private final SetMultimap<InstanceId, Address> replies;
+  private final Set<InstanceId> attributesChanged;
+  private int nextNum;
+
+  private int fastCommits;
+  private int slowCommits;
+
+  public InstanceLog(Address[] servers) {
+    this.servers = servers;
+
+    instances = new HashMap<>();
+    commandToInstance = new HashMap<>();
+    latest = new HashMap<>();
+    latestUnkeyed = new HashMap<>();
+    unexecuted = new TreeSet<>();
+    missing = new HashSet<>();
+    uncommitted = new TreeSet<>();
+    replies = HashMultimap.create();
+    attributesChanged = new HashSet<>();
+  }
+
+  public static String keyOf(AMOCommand amoCommand) {
+    if (amoCommand != null && amoCommand.command() instanceof SingleKeyCommand) {
+      return ((SingleKeyCommand) amoCommand.command()).key();
+    }
+    return null;
+  }
+
+  /**
+   * Starts a new instance on this replica with the attributes it knows of.
+   */
+  public Instance start(Address self, AMOCommand command) {
+    Instance instance = new Instance(new InstanceId(self, nextNum++), command, 0, new HashSet<>(),
+        Instance.Status.PRE_ACCEPTED);
+    addConflicts(instance);
+    record(instance);
+    uncommitted.add(instance.id());
+    return instance;
+  }
+
+  /**
+   * Adds the interfering instances known here to a pre-accepted instance.
+   *
+   * @return this replica's copy of the instance, unchanged if it was already known
+   */
+  public Instance preAccept(Instance instance) {
+    Instance existing = instances.get(instance.id());
+    if (existing != null) {
+      return existing;
+    }
+    Instance preAccepted = new Instance(instance, Instance.Status.PRE_ACCEPTED);
+    addConflicts(preAccepted);
+    record(preAccepted);
+    return preAccepted;
+  }
+
+  /**
+   * Command leader only. Merges another replica's attributes into the instance.
+   *
+   * @return whether the reply was counted
+   */
+  public boolean preAcceptReply(Address voter, InstanceId id, int seq, Set<InstanceId> deps) {
+    Instance instance = instances.get(id);
+    if (instance == null || instance.status() != Instance.Status.PRE_ACCEPTED || !replies.put(id, voter)) {
+      return false;
+    }
+    if (seq != instance.seq() || !deps.equals(instance.deps())) {
+      attributesChanged.add(id);
+      instance.seq(Math.max(seq, instance.seq()));
+      instance.deps().addAll(deps);
+    }
+    return true;
+  }
+
+  /**
+   * Command leader only. A fast quorum agreed with the attributes the leader started with.
+   */
+  public boolean fastQuorum(InstanceId id) {
+    int f = (servers.length - 1) / 2;
+    return !attributesChanged.contains(id) && replies.get(id).size() + 1 >= Math.max(1, f + (f + 1) / 2);
+  }
+
+  public boolean slowQuorum(InstanceId id) {
+    return replies.get(id).size() + 1 > servers.length / 2;
+  }
+
+  /**
+   * Command leader only. Moves a pre-accepted instance to the accept phase with the merged attributes.
+   */
+  public Instance startAccept(InstanceId id) {
+    Instance instance = instances.get(id);
+    instance.status(Instance.Status.ACCEPTED);
+    replies.removeAll(id);
+    attributesChanged.remove(id);
+    return instance;
+  }
+
+  /**
+   * @return false if the instance was already committed here
+   */
+  public boolean accept(Instance instance) {
+    Instance existing = instances.get(instance.id());
+    if (existing != null && existing.committed()) {
+      return false;
+    }
+    record(new Instance(instance, Instance.Status.ACCEPTED));
+    return true;
+  }
+
+  public boolean acceptReply(Address voter, InstanceId id) {
+    Instance instance = instances.get(id);
+    return instance != null && instance.status() == Instance.Status.ACCEPTED && replies.put(id, voter);
+  }
+
+  /**
+   * Command leader only. Commits its own instance with the attributes it holds.
+   */
+  public Instance commitOwn(InstanceId id, boolean fast) {
+    if (fast) {
+      fastCommits++;
+    } else {
+      slowCommits++;
+    }
+    Instance instance = new Instance(instances.get(id), Instance.Status.COMMITTED);
+    commit(instance);
+    return instance;
+  }
+
+  /**
+   * @return false if the instance was already committed here
+   */
+  public boolean commit(Instance instance) {
+    Instance existing = instances.get(instance.id());
+    if (existing != null && existing.committed()) {
+      return false;
+    }
+    record(new Instance(instance, Instance.Status.COMMITTED));
+    unexecuted.add(instance.id());
+    uncommitted.remove(instance.id());
+    replies.removeAll(instance.id());
+    attributesChanged.remove(instance.id());
+    return true;
+  }
+
+  private void addConflicts(Instance instance) {
+    String key = keyOf(instance.amoCommand());
+    List<Map<Address, Integer>> conflicts = new ArrayList<>();
+    conflicts.add(latestUnkeyed);
+    if (key == null) {
+      conflicts.addAll(latest.values());
+    } else if (latest.containsKey(key)) {
+      conflicts.add(latest.get(key));
+    }
+
+    for (Map<Address, Integer> byReplica : conflicts) {
+      for (Map.Entry<Address, Integer> e : byReplica.entrySet()) {
+        InstanceId dep = new InstanceId(e.getKey(), e.getValue());
+        if (!dep.equals(instance.id())) {
+          instance.deps().add(dep);
+          instance.seq(Math.max(instance.seq(), instances.get(dep).seq() + 1));
+        }
+      }
+    }
+  }
+
+  private void record(Instance instance) {
+    instances.put(instance.id(), instance);
+
+    String key = keyOf(instance.amoCommand());
+    Map<Address, Integer> byReplica = key == null ? latestUnkeyed : latest.computeIfAbsent(key, k -> new HashMap<>());
+    byReplica.merge(instance.id().replica(), instance.id().num(), Math::max);
+
+    if (instance.amoCommand() != null) {
+      commandToInstance.putIfAbsent(instance.amoCommand(), instance.id());
+    }
+  }
+
+  /* -------------------------------------------------------------------------
+      Execution
+     -----------------------------------------------------------------------*/
+
+  /**
+   * Marks every committed instance whose dependencies are all committed as executed.
+   *
+   * @return the instances to execute, in order
+   */
+  public List<Instance> takeExecutable() {
+    List<Instance> order = new ArrayList<>();
+    missing.clear();
+
+    Map<InstanceId, Integer> index = new HashMap<>();
+    Map<InstanceId, Integer> low = new HashMap<>();
+    Deque<InstanceId> stack = new ArrayDeque<>();
+    Set<InstanceId> onStack = new HashSet<>();
+    Set<InstanceId> blocked = new HashSet<>();
+    for (InstanceId id : new ArrayList<>(unexecuted)) {
+      if (!index.containsKey(id)) {
+        strongConnect(id, index, low, stack, onStack, blocked, order);
+      }
+    }
+    return order;
+  }
+
+  // Tarjan's algorithm, components come out dependencies first. Kept iterative since dependency chains grow with the
+  // number of unexecuted instances.
+  private void strongConnect(InstanceId root, Map<InstanceId, Integer> index, Map<InstanceId, Integer> low,
+      Deque<InstanceId> stack, Set<InstanceId> onStack, Set<InstanceId> blocked, List<Instance> order) {
+    Deque<Frame> frames = new ArrayDeque<>();
+    frames.push(enter(root, index, low, stack, onStack));
+    while (!frames.isEmpty()) {
+      Frame f = frames.peek();
+      InstanceId v = f.v;
+      if (f.child != null) {
+        low.put(v, Math.min(low.get(v), low.get(f.child)));
+        if (blocked.contains(f.child)) {
+          blocked.add(v);
+        }
+        f.child = null;
+      }
+
+      if (f.deps.hasNext()) {
+        InstanceId w = f.deps.next();
+        Instance dep = instances.get(w);
+        if (dep == null || !dep.committed()) {
+          missing.add(w);
+          blocked.add(v);
+        } else if (dep.status() == Instance.Status.EXECUTED) {
+          continue;
+        } else if (!index.containsKey(w)) {
+          f.child = w;
+          frames.push(enter(w, index, low, stack, onStack));
+          continue;
+        } else if (onStack.contains(w)) {
+          low.put(v, Math.min(low.get(v), index.get(w)));
+        }
+        if (blocked.contains(w)) {
+          blocked.add(v);
+        }
+        continue;
+      }
+      frames.pop();
+
+      if (!low.get(v).equals(index.get(v))) {
+        continue;
+      }
+      List<InstanceId> component = new ArrayList<>();
+      InstanceId w;
+      do {
+        w = stack.pop();
+        onStack.remove(w);
+        component.add(w);
+      } while (!w.equals(v));
+
+      if (component.stream().anyMatch(blocked::contains)) {
+        blocked.addAll(component);
+        continue;
+      }
+      component.sort(Comparator.comparingInt((InstanceId id) -> instances.get(id).seq())
+          .thenComparing(Comparator.naturalOrder()));
+      for (InstanceId id : component) {
+        Instance instance = instances.get(id);
+        instance.status(Instance.Status.EXECUTED);
+        unexecuted.remove(id);
+        order.add(instance);
+      }
+    }
+  }
+
+  private Frame enter(InstanceId v, Map<InstanceId, Integer> index, Map<InstanceId, Integer> low,
+      Deque<InstanceId> stack, Set<InstanceId> onStack) {
+    index.put(v, index.size());
+    low.put(v, index.get(v));
+    stack.push(v);
+    onStack.add(v);
+    return new Frame(v, instances.get(v).deps().iterator());
+  }
+
+  // an instance being visited, with the dependencies left to look at and the one being visited from it
+  private static final class Frame {
+    private final InstanceId v;
+    private final Iterator<InstanceId> deps;
+    private InstanceId child;
+
+    private Frame(InstanceId v, Iterator<InstanceId> deps) {
+      this.v = v;
+      this.deps = deps;
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package dslabs.paxos;
+
+import dslabs.framework.Address;
+import dslabs.framework.Message;
+import lombok.Data;
+
+/**
+ * Asks the leader of a Paxos group to hand off leadership to {@code target}, e.g. before draining the leader's host.
+ */
+@Data
+public final class LeaderTransfer implements Message {
+    private final Address target;
+}
@@ -13,25 +13,43 @@ public class LogEntry implements Serializable {
     private Ballot ballot;
     private AMOCommand amoCommand;
     private PaxosLogSlotStatus status;
+    private PayloadId digest; // set instead of amoCommand while the payload is missing, null for no-ops
+
+    public LogEntry(int slot, Ballot ballot, AMOCommand amoCommand, PaxosLogSlotStatus status) {
+        this(slot, ballot, amoCommand, status, null);
+    }
 
     public LogEntry(LogEntry l) {
-        slot = l.slot;
-        ballot = l.ballot;
-        amoCommand = l.amoCommand;
-        status = l.status;
+        this(l.slot, l.ballot, l.amoCommand, l.status, l.digest);
     }
 
     public LogEntry(LogEntry l, PaxosLogSlotStatus status) {
-        slot = l.slot;
-        ballot = l.ballot;
-        amoCommand = l.amoCommand;
-        this.status = status;
+        this(l.slot, l.ballot, l.amoCommand, status, l.digest);
     }
 
     public LogEntry(LogEntry l, Ballot ballot) {
-        slot = l.slot;
-        this.ballot = ballot;
-        amoCommand = l.amoCommand;
-        status = l.status;
+        this(l.slot, ballot, l.amoCommand, l.status, l.digest);
+    }
+
+    /**
+     * @return the digest of the entry's command, null for no-ops
+     */
+    public PayloadId payloadId() {
+        return amoCommand != null ? PayloadId.of(amoCommand) : digest;
+    }
+
+    public boolean payloadMissing() {
+        return amoCommand == null && digest != null;
+    }
+
+    /**
+     * @return a copy carrying only the digest of the command
+     */
+    public LogEntry withoutPayload() {
+        return amoCommand == null ? this : new LogEntry(slot, ballot, null, status, PayloadId.of(amoCommand));
+    }
+
+    public LogEntry withPayload(AMOCommand amoCommand) {
+        return new LogEntry(slot, ballot, amoCommand, status, null);
     }
 }
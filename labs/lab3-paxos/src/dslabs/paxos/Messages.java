@@ -1,17 +1,31 @@
 package dslabs.paxos;
 
+import dslabs.atmostonce.AMOCommand;
+import dslabs.framework.Address;
 import dslabs.framework.Message;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 
 import java.util.Map;
+import java.util.Set;
 
 @Data
 class Paxos1A implements Message {
     private final Ballot ballot;
+    private final boolean leaderTransfer; // sent by the target of a leader transfer, bypasses leader stickiness
 }
 
 
+@Data
+class PreVote1A implements Message {
+    private final Ballot ballot;
+}
+
+@Data
+class PreVote1B implements Message {
+    private final Ballot ballot;
+}
+
 @Data
 class Paxos1B implements Message {
     private final boolean accepted; // vote granted / rejected
@@ -25,18 +39,77 @@ class Paxos2A implements Message {
     private final Ballot leaderBallot;
 }
 
+/**
+ * A vote for the entry the proposer sent at the given slot and ballot. The ballot is sent as its number and the index of
+ * its leader in the group's servers. The entry is only carried when voting at a newer ballot than the one it was
+ * proposed at.
+ */
 @Data
 class Paxos2B implements Message {
+    private final int slot;
+    private final int ballotNum;
+    private final int ballotLeader;
+    private final boolean payloadHeld; // only votes from servers holding the payload count towards a quorum
     private final LogEntry entry;
 }
 
+@Data
+class Payload implements Message {
+    private final AMOCommand amoCommand;
+}
+
+@Data
+class PayloadRequest implements Message {
+    private final Set<PayloadId> ids;
+}
+
 @Data
 class HeartBeat implements Message {
     private final Ballot leaderBallot;
     private final PaxosLog log;
+    private final int frontier; // multi-leader only, last slot the leader proposes in for this ballot
+    private final Address[] proposers; // multi-leader only, owners of the slots after the frontier
+}
+
+@Data
+class TimeoutNow implements Message {
+    private final Ballot leaderBallot;
+    private final PaxosLog log;
 }
 
 @Data
 class HeartBeatResponse implements Message {
     private final int garbageSlot;
 }
+
+@Data
+class PreAccept implements Message {
+    private final Instance instance;
+}
+
+@Data
+class PreAcceptReply implements Message {
+    private final InstanceId id;
+    private final int seq;
+    private final Set<InstanceId> deps;
+}
+
+@Data
+class Accept implements Message {
+    private final Instance instance;
+}
+
+@Data
+class AcceptReply implements Message {
+    private final InstanceId id;
+}
+
+@Data
+class Commit implements Message {
+    private final Instance instance;
+}
+
+@Data
+class InstanceRequest implements Message {
+    private final InstanceId id;
+}
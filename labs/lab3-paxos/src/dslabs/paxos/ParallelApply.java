@@ -0,0 +1,129 @@
+package dslabs.paxos;
+
+import dslabs.atmostonce.AMOApplication;
+import dslabs.atmostonce.AMOCommand;
+import dslabs.atmostonce.AMOResult;
+import dslabs.framework.Address;
+import dslabs.framework.Application;
+import dslabs.framework.Command;
+import dslabs.framework.Result;
+import dslabs.kvstore.KVStore;
+import dslabs.kvstore.KVStore.MultiKeyCommand;
+import dslabs.kvstore.KVStore.SingleKeyCommand;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Executes a window of chosen commands on a {@link KVStore} with the same outcome as executing them one at a time.
+ * <p>
+ * Commands are grouped so that no two groups share a key, each group runs in slot order on its own partition of the
+ * store on the fork-join pool, then the partitions are merged back and the at-most-once results recorded in slot order
+ * on the calling thread. Windows with a command that has no known key footprint run serially.
+ */
+final class ParallelApply {
+
+  private ParallelApply() {
+  }
+
+  private static final class Group {
+    private final Set<String> keys = new HashSet<>();
+    private final List<Integer> indexes = new ArrayList<>();
+    private KVStore partition;
+    private final List<Result> results = new ArrayList<>();
+  }
+
+  static Set<String> keysOf(Command command) {
+    if (command instanceof SingleKeyCommand) {
+      return Collections.singleton(((SingleKeyCommand) command).key());
+    } else if (command instanceof MultiKeyCommand) {
+      return ((MultiKeyCommand) command).keySet();
+    }
+    return null;
+  }
+
+  /**
+   * @return the result of each command, as {@link AMOApplication#execute} would have returned it
+   */
+  static List<AMOResult> execute(AMOApplication<? extends Application> app, List<AMOCommand> commands,
+      int minWindow) {
+    if (commands.size() < minWindow || !(app.application() instanceof KVStore)) {
+      return executeSerially(app, commands);
+    }
+    KVStore store = (KVStore) app.application();
+
+    // only commands that execute for the first time touch the store, the rest get their result from the AMO layer
+    boolean[] fresh = new boolean[commands.size()];
+    Map<Address, Integer> lastNum = new HashMap<>();
+    List<Group> groups = new ArrayList<>();
+    Map<String, Group> keyToGroup = new HashMap<>();
+    for (int i = 0; i < commands.size(); i++) {
+      AMOCommand c = commands.get(i);
+      Integer last = lastNum.get(c.sender());
+      fresh[i] = !app.alreadyExecuted(c) && (last == null || c.num() > last);
+      if (!fresh[i]) {
+        continue;
+      }
+      lastNum.put(c.sender(), c.num());
+
+      Set<String> keys = keysOf(c.command());
+      if (keys == null) {
+        return executeSerially(app, commands);
+      }
+      Group group = new Group();
+      for (String key : keys) {
+        Group other = keyToGroup.get(key);
+        if (other != null && groups.remove(other)) {
+          group.keys.addAll(other.keys);
+          group.indexes.addAll(other.indexes);
+        }
+      }
+      group.keys.addAll(keys);
+      group.indexes.add(i);
+      for (String key : group.keys) {
+        keyToGroup.put(key, group);
+      }
+      groups.add(group);
+    }
+    if (groups.size() < 2) {
+      return executeSerially(app, commands);
+    }
+
+    // partitions only read the shared store, which nothing writes to until they are all done
+    List<Group> done = groups.parallelStream().map(g -> {
+      Collections.sort(g.indexes);
+      g.partition = store.partition(g.keys);
+      for (int i : g.indexes) {
+        g.results.add(g.partition.execute(commands.get(i).command()));
+      }
+      return g;
+    }).collect(Collectors.toList());
+
+    List<AMOResult> results = new ArrayList<>();
+    Result[] fromGroups = new Result[commands.size()];
+    for (Group g : done) {
+      store.merge(g.partition, g.keys);
+      for (int j = 0; j < g.indexes.size(); j++) {
+        fromGroups[g.indexes.get(j)] = g.results.get(j);
+      }
+    }
+    for (int i = 0; i < commands.size(); i++) {
+      results.add(fresh[i] ? app.record(commands.get(i), fromGroups[i]) : app.execute(commands.get(i)));
+    }
+    return results;
+  }
+
+  static List<AMOResult> executeSerially(AMOApplication<? extends Application> app,
+      List<AMOCommand> commands) {
+    List<AMOResult> results = new ArrayList<>();
+    for (AMOCommand c : commands) {
+      results.add(app.execute(c));
+    }
+    return results;
+  }
+}
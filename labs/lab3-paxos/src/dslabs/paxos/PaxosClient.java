@@ -9,6 +9,9 @@ import dslabs.framework.Node;
 import dslabs.framework.Result;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
 
@@ -18,13 +21,28 @@ public final class PaxosClient extends Node implements Client {
 
     public static boolean PRINT_DEBUG = DebugUtils.PaxosClient_DEBUG;
 
+    /**
+     * Send requests only to the server that answered last, and broadcast to every server only after a timeout.
+     */
+    public static boolean CACHE_LEADER = true;
+
+    /**
+     * Retry after the smoothed round trip to the server plus four deviations, backing off exponentially with jitter,
+     * instead of every {@link ClientTimer#CLIENT_RETRY_MILLIS}. Reads the wall clock, so it is off for the search tests.
+     */
+    public static boolean ADAPTIVE_RETRY = false;
+
     private final Address[] servers;
+    private Address leader; // last server that replied, only the leader (or slot owner) sends replies
 
     private int seqNum;
     private PaxosRequest request;
     private Result result;
     private int resends;
 
+    private final Map<Address, RttEstimator> rtts = new HashMap<>(); // adaptive retry, per server
+    private long sentMillis;
+
     /* -------------------------------------------------------------------------
         Construction and Initialization
        -----------------------------------------------------------------------*/
@@ -48,8 +66,17 @@ public final class PaxosClient extends Node implements Client {
 
         resends = 0;
         debugMsg("client send", Integer.toString(request.cmd().num()));
-        broadcast(request, servers);
-        set(new ClientTimer(request), ClientTimer.CLIENT_RETRY_MILLIS);
+        if (PaxosServer.MULTI_LEADER && leader == null) {
+            // every server proposes, so spread clients over them instead of all going through the leader
+            leader = servers[Math.floorMod(address().hashCode(), servers.length)];
+        }
+        if (CACHE_LEADER && leader != null) {
+            send(new PaxosRequest(request.cmd(), true), leader);
+        } else {
+            broadcast(request, servers);
+        }
+        sentMillis = ADAPTIVE_RETRY ? System.currentTimeMillis() : 0;
+        set(new ClientTimer(request), retryMillis());
     }
 
     @Override
@@ -78,6 +105,11 @@ public final class PaxosClient extends Node implements Client {
         }
         debugSenderMsg(sender,"ack msg", m.result() == null ? "null" : Integer.toString(res.num()));
         if (request.cmd().num() == res.num()) {
+            if (ADAPTIVE_RETRY && resends == 0) {
+                // Karn's rule, a retried request's reply can't tell which send it answers
+                rtts.computeIfAbsent(sender, a -> new RttEstimator()).sample(System.currentTimeMillis() - sentMillis);
+            }
+            leader = sender;
             result = res.result();
             notify();
         }
@@ -94,8 +126,20 @@ public final class PaxosClient extends Node implements Client {
             }
             debugMsg("client resend", Integer.toString(t.request().cmd().num()),  "#" + resends, t.request().toString());
             broadcast(request, servers);
-            set(t, ClientTimer.CLIENT_RETRY_MILLIS);
+            set(t, retryMillis());
+        }
+    }
+
+    private int retryMillis() {
+        if (!ADAPTIVE_RETRY) {
+            return ClientTimer.CLIENT_RETRY_MILLIS;
         }
+        RttEstimator rtt = leader != null ? rtts.get(leader) : null;
+        int timeout = rtt == null ? ClientTimer.CLIENT_RETRY_MILLIS
+                : rtt.timeout(ClientTimer.CLIENT_RETRY_MILLIS, ClientTimer.CLIENT_RETRY_MIN_MILLIS,
+                        ClientTimer.CLIENT_RETRY_MAX_MILLIS);
+        timeout = (int) Math.min(ClientTimer.CLIENT_RETRY_MAX_MILLIS, (long) timeout << Math.min(resends, 6));
+        return timeout + ThreadLocalRandom.current().nextInt(timeout / 4 + 1);
     }
 
     /* -------------------------------------------------------------------------
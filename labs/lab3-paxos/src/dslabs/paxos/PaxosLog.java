@@ -1,12 +1,16 @@
 package dslabs.paxos;
 
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.collect.Multimap;
 import dslabs.atmostonce.AMOCommand;
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import lombok.Data;
 
 /**
@@ -21,8 +25,20 @@ public class PaxosLog implements Serializable {
 
   public static final int LOG_INITIAL = 1;
 
+  /**
+   * Share one Ballot object among the entries of a leadership term, instead of keeping the copy each entry arrived
+   * with. Ballots are immutable, so the instances may be shared between servers. Off by default.
+   */
+  public static boolean INTERN_BALLOTS = false;
+  private static final Interner<Ballot> BALLOTS = Interners.newWeakInterner();
+
   private final Map<Integer, LogEntry> log;
   private final Multimap<AMOCommand, Integer> commandToSlot;
+  private final Multimap<PayloadId, Integer> missingPayloadToSlot; // entries only holding a digest
+
+  // payloads that arrived before any entry referencing them, with the last slot known at arrival
+  private final Map<PayloadId, AMOCommand> payloads;
+  private final Map<PayloadId, Integer> payloadArrival;
 
   private int min_slot;
   private int max_slot;
@@ -32,19 +48,51 @@ public class PaxosLog implements Serializable {
   public PaxosLog() {
     log = new HashMap<>();
     commandToSlot = HashMultimap.create();
+    missingPayloadToSlot = HashMultimap.create();
+    payloads = new HashMap<>();
+    payloadArrival = new HashMap<>();
 
     min_slot = LOG_INITIAL;
     max_slot = LOG_INITIAL - 1;
     min_slot_unexecuted = LOG_INITIAL;
   }
 
+  /**
+   * @return a copy of this log whose entries carry only the digest of their command
+   */
+  public PaxosLog withoutPayloads() {
+    PaxosLog compact = new PaxosLog();
+    for (LogEntry e : log.values()) {
+      LogEntry entry = e.withoutPayload();
+      compact.log.put(entry.slot(), entry);
+      if (entry.payloadMissing()) {
+        compact.missingPayloadToSlot.put(entry.digest(), entry.slot());
+      }
+    }
+    compact.min_slot = min_slot;
+    compact.max_slot = max_slot;
+    compact.min_slot_unexecuted = min_slot_unexecuted;
+    return compact;
+  }
+
   public void updateLog(int slot, LogEntry logEntry) {
     updateLog(slot, logEntry, false);
   }
 
+  /**
+   * Moves past the chosen slots without executing them, for servers that hold no application.
+   */
+  public void skipChosen() {
+    LogEntry l = getLog(min_slot_unexecuted);
+    while (l != null && l.status() == PaxosLogSlotStatus.CHOSEN) {
+      min_slot_unexecuted++;
+      l = getLog(min_slot_unexecuted);
+    }
+  }
+
   public LogEntry getAndIncrementFirstUnexecuted() {
     LogEntry l = getLog(min_slot_unexecuted);
-    if (l == null || l.status() != PaxosLogSlotStatus.CHOSEN) {
+    if (l == null || l.status() != PaxosLogSlotStatus.CHOSEN || l.payloadMissing()) {
       return null;
     }
 
@@ -72,13 +120,38 @@ public class PaxosLog implements Serializable {
       }
     }
 
+    if (INTERN_BALLOTS) {
+      Ballot ballot = BALLOTS.intern(logEntry.ballot());
+      if (ballot != logEntry.ballot()) {
+        logEntry = new LogEntry(logEntry, ballot);
+      }
+    }
+
+    if (logEntry.payloadMissing()) {
+      // fill the payload in from what we already hold
+      AMOCommand payload;
+      if (existingLog != null && existingLog.amoCommand() != null && logEntry.digest().matches(existingLog.amoCommand())) {
+        payload = existingLog.amoCommand();
+      } else {
+        payload = payloads.remove(logEntry.digest());
+        payloadArrival.remove(logEntry.digest());
+      }
+      if (payload != null) {
+        logEntry = logEntry.withPayload(payload);
+      }
+    }
+
     if (existingLog != null && existingLog.amoCommand() != null) {
       // we want to remove the command at the slot actually
       commandToSlot.remove(existingLog.amoCommand(), slot);
+    } else if (existingLog != null && existingLog.payloadMissing()) {
+      missingPayloadToSlot.remove(existingLog.digest(), slot);
     }
 
     if (logEntry.amoCommand() != null) {
       commandToSlot.put(logEntry.amoCommand(), slot);
+    } else if (logEntry.payloadMissing()) {
+      missingPayloadToSlot.put(logEntry.digest(), slot);
     }
     log.put(slot, logEntry);
 
@@ -142,11 +215,17 @@ public class PaxosLog implements Serializable {
         if (INVARIANT_CHECKS) {
           // CHOSEN state check
           if (logEntry.status() == PaxosLogSlotStatus.CHOSEN && e.getValue().status() == PaxosLogSlotStatus.CHOSEN) {
-            assert (logEntry.amoCommand() == null && e.getValue().amoCommand() == null) || logEntry.amoCommand()
-                .equals(e.getValue().amoCommand());
+            assert Objects.equals(logEntry.payloadId(), e.getValue().payloadId());
           }
         }
 
+        if (logEntry.payloadMissing() && e.getValue().amoCommand() != null && logEntry.digest()
+            .matches(e.getValue().amoCommand())) {
+          // same entry, but the other log holds its payload
+          logEntry = logEntry.withPayload(e.getValue().amoCommand());
+          updateLog(e.getKey(), logEntry, true);
+        }
+
         // CHOSEN/ACCEPTED state
         if (logEntry.status() == PaxosLogSlotStatus.ACCEPTED && (
             e.getValue().ballot().compareTo(logEntry.ballot()) > 0
@@ -170,9 +249,20 @@ public class PaxosLog implements Serializable {
       LogEntry removed = log.remove(min_slot);
       if (removed.amoCommand() != null) {
         commandToSlot.remove(removed.amoCommand(), min_slot);
+      } else if (removed.payloadMissing()) {
+        missingPayloadToSlot.remove(removed.digest(), min_slot);
       }
       min_slot++;
     }
+
+    // an unreferenced payload this old most likely belonged to a proposal that lost its slot, it is fetched again if not
+    payloadArrival.entrySet().removeIf(e -> {
+      if (e.getValue() < to) {
+        payloads.remove(e.getKey());
+        return true;
+      }
+      return false;
+    });
   }
   public void fillNoOps(Ballot ballot) {
     for (int i = min_slot; i < max_slot; i++) {
@@ -202,11 +292,61 @@ public class PaxosLog implements Serializable {
    * @return true if null or in log
    */
   public boolean commandExistsInLog(AMOCommand amoCommand) {
-    return commandToSlot.containsKey(amoCommand);
+    return commandToSlot.containsKey(amoCommand) || !missingPayloadToSlot.isEmpty() && missingPayloadToSlot
+        .containsKey(PayloadId.of(amoCommand));
   }
 
   public Collection<Integer> indexesOfCommand(AMOCommand command) {
-    return commandToSlot.get(command);
+    return commandToSlot.containsKey(command) ? commandToSlot.get(command)
+        : missingPayloadToSlot.get(PayloadId.of(command));
+  }
+
+  /**
+   * Fills the payload into the entries holding its digest, or keeps it until such an entry arrives.
+   *
+   * @return the slots that got the payload
+   */
+  public Collection<Integer> addPayload(AMOCommand amoCommand) {
+    PayloadId id = PayloadId.of(amoCommand);
+    if (!missingPayloadToSlot.containsKey(id)) {
+      payloads.put(id, amoCommand);
+      payloadArrival.put(id, max_slot);
+      return Collections.emptySet();
+    }
+    Collection<Integer> slots = missingPayloadToSlot.removeAll(id);
+    for (int slot : slots) {
+      log.put(slot, log.get(slot).withPayload(amoCommand));
+      commandToSlot.put(amoCommand, slot);
+    }
+    return slots;
+  }
+
+  /**
+   * @return the payload with the given digest, or null if this log doesn't hold it
+   */
+  public AMOCommand getPayload(PayloadId id) {
+    if (payloads.containsKey(id)) {
+      return payloads.get(id);
+    }
+    for (AMOCommand amoCommand : commandToSlot.keySet()) {
+      if (id.matches(amoCommand)) {
+        return amoCommand;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the lowest unexecuted slot holding each digest whose payload is missing
+   */
+  public Map<PayloadId, Integer> missingPayloads() {
+    Map<PayloadId, Integer> missing = new HashMap<>();
+    for (Map.Entry<PayloadId, Integer> e : missingPayloadToSlot.entries()) {
+      if (e.getValue() >= min_slot_unexecuted) {
+        missing.merge(e.getKey(), e.getValue(), Math::min);
+      }
+    }
+    return missing;
   }
 
     /* -------------------------------------------------------------------------
@@ -3,9 +3,16 @@ package dslabs.paxos;
 import dslabs.atmostonce.AMOCommand;
 import dslabs.framework.Command;
 import dslabs.framework.Message;
+import lombok.AllArgsConstructor;
 import lombok.Data;
 
 @Data
+@AllArgsConstructor
 public final class PaxosRequest implements Message {
     private final AMOCommand cmd;
+    private final boolean forward; // non-leaders relay the request to the leader they know of
+
+    public PaxosRequest(AMOCommand cmd) {
+        this(cmd, false);
+    }
 }
@@ -10,6 +10,7 @@ import lombok.ToString;
 
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 
 @ToString(callSuper = true)
 @EqualsAndHashCode(callSuper = true)
@@ -21,20 +22,81 @@ public class PaxosServer extends Node {
 
   public static boolean PRINT_DEBUG = DebugUtils.PaxosServer_DEBUG;
 
+  /**
+   * Followers run a pre-vote before bumping their ballot, and replicas that recently heard from the leader ignore
+   * pre-votes and 1As. Off by default since the extra round trip pushes leader changes past the search test depths.
+   */
+  public static boolean PRE_VOTE = false;
+
+  /**
+   * Mencius-style multi-leader mode. After each election the slots past the leader's log are dealt round-robin to the
+   * proposers of that ballot, every proposer puts client commands in its own slots and skips (no-ops) its unused slots
+   * below any slot it sees proposed. The leader revokes a proposer that stalls execution by running a new election
+   * without it.
+   */
+  public static boolean MULTI_LEADER = false;
+
+  /**
+   * Multi-leader, heartbeats in a row a revoked proposer has to answer before the leader gives it slots again. The
+   * wait doubles each time the same proposer is revoked again under one leader, up to 2^MAX_REJOIN_DOUBLINGS times, so
+   * a proposer that keeps stalling doesn't cost an election every few ticks.
+   */
+  public static final int PROPOSER_REJOIN_TICKS = 8;
+  public static final int MAX_REJOIN_DOUBLINGS = 4;
+
+  /**
+   * Experimental, EPaxos-style fast path. Any replica orders a command against the interfering ones it and the other
+   * replicas know of, and commits in one round trip when a fast quorum agrees, otherwise after an accept round. The
+   * Paxos log is only used for read-only commands. There is no recovery of a failed command leader's instances, so a
+   * replica failure can block later commands on the same keys, and executed instances are never collected. Clients
+   * aren't spread over the replicas for it, and only benchmarks turn it on.
+   */
+  public static boolean FAST_PATH = false;
+
+  /**
+   * Payloads are sent to the other replicas once when proposed, Paxos messages, heartbeats and retransmissions carry
+   * only a {@link PayloadId} per slot. Replicas vote on digests and fetch missing payloads before executing.
+   */
+  public static boolean SEPARATE_PAYLOADS = false;
+
+  /**
+   * Followers time out the leader after the mean plus four deviations of the gaps between its heartbeats, with jitter,
+   * instead of after {@link #REPLICA_FOLLOWER_WAIT} ticks. Reads the wall clock, so it is off for the search tests.
+   */
+  public static boolean ADAPTIVE_TIMEOUTS = false;
+
+  /**
+   * Windows of at least {@link #PARALLEL_APPLY_WINDOW} chosen commands are applied with {@link ParallelApply}, smaller
+   * ones one at a time. Off by default, the partition and merge only pay off with many commands per window.
+   */
+  public static boolean PARALLEL_APPLY = false;
+  public static int PARALLEL_APPLY_WINDOW = 16;
+
   public static final int REPLICA_LEADER_WAIT = 1;
   public static final int REPLICA_ELECTING_LEADER_WAIT = 1;
   public static final int REPLICA_FOLLOWER_WAIT = 4;
+  public static final int REPLICA_LEADER_LEASE = 2;
   public static final int INITIAL_BALLOT_NUMBER = -1;
+  public static final int TICK_MILLIS = HeartBeatTimer.SERVER_TICK_MILLIS;
 
   /**
    * All servers in the Paxos group, including this one.
    */
   private final Address[] servers;
+  /**
+   * Members that vote in elections and on log entries but hold no application state, and payloads only while a full
+   * replica is unresponsive. They never lead.
+   */
+  private final Address[] witnesses;
+  private boolean payloadsToWitnesses; // leader, a full replica missed the last heartbeat
   private Address parentAddress; //LAB 4
+  private final boolean relayed; // the parent ticks this server and carries its heartbeats, see fireTick()
+  private final List<RelayedMessage> outbox = new ArrayList<>();
 
   private final AMOApplication<Application> app;
   private final VoteTracker voteTracker;
   private final PaxosLog log;
+  private final InstanceLog instanceLog;
 
   private ServerState serverState;
   private HashMap<Address, Integer> minUnexecutedVals;
@@ -42,28 +104,74 @@ public class PaxosServer extends Node {
   private Ballot leaderBallot;
   private int tick = 0;
 
+  private Set<Address> preVotes;
+  private Ballot preVoteBallot;
+  private int ticksSinceLeaderContact = REPLICA_FOLLOWER_WAIT;
+
+  private Address transferTarget; // set on the leader while it hands off leadership
+  private int transferTicks;
+  private boolean leaderTransfer; // set on the target while it runs the election
+
+  private int proposalFrontier = -1; // multi-leader, slots up to here belong to the leader, -1 until known
+  private Address[] proposers; // multi-leader, owners of the slots after the frontier for this ballot
+  private Map<Address, Integer> revokedProposers; // multi-leader, left out by the leader -> heartbeats still to answer
+  private Map<Address, Integer> revocations; // multi-leader, times the leader revoked each proposer
+  private int stalledSlot;
+  private int stalledTicks;
+
+  private final Map<Address, RttEstimator> heartBeatGaps = new HashMap<>(); // adaptive timeouts, per leader
+  private final Map<Address, Long> lastHeartBeatMillis = new HashMap<>();
+  private int leaderContacts; // adaptive timeouts, election timers set before the last contact are stale
+
+  // Read-only commands the application had no result for yet, answered once an executed command gives them one. The
+  // ShardMaster's config watches long poll this way, a client's next one replaces its last.
+  private final Map<Address, AMOCommand> waitingReads = new HashMap<>();
+
   /* -------------------------------------------------------------------------
       Construction and Initialization
      -----------------------------------------------------------------------*/
   public PaxosServer(Address address, Address[] servers, Application app) {
+    this(address, servers, new Address[0], app);
+  }
+
+  /**
+   * @param witnesses the members of servers that are witnesses, app is ignored if this server is one of them
+   */
+  public PaxosServer(Address address, Address[] servers, Address[] witnesses, Application app) {
     super(address);
     this.servers = servers;
+    this.witnesses = witnesses;
 
-    this.app = new AMOApplication<>(app);
+    this.app = Arrays.asList(witnesses).contains(address) ? null : new AMOApplication<>(app);
+    relayed = false;
     log = new PaxosLog();
     voteTracker = new VoteTracker(servers, log);
+    instanceLog = new InstanceLog(servers);
 
     serverState = ServerState.ELECTING_LEADER;
     votes = new HashSet<>();
+    preVotes = new HashSet<>();
+    revokedProposers = new HashMap<>();
+    revocations = new HashMap<>();
     leaderBallot = new Ballot(INITIAL_BALLOT_NUMBER, servers[0]);
 
     minUnexecutedVals = new HashMap<>();
   }
 
   public PaxosServer(Address address, Address[] servers, Address parentAddress) {
+    this(address, servers, parentAddress, false);
+  }
+
+  /**
+   * @param relayed whether the parent drives {@link #fireTick()} and relays heartbeats through {@link #takeRelayed()},
+   *                so that many groups on one node share one timer and one heartbeat message per peer
+   */
+  public PaxosServer(Address address, Address[] servers, Address parentAddress, boolean relayed) {
     super(address); // 'address' is the address of this node
     this.servers = servers;
     this.parentAddress = parentAddress;
+    this.relayed = relayed;
+    witnesses = new Address[0];
     // 'parentAddress' is the address of the 'parent' ShardStoreServer
     // Again, just call handleMessage(decision, this.parentAddress);
     // Note: There is no app.
@@ -71,9 +179,13 @@ public class PaxosServer extends Node {
 
     log = new PaxosLog();
     voteTracker = new VoteTracker(servers, log);
+    instanceLog = new InstanceLog(servers);
 
     serverState = ServerState.ELECTING_LEADER;
     votes = new HashSet<>();
+    preVotes = new HashSet<>();
+    revokedProposers = new HashMap<>();
+    revocations = new HashMap<>();
     leaderBallot = new Ballot(INITIAL_BALLOT_NUMBER, servers[0]);
 
     minUnexecutedVals = new HashMap<>();
@@ -82,8 +194,14 @@ public class PaxosServer extends Node {
 
   @Override
   public void init() {
-    startLeaderElection();
-    set(new HeartBeatTimer(), HeartBeatTimer.SERVER_TICK_MILLIS);
+    if (isWitness()) {
+      setServerState(ServerState.FOLLOWER);
+    } else {
+      startLeaderElection();
+    }
+    if (!relayed) {
+      set(new HeartBeatTimer(), HeartBeatTimer.SERVER_TICK_MILLIS);
+    }
   }
 
     /* -------------------------------------------------------------------------
@@ -100,6 +218,10 @@ public class PaxosServer extends Node {
    * previously accepted or chosen command for this slot. If this server has both accepted and chosen a command for this
    * slot, it should return {@link PaxosLogSlotStatus#CHOSEN}.
    * <p>
+   * With {@link #SEPARATE_PAYLOADS}, a slot this server only holds the digest of is {@link PaxosLogSlotStatus#EMPTY}
+   * until the payload arrives, it doesn't know the command yet. Only votes of servers holding the payload count
+   * towards a majority.
+   * <p>
    * Log slots are numbered starting with 1.
    *
    * @param logSlotNum the index of the log slot
@@ -107,6 +229,9 @@ public class PaxosServer extends Node {
    * @see PaxosLogSlotStatus
    */
   public PaxosLogSlotStatus status(int logSlotNum) {
+    if (log.contains(logSlotNum) && log.getLog(logSlotNum).payloadMissing()) {
+      return PaxosLogSlotStatus.EMPTY;
+    }
     return log.getLogStatus(logSlotNum);
   }
 
@@ -153,45 +278,241 @@ public class PaxosServer extends Node {
    * @see PaxosLogSlotStatus
    */
   public int lastNonEmpty() {
-    return log.getLastNonEmpty();
+    int slot = log.getLastNonEmpty();
+    // slots only holding a digest count as empty, see status()
+    while (slot >= log.getFirstNonCleared() && status(slot) == PaxosLogSlotStatus.EMPTY) {
+      slot--;
+    }
+    return Math.max(slot, 0);
   }
 
   /* -------------------------------------------------------------------------
       Message Handlers
      -----------------------------------------------------------------------*/
   private void handlePaxosRequest(PaxosRequest m, Address sender) {
-    if (!isLeader() ) {
+    if (isWitness()) {
+      return;
+    }
+    if (FAST_PATH && !m.cmd().readOnly()) {
+      proposeInstance(m.cmd());
+      return;
+    }
+    if (m.forward() && isFollower() && !isProposer()) {
+      debugSenderMsg(sender, "forwarding paxos req num", Integer.toString(m.cmd().num()), "to",
+          leaderBallot.leader().toString());
+      send(new PaxosRequest(m.cmd()), leaderBallot.leader());
+      return;
+    }
+    if (!isLeader() && !isProposer() || transferTarget != null) {
       //if(parentAddress != null) System.out.println("ignored msg server state "+ serverState.toString()+ " "+ m.toString());
       return;
     }
     debugSenderMsg(sender, "ack paxos req num", Integer.toString(m.cmd().num()), m.toString());
     if(m.cmd().readOnly()){
-      send(new PaxosReply(app.executeReadOnly(m.cmd())), sender);
+      if (!isLeader()) {
+        return;
+      }
+      // the request may have been forwarded by a follower, answer the client
+      Result result = app.executeReadOnly(m.cmd());
+      if (result == null) {
+        waitingReads.put(m.cmd().sender(), m.cmd());
+        return;
+      }
+      waitingReads.remove(m.cmd().sender());
+      send(new PaxosReply(result), m.cmd().sender());
       return;
     }
 
     if (parentAddress == null && app.alreadyExecuted(m.cmd())) {
       if (app.execute(m.cmd()) != null) {
-        send(new PaxosReply(app.execute(m.cmd())), sender);
+        send(new PaxosReply(app.execute(m.cmd())), m.cmd().sender());
       }
     } else if (log.commandExistsInLog(m.cmd())) {
-      send2A(log.getLog(log.indexesOfCommand(m.cmd()).iterator().next()));
+      int slot = log.indexesOfCommand(m.cmd()).iterator().next();
+      if (log.getLog(slot).payloadMissing()) {
+        // the retry brings the payload we never got
+        log.addPayload(m.cmd());
+      }
+      if (address().equals(proposerOf(slot))) {
+        send2A(log.getLog(slot));
+      }
     } else {
 
-      LogEntry logEntry = voteTracker.createLogEntry(getBallot(), m.cmd());
+      LogEntry logEntry;
+      if (MULTI_LEADER) {
+        logEntry = voteTracker.createLogEntry(getBallot(), m.cmd(), nextOwnSlot());
+        skipOwnSlots(logEntry.slot());
+      } else {
+        logEntry = voteTracker.createLogEntry(getBallot(), m.cmd());
+      }
 
       debugSenderMsg(sender, "new log entry @ ", Integer.toString(logEntry.slot()));
 
       voteTracker.addLogEntry(logEntry);
+      if (SEPARATE_PAYLOADS) {
+        for (Address a : servers) {
+          if (!a.equals(address()) && (payloadsToWitnesses || !isWitness(a))) {
+            send(new Payload(m.cmd()), a);
+          }
+        }
+      }
       send2A(logEntry);
     }
   }
 
+  private void handlePayload(Payload m, Address sender) {
+    for (int slot : log.addPayload(m.amoCommand())) {
+      // our vote only counts once we hold the payload; an entry from an earlier ballot is voted on when the current
+      // leader proposes it again, its log may not even have the slot yet
+      if (log.getLogStatus(slot) == PaxosLogSlotStatus.ACCEPTED && !isElectingLeader()
+          && log.getLog(slot).ballot().equals(getBallot())) {
+        send2B(log.getLog(slot), proposerOf(slot));
+      }
+    }
+    executeLog();
+  }
+
+  private void handlePayloadRequest(PayloadRequest m, Address sender) {
+    for (PayloadId id : m.ids()) {
+      AMOCommand payload = log.getPayload(id);
+      if (payload != null) {
+        send(new Payload(payload), sender);
+      }
+    }
+  }
+
+  // fast path
+  private void proposeInstance(AMOCommand cmd) {
+    if (parentAddress == null && app.alreadyExecuted(cmd)) {
+      if (app.execute(cmd) != null) {
+        send(new PaxosReply(app.execute(cmd)), cmd.sender());
+      }
+      return;
+    }
+    InstanceId id = instanceLog.commandToInstance().get(cmd);
+    if (id != null) {
+      // the command leader retransmits on its own, but a client retry means someone may have missed the commit
+      Instance instance = instanceLog.instances().get(id);
+      if (instance.committed()) {
+        sendOthers(new Commit(new Instance(instance, Instance.Status.COMMITTED)));
+      }
+      return;
+    }
+
+    Instance instance = instanceLog.start(address(), cmd);
+    debugMsg("new instance", instance.id().toString(), "seq", Integer.toString(instance.seq()));
+    sendOthers(new PreAccept(new Instance(instance)));
+    checkPreAccepted(instance.id(), false);
+  }
+
+  private void handlePreAccept(PreAccept m, Address sender) {
+    Instance instance = instanceLog.preAccept(m.instance());
+    if (instance.committed()) {
+      send(new Commit(new Instance(instance, Instance.Status.COMMITTED)), sender);
+    } else {
+      send(new PreAcceptReply(instance.id(), instance.seq(), new HashSet<>(instance.deps())), sender);
+    }
+  }
+
+  private void handlePreAcceptReply(PreAcceptReply m, Address sender) {
+    if (instanceLog.preAcceptReply(sender, m.id(), m.seq(), m.deps())) {
+      checkPreAccepted(m.id(), false);
+    }
+  }
+
+  private void handleAccept(Accept m, Address sender) {
+    if (instanceLog.accept(m.instance())) {
+      send(new AcceptReply(m.instance().id()), sender);
+    } else {
+      send(new Commit(new Instance(instanceLog.instances().get(m.instance().id()), Instance.Status.COMMITTED)),
+          sender);
+    }
+  }
+
+  private void handleAcceptReply(AcceptReply m, Address sender) {
+    if (instanceLog.acceptReply(sender, m.id()) && instanceLog.slowQuorum(m.id())) {
+      commitInstance(m.id(), false);
+    }
+  }
+
+  private void handleCommit(Commit m, Address sender) {
+    if (instanceLog.commit(m.instance())) {
+      executeInstances();
+    }
+  }
+
+  private void handleInstanceRequest(InstanceRequest m, Address sender) {
+    Instance instance = instanceLog.instances().get(m.id());
+    if (instance != null && instance.committed()) {
+      send(new Commit(new Instance(instance, Instance.Status.COMMITTED)), sender);
+    }
+  }
+
+  private void handleLeaderTransfer(LeaderTransfer m, Address sender) {
+    if (!isLeader()) {
+      if (isFollower() && !isLeader(sender)) {
+        send(m, leaderBallot.leader());
+      }
+      return;
+    }
+    if (m.target().equals(address()) || !Arrays.asList(servers).contains(m.target()) || isWitness(m.target())) {
+      return;
+    }
+    debugSenderMsg(sender, "transferring leadership to", m.target().toString());
+
+    // stop proposing, then hand the target our log so its phase 1 doesn't have to wait on a timeout
+    transferTarget = m.target();
+    transferTicks = REPLICA_FOLLOWER_WAIT;
+    sendServer(new TimeoutNow(leaderBallot, outgoingLog()), transferTarget);
+  }
+
+  private void handleTimeoutNow(TimeoutNow m, Address sender) {
+    if (!isFollower() || !m.leaderBallot().equals(leaderBallot) || !isLeader(sender)) {
+      return;
+    }
+    debugSenderMsg(sender, "timeout now, ballot", m.leaderBallot().toString());
+    log.fastForwardLog(m.log());
+    executeLog();
+
+    clearPreVote();
+    leaderTransfer = true;
+    setServerState(ServerState.ELECTING_LEADER);
+    startLeaderElection();
+  }
+
+  // pre-vote, a candidate only bumps its ballot once a majority has lost contact with the leader
+  private void handlePreVote1A(PreVote1A m, Address sender) {
+    if (m.ballot().compareTo(leaderBallot) <= 0 || hasRecentLeaderContact()) {
+      debugSenderMsg(sender, "reject pre-vote, ballot", m.ballot().toString());
+      return;
+    }
+    debugSenderMsg(sender, "grant pre-vote, ballot", m.ballot().toString());
+    sendServer(new PreVote1B(m.ballot()), sender);
+  }
+
+  private void handlePreVote1B(PreVote1B m, Address sender) {
+    if (!isFollower() || !m.ballot().equals(preVoteBallot)) {
+      return;
+    }
+    preVotes.add(sender);
+    debugSenderMsg(sender, "recv pre-vote", m.ballot().toString(), "pre-votes", preVotes.toString());
+
+    if (preVotes.size() > servers.length / 2) {
+      clearPreVote();
+      setServerState(ServerState.ELECTING_LEADER);
+      startLeaderElection();
+    }
+  }
+
   // leader election
   private void handlePaxos1A(Paxos1A m, Address sender) {
     debugSenderMsg(sender, "recv 1a, ballot", m.ballot().toString());
 
-    if (m.ballot().compareTo(leaderBallot) > 0) {
+    if (PRE_VOTE && !m.leaderTransfer() && !isLeader(m.ballot().leader()) && m.ballot().compareTo(leaderBallot) > 0
+        && hasRecentLeaderContact()) {
+      // leader stickiness, don't let a replica that lost contact depose a live leader
+      debugSenderMsg(sender, "ignore 1a, leader alive, ballot", m.ballot().toString());
+    } else if (m.ballot().compareTo(leaderBallot) > 0) {
       //might have to save ballot, but I think it's fine
       debugSenderMsg(sender, "acc 1a -> follower, ballot", m.ballot().toString());
       setLeader(m.ballot());
@@ -217,9 +538,13 @@ public class PaxosServer extends Node {
           if (voteLeaderElection(sender, m.ballot())) {
             setLeader(leaderBallot);
             log.fillNoOps(leaderBallot);
+            if (MULTI_LEADER) {
+              setProposers(log.getLastNonEmpty(), Arrays.stream(servers)
+                  .filter(a -> !revokedProposers.containsKey(a) && !isWitness(a)).toArray(Address[]::new));
+            }
             executeLog();
             rebroadcastAcceptedLogEntries(log);
-            sendHeartBeat();
+            sendHeartBeat(true);
           }
           debugSenderMsg(sender, "recv ballot post", m.ballot().toString(), "votes", votes.toString());
         }
@@ -255,15 +580,16 @@ public class PaxosServer extends Node {
       return;
     }
 //    debugSenderMsg(sender, "recv 2a slot", Integer.toString(m.entry().slot()));
-    if (!isLeader(sender) || log.getLogStatus(m.entry().slot()) == PaxosLogSlotStatus.CLEARED) {
+    if (!sender.equals(proposerOf(m.entry().slot())) && !isLeader(sender)
+        || log.getLogStatus(m.entry().slot()) == PaxosLogSlotStatus.CLEARED) {
 //      debugMsg("reject sender is not leader", Integer.toString(m.entry().slot()));
       return;
     }
 
-    if (isLeader()) {
+    if (sender.equals(address())) {
 //      debugMsg("leader self-voted 2a slot", Integer.toString(m.entry().slot()));
-      voteTracker.vote(address(), m.entry());
-      send2B(m.entry());
+      voteTracker.vote(address(), m.entry(), holdsPayload(m.entry()));
+      send2B(m.entry(), sender);
       return;
     }
 
@@ -276,8 +602,16 @@ public class PaxosServer extends Node {
       log.updateLog(m.entry().slot(), m.entry());
     }
 
+    if (MULTI_LEADER && m.entry().status() == PaxosLogSlotStatus.CHOSEN) {
+      // another proposer telling us its slot was chosen
+      executeLog();
+      return;
+    }
 //    debugSenderMsg(sender, "voted 2a slot", Integer.toString(m.entry().slot()));
-    send2B(m.entry());
+    send2B(m.entry(), sender);
+    if (MULTI_LEADER) {
+      skipOwnSlots(m.entry().slot());
+    }
   }
 
   /**
@@ -291,32 +625,65 @@ public class PaxosServer extends Node {
     if (isElectingLeader()) {
       return;
     }
-    debugSenderMsg(sender, "ack 2b", "for entry", m.entry().toString());
-    if (!isLeader() || log.getLogStatus(m.entry().slot()) == PaxosLogSlotStatus.CLEARED) {
+    debugSenderMsg(sender, "ack 2b", "for slot", Integer.toString(m.slot()), "ballot", Integer.toString(m.ballotNum()));
+    if (!isLeader() && !address().equals(proposerOf(m.slot()))
+        || log.getLogStatus(m.slot()) == PaxosLogSlotStatus.CLEARED) {
 //      debugSenderMsg(sender, "ignored b/c not leader");
       return;
     }
 
-    if (!voteTracker.vote(sender, m.entry())) {
-//      debugMsg("ignored vote", m.entry().toString());
+    LogEntry entry = m.entry();
+    if (entry == null) {
+      entry = log.getLog(m.slot());
+      if (entry == null || entry.ballot().seqNum() != m.ballotNum() || m.ballotLeader() < 0
+          || !servers[m.ballotLeader()].equals(entry.ballot().leader())) {
+        // a vote for a proposal we don't hold
+        return;
+      }
+    }
+    if (!voteTracker.vote(sender, entry, m.payloadHeld())) {
+//      debugMsg("ignored vote", entry.toString());
+    } else if (MULTI_LEADER && log.getLogStatus(m.slot()) == PaxosLogSlotStatus.CHOSEN) {
+      broadcastChosen(log.getLog(m.slot()));
     }
     executeLog();
 //    debugMsg("2b execution state: ", log.getLog(log.indexOfCommand(m.entry().amoCommand())).toString());
   }
 
   private void handleHeartBeat(HeartBeat tick, Address sender) {
-    if (sender.equals(this.address()) || tick.leaderBallot().compareTo(leaderBallot) < 0) {
+    if (sender.equals(this.address())) {
+      return;
+    }
+    if (tick.leaderBallot().compareTo(leaderBallot) < 0) {
+      if (PRE_VOTE) {
+        // sticky replicas ignore our 1A, so tell the stale leader to step down. Only the ballot is needed.
+        debugSenderMsg(sender, "stale heartbeat, ballot", tick.leaderBallot().toString());
+        sendServer(new Paxos1B(false, leaderBallot, null), sender);
+      }
       return;
     }
     if (tick.leaderBallot().compareTo(leaderBallot) > 0) {
       setLeader(tick.leaderBallot());
     }
     if (tick.leaderBallot().compareTo(leaderBallot) == 0) {
+      if (PRE_VOTE) {
+        ticksSinceLeaderContact = 0;
+        clearPreVote();
+      }
+      if (ADAPTIVE_TIMEOUTS) {
+        sampleHeartBeat(sender);
+      }
       resetTimers();
       debugSenderMsg(sender, "heartbeat ack", tick.leaderBallot().toString());
       log.fastForwardLog(tick.log());
+      if (MULTI_LEADER && proposers == null) {
+        setProposers(tick.frontier(), tick.proposers());
+      }
       executeLog();
       rebroadcastAcceptedLogEntries(tick.log());
+      if (MULTI_LEADER) {
+        skipOwnSlots(log.getLastNonEmpty());
+      }
 
 
       if (log.min_slot() < tick.log().min_slot()) {
@@ -327,6 +694,14 @@ public class PaxosServer extends Node {
     }
   }
 
+  private void handleRelayedMessage(RelayedMessage m, Address sender) {
+    if (m.message() instanceof HeartBeat) {
+      handleHeartBeat((HeartBeat) m.message(), m.from());
+    } else if (m.message() instanceof HeartBeatResponse) {
+      handleHeartBeatResponse((HeartBeatResponse) m.message(), m.from());
+    }
+  }
+
   private void handleHeartBeatResponse(HeartBeatResponse tick, Address sender) {
     if (isFollower()) {
       return;
@@ -340,26 +715,80 @@ public class PaxosServer extends Node {
      -----------------------------------------------------------------------*/
 
   private void onHeartBeatTimer(HeartBeatTimer ht) {
+    fireTick();
+    set(ht, HeartBeatTimer.SERVER_TICK_MILLIS);
+  }
+
+  /**
+   * Runs one heartbeat tick, every {@link #TICK_MILLIS}. Only for the parent of a relayed server, others tick on their
+   * own timer.
+   */
+  public void fireTick() {
+    if (FAST_PATH) {
+      retransmitInstances();
+    }
+    if ((SEPARATE_PAYLOADS || witnesses.length > 0) && !isWitness()) {
+      requestMissingPayloads();
+    }
+    if (PRE_VOTE) {
+      ticksSinceLeaderContact = Math.min(ticksSinceLeaderContact + 1, REPLICA_FOLLOWER_WAIT);
+    }
     tick--;
     if (tick > 0) {
-      set(ht, HeartBeatTimer.SERVER_TICK_MILLIS);
       return;
     } else if (isLeader()) {
       fireLeader();
     } else if (isFollower()) {
-      fireFollower();
+      if (!ADAPTIVE_TIMEOUTS) {
+        fireFollower();
+      }
     } else if (isElectingLeader()) {
       fireElectingLeader();
     }
     resetTimers();
-    set(ht, HeartBeatTimer.SERVER_TICK_MILLIS);
+  }
+
+  /**
+   * @return the messages a relayed server queued for its peers since the last call
+   */
+  public List<RelayedMessage> takeRelayed() {
+    List<RelayedMessage> messages = new ArrayList<>(outbox);
+    outbox.clear();
+    return messages;
+  }
+
+  private void onElectionTimer(ElectionTimer t) {
+    if (!ADAPTIVE_TIMEOUTS || !isFollower() || isWitness() || t.leaderContacts() != leaderContacts) {
+      return;
+    }
+    debugMsg("election timeout, leader", leaderBallot.leader().toString());
+    fireFollower();
+    if (isFollower()) {
+      // pre-vote didn't get through yet, retry like an electing leader would
+      set(t, REPLICA_ELECTING_LEADER_WAIT * HeartBeatTimer.SERVER_TICK_MILLIS);
+    }
   }
 
   private void fireLeader() {
+    if (transferTarget != null && --transferTicks <= 0) {
+      // the target never took over, resume proposing
+      debugMsg("leader transfer to", transferTarget.toString(), "timed out");
+      transferTarget = null;
+    }
+    if (MULTI_LEADER && revokeProposers()) {
+      return;
+    }
     sendHeartBeat();
   }
 
   private void fireFollower() {
+    if (isWitness()) {
+      return;
+    }
+    if (PRE_VOTE) {
+      startPreVote();
+      return;
+    }
     setServerState(ServerState.ELECTING_LEADER);
     startLeaderElection();
   }
@@ -368,6 +797,27 @@ public class PaxosServer extends Node {
     send1A(leaderBallot);
   }
 
+  private void sampleHeartBeat(Address leader) {
+    long now = System.currentTimeMillis();
+    Long last = lastHeartBeatMillis.put(leader, now);
+    if (last != null && now - last <= 2 * ElectionTimer.MAX_MILLIS) {
+      // longer gaps span a change of leader, not a late heartbeat
+      heartBeatGaps.computeIfAbsent(leader, a -> new RttEstimator()).sample(now - last);
+    }
+    setElectionTimer(leader);
+  }
+
+  private void setElectionTimer(Address leader) {
+    RttEstimator gaps = heartBeatGaps.get(leader);
+    int timeout = REPLICA_FOLLOWER_WAIT * HeartBeatTimer.SERVER_TICK_MILLIS;
+    if (gaps != null) {
+      timeout = gaps.timeout(timeout, ElectionTimer.MIN_MILLIS, ElectionTimer.MAX_MILLIS);
+    }
+    // jitter so that followers don't all start an election at once
+    timeout += ThreadLocalRandom.current().nextInt(HeartBeatTimer.SERVER_TICK_MILLIS / 2 + 1);
+    set(new ElectionTimer(++leaderContacts), timeout);
+  }
+
   private void resetTimers() {
     debugMsg("reset timers for ", serverState.toString());
     switch (serverState) {
@@ -379,7 +829,7 @@ public class PaxosServer extends Node {
         break;
       case FOLLOWER:
       default:
-        tick = REPLICA_FOLLOWER_WAIT;
+        tick = preVoteBallot != null ? REPLICA_ELECTING_LEADER_WAIT : REPLICA_FOLLOWER_WAIT;
     }
   }
 
@@ -389,22 +839,149 @@ public class PaxosServer extends Node {
 
   private void executeLog() {
     debugMsg("executing log");
+    if (isWitness()) {
+      log.skipChosen();
+      return;
+    }
+    List<LogEntry> window = new ArrayList<>();
     LogEntry cur = log.getAndIncrementFirstUnexecuted();
     while (cur != null) {
       if (cur.amoCommand() != null) {
         if(parentAddress == null) {
-          debugMsg("\texecuting log for slot", Integer.toString(cur.slot()));
-          PaxosReply reply = new PaxosReply(app.execute(cur.amoCommand()));
-          if (isLeader()) {
-            debugMsg("\tsending res for slot", Integer.toString(cur.slot()));
-            send(reply, cur.amoCommand().sender());
-          }
+          window.add(cur);
         } else {
           handleMessage(new PaxosDecision(cur.amoCommand()), parentAddress);
         }
       }
       cur = log.getAndIncrementFirstUnexecuted();
     }
+    if (window.isEmpty()) {
+      return;
+    }
+
+    Integer version = watchedVersion();
+    List<AMOCommand> commands = new ArrayList<>();
+    for (LogEntry e : window) {
+      commands.add(e.amoCommand());
+    }
+    List<AMOResult> results = PARALLEL_APPLY ? ParallelApply.execute(app, commands, PARALLEL_APPLY_WINDOW)
+        : ParallelApply.executeSerially(app, commands);
+    for (int i = 0; i < window.size(); i++) {
+      LogEntry e = window.get(i);
+      debugMsg("\texecuted log for slot", Integer.toString(e.slot()));
+      if (MULTI_LEADER ? address().equals(proposerOf(e.slot())) : isLeader()) {
+        debugMsg("\tsending res for slot", Integer.toString(e.slot()));
+        send(new PaxosReply(results.get(i)), e.amoCommand().sender());
+      }
+    }
+    answerWaitingReads(version);
+  }
+
+  /**
+   * @return the version of a {@link WatchedApplication}, null for any other application
+   */
+  private Integer watchedVersion() {
+    return app != null && app.application() instanceof WatchedApplication
+        ? ((WatchedApplication) app.application()).version() : null;
+  }
+
+  /**
+   * Answers the waiting reads that have an answer now, unless the app is a {@link WatchedApplication} still at the
+   * version it had before the commands just executed.
+   */
+  private void answerWaitingReads(Integer version) {
+    if (waitingReads.isEmpty() || version != null && version.equals(watchedVersion())) {
+      return;
+    }
+    for (Iterator<Map.Entry<Address, AMOCommand>> it = waitingReads.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Address, AMOCommand> e = it.next();
+      Result result = app.executeReadOnly(e.getValue());
+      if (result != null) {
+        send(new PaxosReply(result), e.getKey());
+        it.remove();
+      }
+    }
+  }
+
+  private void checkPreAccepted(InstanceId id, boolean timedOut) {
+    if (instanceLog.fastQuorum(id)) {
+      commitInstance(id, true);
+    } else if (instanceLog.slowQuorum(id) && (timedOut || instanceLog.attributesChanged().contains(id))) {
+      Instance instance = instanceLog.startAccept(id);
+      debugMsg("accept phase for", id.toString(), "seq", Integer.toString(instance.seq()));
+      sendOthers(new Accept(new Instance(instance)));
+      if (instanceLog.slowQuorum(id)) {
+        commitInstance(id, false);
+      }
+    }
+  }
+
+  private void commitInstance(InstanceId id, boolean fast) {
+    Instance instance = instanceLog.commitOwn(id, fast);
+    debugMsg("commit", id.toString(), fast ? "fast" : "slow");
+    sendOthers(new Commit(new Instance(instance)));
+    executeInstances();
+  }
+
+  private void executeInstances() {
+    Integer version = watchedVersion();
+    for (Instance instance : instanceLog.takeExecutable()) {
+      if (instance.amoCommand() == null || isWitness()) {
+        continue;
+      }
+      if (parentAddress == null) {
+        PaxosReply reply = new PaxosReply(app.execute(instance.amoCommand()));
+        if (instance.id().replica().equals(address())) {
+          send(reply, instance.amoCommand().sender());
+        }
+      } else {
+        handleMessage(new PaxosDecision(instance.amoCommand()), parentAddress);
+      }
+    }
+    if (parentAddress == null) {
+      answerWaitingReads(version);
+    }
+  }
+
+  private void requestMissingPayloads() {
+    Map<Address, Set<PayloadId>> requests = new HashMap<>();
+    for (Map.Entry<PayloadId, Integer> e : log.missingPayloads().entrySet()) {
+      Address proposer = proposerOf(e.getValue());
+      if (proposer.equals(address())) {
+        // we took over the slot without its payload, anyone may have it
+        for (Address a : servers) {
+          if (!a.equals(address())) {
+            requests.computeIfAbsent(a, k -> new HashSet<>()).add(e.getKey());
+          }
+        }
+      } else {
+        requests.computeIfAbsent(proposer, k -> new HashSet<>()).add(e.getKey());
+      }
+    }
+    for (Map.Entry<Address, Set<PayloadId>> r : requests.entrySet()) {
+      debugMsg("requesting", Integer.toString(r.getValue().size()), "payloads from", r.getKey().toString());
+      send(new PayloadRequest(r.getValue()), r.getKey());
+    }
+  }
+
+  private void retransmitInstances() {
+    for (InstanceId id : new ArrayList<>(instanceLog.uncommitted())) {
+      if (instanceLog.instances().get(id).status() == Instance.Status.PRE_ACCEPTED) {
+        checkPreAccepted(id, true);
+      }
+      Instance instance = instanceLog.instances().get(id);
+      if (instance.committed()) {
+        continue;
+      }
+      Message m = instance.status() == Instance.Status.PRE_ACCEPTED ? new PreAccept(new Instance(instance))
+          : new Accept(new Instance(instance));
+      sendOthers(m);
+    }
+    for (InstanceId id : instanceLog.missing()) {
+      if (!id.replica().equals(address())) {
+        send(new InstanceRequest(id), id.replica());
+      }
+    }
   }
 
   /* -------------------------------------------------------------------------
@@ -413,7 +990,7 @@ public class PaxosServer extends Node {
 
   private void send1A(Ballot ballot) {
     debugMsg("send 1a for election in slot: " + ballot.seqNum());
-    Paxos1A proposal = new Paxos1A(ballot);
+    Paxos1A proposal = new Paxos1A(ballot, leaderTransfer);
     serverBroadcast(proposal);
   }
 
@@ -427,23 +1004,81 @@ public class PaxosServer extends Node {
 
   private void send1B(Address sender, boolean accept, Ballot ballot) {
     debugMsg("sending 1b(" + accept + ") to", sender.toString(), "ballot", ballot.toString());
-    Paxos1B response = new Paxos1B(accept, ballot, log);
+    Paxos1B response = new Paxos1B(accept, ballot, outgoingLog());
     sendServer(response, sender);
   }
 
   private void send2A(LogEntry e) {
 //    debugMsg("send 2a, slot:", Integer.toString(e.slot()), e.toString());
-    Paxos2A proposal = new Paxos2A(e, leaderBallot);
-    serverBroadcast(proposal);
+    Paxos2A proposal = new Paxos2A(outgoingEntry(e), leaderBallot);
+    if (witnesses.length == 0) {
+      serverBroadcast(proposal);
+      return;
+    }
+    Paxos2A witnessProposal = payloadsToWitnesses ? proposal : new Paxos2A(e.withoutPayload(), leaderBallot);
+    for (Address a : servers) {
+      if (!a.equals(this.address())) {
+        send(isWitness(a) ? witnessProposal : proposal, a);
+      }
+    }
+    sendServer(proposal, this.address());
   }
 
-  private void send2B(LogEntry logEntry) {
+  private void send2B(LogEntry logEntry, Address proposer) {
 //    debugMsg("send 2b, slot:", Integer.toString(logEntry.slot()), logEntry.toString());
-    sendServer(new Paxos2B(new LogEntry(logEntry, getBallot())), leaderBallot.leader());
+    Ballot ballot = getBallot();
+    LogEntry entry = ballot.equals(logEntry.ballot()) ? null : outgoingEntry(new LogEntry(logEntry, ballot));
+    sendServer(new Paxos2B(logEntry.slot(), ballot.seqNum(), Arrays.asList(servers).indexOf(ballot.leader()),
+        holdsPayload(logEntry), entry), proposer);
+  }
+
+  /**
+   * Whether this server holds the payload of the entry. Votes only count towards a quorum if they do, so that every
+   * chosen payload survives on any majority.
+   */
+  private boolean holdsPayload(LogEntry e) {
+    if (!e.payloadMissing()) {
+      return true;
+    }
+    LogEntry local = log.getLog(e.slot());
+    return local != null && local.amoCommand() != null && e.digest().matches(local.amoCommand());
+  }
+
+  private void broadcastChosen(LogEntry logEntry) {
+    for (Address a : servers) {
+      if (!a.equals(this.address())) {
+        send(new Paxos2A(isWitness(a) ? logEntry.withoutPayload() : outgoingEntry(logEntry), leaderBallot), a);
+      }
+    }
+  }
+
+  private LogEntry outgoingEntry(LogEntry e) {
+    return SEPARATE_PAYLOADS ? e.withoutPayload() : e;
+  }
+
+  private PaxosLog outgoingLog() {
+    return SEPARATE_PAYLOADS ? log.withoutPayloads() : log;
+  }
+
+  private void sendOthers(Message m) {
+    for (Address a : servers) {
+      if (!a.equals(this.address())) {
+        send(m, a);
+      }
+    }
   }
 
 
   private void sendHeartBeat() {
+    sendHeartBeat(false);
+  }
+
+  /**
+   * @param payloads whether to send the payloads with the log even with {@link #SEPARATE_PAYLOADS}, for the first
+   *                 heartbeat of a new leader. It never disseminated the payloads of the entries it recovered, and
+   *                 followers' votes for them only count once they hold them.
+   */
+  private void sendHeartBeat(boolean payloads) {
     assert isLeader() && leaderBallot.leader().equals(this.address());
 
 //    System.out.println("{" + this.address() + ", " + log.min_slot_unexecuted() + "} " + minUnexecutedVals);
@@ -455,15 +1090,40 @@ public class PaxosServer extends Node {
         log.garbageCollect(globalMin - 1);
       }
     }
+    if (witnesses.length > 0) {
+      payloadsToWitnesses = Arrays.stream(servers)
+          .anyMatch(a -> !a.equals(address()) && !isWitness(a) && !minUnexecutedVals.containsKey(a));
+    }
     minUnexecutedVals.clear();
 
     debugMsg("sending heartbeat");
-    serverBroadcast(new HeartBeat(getBallot(), log));
+    HeartBeat heartBeat = new HeartBeat(getBallot(), payloads ? log : outgoingLog(), proposalFrontier, proposers);
+    HeartBeat witnessHeartBeat = witnesses.length == 0 || payloadsToWitnesses ? heartBeat
+        : new HeartBeat(getBallot(), log.withoutPayloads(), proposalFrontier, proposers);
+    for (Address a : servers) {
+      if (!a.equals(this.address())) {
+        sendRelayed(isWitness(a) ? witnessHeartBeat : heartBeat, a);
+      }
+    }
+    sendServer(heartBeat, this.address());
   }
 
   private void sendHeartbeatResponse() {
 //    System.out.println(this.address() + " sending hbr");
-    sendServer(new HeartBeatResponse(log.min_slot_unexecuted()), leaderBallot.leader());
+    HeartBeatResponse response = new HeartBeatResponse(log.min_slot_unexecuted());
+    if (isLeader(address())) {
+      sendServer(response, address());
+    } else {
+      sendRelayed(response, leaderBallot.leader());
+    }
+  }
+
+  private void sendRelayed(Message m, Address dest) {
+    if (relayed) {
+      outbox.add(new RelayedMessage(address(), dest, m));
+    } else {
+      send(m, dest);
+    }
   }
 
   private void serverBroadcast(Message m) {
@@ -483,7 +1143,7 @@ public class PaxosServer extends Node {
   private void rebroadcastAcceptedLogEntries(PaxosLog l) {
     for (LogEntry e : l.log().values()) {
       if (e.status() == PaxosLogSlotStatus.ACCEPTED && log.getLog(e.slot()) != null) {
-        send2B(log.getLog(e.slot()));
+        send2B(log.getLog(e.slot()), proposerOf(e.slot()));
       }
     }
   }
@@ -501,6 +1161,119 @@ public class PaxosServer extends Node {
       Server State Utils
      -----------------------------------------------------------------------*/
 
+  private void startPreVote() {
+    assert isFollower();
+
+    Ballot ballot = new Ballot(leaderBallot.seqNum() + 1, this.address());
+    if (!ballot.equals(preVoteBallot)) {
+      preVoteBallot = ballot;
+      preVotes.clear();
+    }
+    debugMsg("starting pre-vote", preVoteBallot.toString());
+    serverBroadcast(new PreVote1A(preVoteBallot));
+  }
+
+  private void clearPreVote() {
+    preVoteBallot = null;
+    preVotes.clear();
+  }
+
+  private boolean hasRecentLeaderContact() {
+    return isLeader() || ticksSinceLeaderContact < REPLICA_LEADER_LEASE;
+  }
+
+  private int rejoinTicks(Address proposer) {
+    return PROPOSER_REJOIN_TICKS << Math.min(revocations.getOrDefault(proposer, 1) - 1, MAX_REJOIN_DOUBLINGS);
+  }
+
+  private void setProposers(int frontier, Address[] owners) {
+    proposalFrontier = frontier;
+    proposers = owners;
+    stalledSlot = 0;
+    stalledTicks = 0;
+  }
+
+  private boolean isProposer() {
+    return proposers != null && Arrays.asList(proposers).contains(address());
+  }
+
+  /**
+   * The only node allowed to propose in the given slot under the current ballot.
+   */
+  private Address proposerOf(int slot) {
+    if (proposers == null || slot <= proposalFrontier) {
+      return leaderBallot.leader();
+    }
+    return proposers[(slot - proposalFrontier - 1) % proposers.length];
+  }
+
+  private int nextOwnSlot() {
+    int slot = Math.max(proposalFrontier, log.getLastNonEmpty()) + 1;
+    while (!address().equals(proposerOf(slot))) {
+      slot++;
+    }
+    return slot;
+  }
+
+  /**
+   * Proposes no-ops in this node's empty slots below the given slot, so that they don't hold up execution.
+   */
+  private void skipOwnSlots(int slot) {
+    if (!isProposer()) {
+      return;
+    }
+    for (int i = Math.max(proposalFrontier + 1, log.min_slot_unexecuted()); i < slot; i++) {
+      if (address().equals(proposerOf(i)) && log.getLogStatus(i) == PaxosLogSlotStatus.EMPTY) {
+        LogEntry noOp = voteTracker.createLogEntry(getBallot(), null, i);
+        voteTracker.addLogEntry(noOp);
+        send2A(noOp);
+      }
+    }
+  }
+
+  /**
+   * Leader only. Starts a new election when a proposer's slot has held up execution for too long, or when a revoked
+   * proposer answered enough heartbeats in a row to get its slots back.
+   *
+   * @return whether an election was started
+   */
+  private boolean revokeProposers() {
+    boolean changed = false;
+    for (Iterator<Map.Entry<Address, Integer>> it = revokedProposers.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Address, Integer> e = it.next();
+      // a missed heartbeat starts the wait over
+      int left = minUnexecutedVals.containsKey(e.getKey()) ? e.getValue() - 1 : rejoinTicks(e.getKey());
+      if (left <= 0) {
+        it.remove();
+        changed = true;
+      } else {
+        e.setValue(left);
+      }
+    }
+
+    int slot = log.min_slot_unexecuted();
+    Address owner = proposerOf(slot);
+    if (slot <= log.getLastNonEmpty() && !owner.equals(address())) {
+      if (slot != stalledSlot) {
+        stalledSlot = slot;
+        stalledTicks = 0;
+      } else if (++stalledTicks >= REPLICA_FOLLOWER_WAIT) {
+        debugMsg("revoking proposer", owner.toString(), "stalled at slot", Integer.toString(slot));
+        revocations.merge(owner, 1, Integer::sum);
+        revokedProposers.put(owner, rejoinTicks(owner));
+        changed = true;
+      }
+    } else {
+      stalledSlot = 0;
+    }
+
+    if (changed) {
+      setServerState(ServerState.ELECTING_LEADER);
+      startLeaderElection();
+    }
+    return changed;
+  }
+
   private Ballot startLeaderElection() {
     //TODO: REMOVE INVARIANT CHECK
     assert isElectingLeader();
@@ -524,10 +1297,16 @@ public class PaxosServer extends Node {
         throw new Error("invalid state");
       }
     } else {
+      clearPreVote();
       setServerState(ServerState.FOLLOWER);
       debugMsg("clearing vot es", votes.toString());
       votes.clear();
+      revokedProposers.clear();
+      revocations.clear();
+      setProposers(-1, null);
     }
+    transferTarget = null;
+    leaderTransfer = false;
     leaderBallot = b;
   }
 
@@ -536,6 +1315,7 @@ public class PaxosServer extends Node {
     setServerState(ServerState.ELECTING_LEADER);
     debugMsg("clearing votes", votes.toString());
     votes.clear();
+    setProposers(-1, null);
     leaderBallot = b;
   }
 
@@ -560,14 +1340,26 @@ public class PaxosServer extends Node {
     return false;
   }
 
-  private boolean isLeader() {
+  boolean isLeader() {
     return serverState == ServerState.LEADER;
   }
 
+  InstanceLog instanceLog() {
+    return instanceLog;
+  }
+
   private boolean isFollower() {
     return serverState == ServerState.FOLLOWER;
   }
 
+  private boolean isWitness() {
+    return isWitness(address());
+  }
+
+  private boolean isWitness(Address a) {
+    return Arrays.asList(witnesses).contains(a);
+  }
+
   private boolean isElectingLeader() {
     return serverState == ServerState.ELECTING_LEADER;
   }
@@ -583,6 +1375,9 @@ public class PaxosServer extends Node {
     serverState = state;
     if (changeServerState) {
       resetTimers();
+      if (ADAPTIVE_TIMEOUTS && isFollower()) {
+        setElectionTimer(leaderBallot.leader());
+      }
     }
     if (isFollower()) {
       minUnexecutedVals.clear();
@@ -0,0 +1,25 @@
+package dslabs.paxos;
+
+import dslabs.atmostonce.AMOCommand;
+import dslabs.framework.Address;
+import java.io.Serializable;
+import lombok.Data;
+
+/**
+ * Compact digest of a command, sent in place of the command when payloads are disseminated apart from ordering.
+ */
+@Data
+public class PayloadId implements Serializable {
+
+    private final Address sender;
+    private final int num;
+    private final int hash;
+
+    public static PayloadId of(AMOCommand amoCommand) {
+        return new PayloadId(amoCommand.sender(), amoCommand.num(), amoCommand.hashCode());
+    }
+
+    public boolean matches(AMOCommand amoCommand) {
+        return sender.equals(amoCommand.sender()) && num == amoCommand.num() && hash == amoCommand.hashCode();
+    }
+}
@@ -0,0 +1,14 @@
+package dslabs.paxos;
+
+import dslabs.framework.Message;
+import java.util.List;
+import lombok.Data;
+
+/**
+ * The {@link RelayedMessage}s of every Paxos group on one node bound for the same peer node. Each message is carried
+ * whole, a batch is as large as the messages it replaces.
+ */
+@Data
+public final class RelayedBatch implements Message {
+    private final List<RelayedMessage> messages;
+}
@@ -0,0 +1,17 @@
+package dslabs.paxos;
+
+import dslabs.framework.Address;
+import dslabs.framework.Message;
+import lombok.Data;
+
+/**
+ * A message between {@link PaxosServer}s whose parents carry it in a {@link RelayedBatch} instead of it being sent on
+ * its own. The parent hands it to the destination sub-node, which handles the wrapped message as coming from {@link
+ * #from}.
+ */
+@Data
+public final class RelayedMessage implements Message {
+    private final Address from;
+    private final Address to;
+    private final Message message;
+}
@@ -0,0 +1,39 @@
+package dslabs.paxos;
+
+import java.io.Serializable;
+import lombok.Data;
+
+/**
+ * Jacobson/Karels round trip estimator, a smoothed mean and mean deviation of the samples.
+ */
+@Data
+public class RttEstimator implements Serializable {
+
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+
+    private double srtt;
+    private double rttvar;
+    private int samples;
+
+    public void sample(long millis) {
+        if (samples == 0) {
+            srtt = millis;
+            rttvar = millis / 2.0;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - millis);
+            srtt = (1 - ALPHA) * srtt + ALPHA * millis;
+        }
+        samples++;
+    }
+
+    /**
+     * @return srtt + 4 * rttvar clamped to the given bounds, or the initial timeout before the first sample
+     */
+    public int timeout(int initial, int min, int max) {
+        if (samples == 0) {
+            return initial;
+        }
+        return (int) Math.min(max, Math.max(min, Math.ceil(srtt + 4 * rttvar)));
+    }
+}
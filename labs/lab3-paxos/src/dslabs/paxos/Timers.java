@@ -7,6 +7,8 @@ import lombok.Data;
 final class ClientTimer implements Timer {
 
   static final int CLIENT_RETRY_MILLIS = 250;
+  static final int CLIENT_RETRY_MIN_MILLIS = 20;
+  static final int CLIENT_RETRY_MAX_MILLIS = 2000;
 
   private final PaxosRequest request;
 }
@@ -16,3 +18,14 @@ class HeartBeatTimer implements Timer {
   static final int SERVER_TICK_MILLIS = 75;
 }
 
+/**
+ * Adaptive timeouts only. Fires on a follower that heard nothing from the leader since the timer was set.
+ */
+@Data
+final class ElectionTimer implements Timer {
+  static final int MIN_MILLIS = 2 * HeartBeatTimer.SERVER_TICK_MILLIS;
+  static final int MAX_MILLIS = 2 * PaxosServer.REPLICA_FOLLOWER_WAIT * HeartBeatTimer.SERVER_TICK_MILLIS;
+
+  private final int leaderContacts;
+}
+
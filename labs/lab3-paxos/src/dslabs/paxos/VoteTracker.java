@@ -5,6 +5,7 @@ import com.google.common.collect.SetMultimap;
 import dslabs.atmostonce.AMOCommand;
 import dslabs.framework.Address;
 import java.io.Serializable;
+import java.util.Objects;
 import lombok.Data;
 
 /**
@@ -34,13 +35,24 @@ public class VoteTracker implements Serializable {
    * @return
    */
   public LogEntry createLogEntry(Ballot ballot, AMOCommand command) {
+    return createLogEntry(ballot, command, log.getLastNonEmpty() + 1);
+  }
+
+  /**
+   * Creates a log entry at the given slot.
+   *
+   * @param command
+   * @param slot
+   * @return
+   */
+  public LogEntry createLogEntry(Ballot ballot, AMOCommand command, int slot) {
     if (INVARIANT_CHECK) {
       if (command != null) {
         assert !log.commandExistsInLog(command) :
             "duplicate entry in log " + command;
       }
     }
-    LogEntry logEntry = new LogEntry(log.getLastNonEmpty() + 1, ballot, command, PaxosLogSlotStatus.ACCEPTED);
+    LogEntry logEntry = new LogEntry(slot, ballot, command, PaxosLogSlotStatus.ACCEPTED);
     return logEntry;
   }
 
@@ -54,12 +66,17 @@ public class VoteTracker implements Serializable {
   }
 
   /**
-   * Takes in a vote for a log entry. Ignores duplicate commands.
+   * Takes in a vote for a log entry. Ignores duplicate commands, and votes from servers that don't hold the entry's
+   * payload (witnesses, or replicas that only got its digest) so that a chosen payload is never lost.
    *
    * @param logEntry
+   * @param payloadHeld whether the voter holds the payload of the entry
    * @return whether the vote was accepted into the VoteTracker
    */
-  public boolean vote(Address voter, LogEntry logEntry) {
+  public boolean vote(Address voter, LogEntry logEntry, boolean payloadHeld) {
+    if (!payloadHeld) {
+      return false;
+    }
     LogEntry existingLogEntry = log.getLog(logEntry.slot());
     PaxosLogSlotStatus existingLogEntryStatus = log.getLogStatus(logEntry.slot());
 
@@ -73,8 +90,9 @@ public class VoteTracker implements Serializable {
           // reject old ballots
           return false;
         } else if (logEntry.ballot().compareTo(existingLogEntry.ballot()) == 0) {
-          if (INVARIANT_CHECK) {
-            assert logEntry.amoCommand() == null && existingLogEntry.amoCommand() == null || logEntry.amoCommand().equals(existingLogEntry.amoCommand());
+          if (!Objects.equals(logEntry.payloadId(), existingLogEntry.payloadId())) {
+            // a replica re-voting under this ballot for what it accepted in an earlier one
+            return false;
           }
           // add ballot, return t/f depending on whether already there
           boolean accepted = votes.put(logEntry.slot(), voter);
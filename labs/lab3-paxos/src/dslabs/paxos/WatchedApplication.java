@@ -0,0 +1,15 @@
+package dslabs.paxos;
+
+import dslabs.framework.Application;
+
+/**
+ * An application whose read-only commands may have no answer yet, executing one returns null until a later command
+ * changes the state it waits for. {@link PaxosServer} holds such reads and asks again only once {@link #version}
+ * changed, instead of after every command it executes.
+ */
+public interface WatchedApplication extends Application {
+    /**
+     * @return a number that changes whenever the answer to a waiting read-only command may have changed
+     */
+    int version();
+}
@@ -0,0 +1,357 @@
+package dslabs.paxos;
+
+import dslabs.framework.Address;
+import dslabs.framework.Command;
+import dslabs.framework.Result;
+import dslabs.framework.testing.ClientWorker;
+import dslabs.framework.testing.InfiniteWorkload;
+import dslabs.framework.testing.MessageEnvelope;
+import dslabs.framework.testing.runner.RunSettings;
+import dslabs.framework.testing.runner.RunState;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+
+import static dslabs.framework.testing.junit.BaseJUnitTest.client;
+import static dslabs.kvstore.KVStoreWorkload.put;
+
+/**
+ * Drives a Paxos group with closed-loop clients and measures throughput, commit latency percentiles, and messages and
+ * bytes per operation. Results are also appended as JSON lines to {@link #RESULTS_FILE} so runs can be compared across
+ * commits.
+ */
+final class PaxosBenchmark {
+
+    /**
+     * Where results are appended, one JSON object per line. Set with -Ddslabs.benchmark.results=...
+     */
+    static final String RESULTS_FILE = System.getProperty("dslabs.benchmark.results", "benchmark-results/paxos.jsonl");
+
+    private static final int BYTES_SAMPLE_RATE = 16; // serialize one in this many messages to estimate bytes
+
+    enum KeyDistribution {
+        PER_CLIENT, // keys of the client's own, no conflicts
+        UNIFORM,
+        ZIPFIAN
+    }
+
+    /**
+     * One benchmark configuration. Setters return this so configurations read like the RunSettings ones.
+     */
+    static final class Settings {
+        private int numServers = 3;
+        private int numClients = 5;
+        private int numKeys = 1000;
+        private KeyDistribution keyDistribution = KeyDistribution.UNIFORM;
+        private int valueSize = 16;
+        private int warmupMillis = 500;
+        private int millis = 2000;
+
+        Settings numServers(int numServers) {
+            this.numServers = numServers;
+            return this;
+        }
+
+        Settings numClients(int numClients) {
+            this.numClients = numClients;
+            return this;
+        }
+
+        Settings numKeys(int numKeys) {
+            this.numKeys = numKeys;
+            return this;
+        }
+
+        Settings keyDistribution(KeyDistribution keyDistribution) {
+            this.keyDistribution = keyDistribution;
+            return this;
+        }
+
+        Settings valueSize(int valueSize) {
+            this.valueSize = valueSize;
+            return this;
+        }
+
+        Settings warmupMillis(int warmupMillis) {
+            this.warmupMillis = warmupMillis;
+            return this;
+        }
+
+        Settings millis(int millis) {
+            this.millis = millis;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d servers, %d clients, %d %s keys, %d byte values", numServers, numClients, numKeys,
+                    keyDistribution.name().toLowerCase(), valueSize);
+        }
+    }
+
+    static final class Results {
+        final Settings settings;
+        final double opsPerSecond;
+        final double p50Millis, p99Millis, p999Millis;
+        final double messagesPerOp;
+        final double bytesPerOp;
+
+        private Results(Settings settings, double opsPerSecond, double p50Millis, double p99Millis, double p999Millis,
+                        double messagesPerOp, double bytesPerOp) {
+            this.settings = settings;
+            this.opsPerSecond = opsPerSecond;
+            this.p50Millis = p50Millis;
+            this.p99Millis = p99Millis;
+            this.p999Millis = p999Millis;
+            this.messagesPerOp = messagesPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        String toJson() {
+            return String.format("{\"benchmark\": \"paxos\", \"servers\": %d, \"clients\": %d, \"keys\": %d, "
+                            + "\"distribution\": \"%s\", \"valueSize\": %d, \"opsPerSecond\": %.1f, \"p50Millis\": %.3f, "
+                            + "\"p99Millis\": %.3f, \"p999Millis\": %.3f, \"messagesPerOp\": %.2f, \"bytesPerOp\": %.1f, "
+                            + "\"timestamp\": %d}", settings.numServers, settings.numClients, settings.numKeys,
+                    settings.keyDistribution, settings.valueSize, opsPerSecond, p50Millis, p99Millis, p999Millis,
+                    messagesPerOp, bytesPerOp, System.currentTimeMillis());
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %.0f ops/s, commit latency p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, "
+                            + "%.2f messages/op, %.0f bytes/op", settings, opsPerSecond, p50Millis, p99Millis, p999Millis,
+                    messagesPerOp, bytesPerOp);
+        }
+    }
+
+    /* -------------------------------------------------------------------------
+        Latency recording
+       -----------------------------------------------------------------------*/
+    // ClientWorker clones its workload, so the workloads report through these instead of fields of their own
+    private static final Map<Address, Long> lastRequestNanos = new ConcurrentHashMap<>();
+    private static final Queue<Long> latencies = new ConcurrentLinkedQueue<>();
+    private static volatile boolean measuring;
+
+    /**
+     * Clients are closed-loop, ClientWorker asks for the next command as soon as the last one finished. The time between
+     * two requests of a client is the commit latency of the first.
+     */
+    private static void requestSent(Address client) {
+        long now = System.nanoTime();
+        Long last = lastRequestNanos.put(client, now);
+        if (last != null && measuring) {
+            latencies.add(now - last);
+        }
+    }
+
+    private static final class BenchmarkWorkload extends InfiniteWorkload {
+        private final int numKeys;
+        private final KeyDistribution keyDistribution;
+        private final String value;
+        private double[] zipfCdf;
+        private Random rand;
+
+        BenchmarkWorkload(Settings settings) {
+            numKeys = settings.numKeys;
+            keyDistribution = settings.keyDistribution;
+            value = StringUtils.repeat('x', settings.valueSize);
+        }
+
+        @Override
+        public Pair<Command, Result> nextCommandAndResult(Address clientAddress) {
+            if (rand == null) {
+                rand = new Random(clientAddress.hashCode());
+            }
+            requestSent(clientAddress);
+            String key;
+            switch (keyDistribution) {
+                case PER_CLIENT:
+                    key = clientAddress + "-" + rand.nextInt(numKeys);
+                    break;
+                case ZIPFIAN:
+                    key = "key-" + nextZipf();
+                    break;
+                case UNIFORM:
+                default:
+                    key = "key-" + rand.nextInt(numKeys);
+            }
+            return new ImmutablePair<>(put(key, value), null);
+        }
+
+        /**
+         * Key ranks follow Zipf's law with exponent 0.99, as in YCSB.
+         */
+        private int nextZipf() {
+            if (zipfCdf == null) {
+                zipfCdf = new double[numKeys];
+                double sum = 0;
+                for (int i = 0; i < numKeys; i++) {
+                    sum += 1 / Math.pow(i + 1, 0.99);
+                    zipfCdf[i] = sum;
+                }
+                for (int i = 0; i < numKeys; i++) {
+                    zipfCdf[i] /= sum;
+                }
+            }
+            int i = Arrays.binarySearch(zipfCdf, rand.nextDouble());
+            return Math.min(i >= 0 ? i : -i - 1, numKeys - 1);
+        }
+
+        @Override
+        public boolean hasResults() {
+            return false;
+        }
+
+        @Override
+        public void reset() {
+            rand = null;
+        }
+    }
+
+    /**
+     * Counts messages between nodes while measuring, and serializes a sample of them to estimate their size.
+     */
+    private static final class MeasuringRunSettings extends RunSettings {
+        private final AtomicLong messages = new AtomicLong();
+        private final AtomicLong sampledMessages = new AtomicLong();
+        private final AtomicLong sampledBytes = new AtomicLong();
+
+        @Override
+        public boolean shouldDeliver(MessageEnvelope messageEnvelope) {
+            if (!super.shouldDeliver(messageEnvelope)) {
+                return false;
+            }
+            if (measuring && !messageEnvelope.from().rootAddress().equals(messageEnvelope.to().rootAddress())
+                    && messages.incrementAndGet() % BYTES_SAMPLE_RATE == 0) {
+                sampledBytes.addAndGet(serializedSize(messageEnvelope));
+                sampledMessages.incrementAndGet();
+            }
+            return true;
+        }
+
+        double bytes() {
+            return sampledMessages.get() == 0 ? 0 : ((double) sampledBytes.get()) / sampledMessages.get() * messages.get();
+        }
+    }
+
+    private static long serializedSize(MessageEnvelope messageEnvelope) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(messageEnvelope.message());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.size();
+    }
+
+    /* -------------------------------------------------------------------------
+        Running
+       -----------------------------------------------------------------------*/
+    static Results run(Settings settings) throws InterruptedException {
+        lastRequestNanos.clear();
+        latencies.clear();
+        measuring = false;
+
+        Address[] servers = PaxosTest.servers(settings.numServers);
+        RunState runState = new RunState(PaxosTest.builder(servers).build());
+        for (Address server : servers) {
+            runState.addServer(server);
+        }
+        for (int i = 1; i <= settings.numClients; i++) {
+            runState.addClientWorker(client(i), new BenchmarkWorkload(settings));
+        }
+        MeasuringRunSettings runSettings = new MeasuringRunSettings();
+        runSettings.waitForClients(false);
+        runState.start(runSettings);
+        Thread.sleep(settings.warmupMillis);
+
+        int startOps = numResults(runState);
+        measuring = true;
+        long startNanos = System.nanoTime();
+        Thread.sleep(settings.millis);
+        measuring = false;
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        int ops = numResults(runState) - startOps;
+        runState.stop();
+
+        List<Long> sorted = new ArrayList<>(latencies);
+        sorted.sort(Long::compare);
+        Results results = new Results(settings, ops / seconds, percentileMillis(sorted, 0.5),
+                percentileMillis(sorted, 0.99), percentileMillis(sorted, 0.999),
+                ((double) runSettings.messages.get()) / Math.max(ops, 1), runSettings.bytes() / Math.max(ops, 1));
+        record(results.toJson());
+        return results;
+    }
+
+    private static int numResults(RunState runState) {
+        int results = 0;
+        for (ClientWorker cw : runState.clientWorkers()) {
+            results += cw.results().size();
+        }
+        return results;
+    }
+
+    private static double percentileMillis(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int i = (int) Math.min(sorted.size() - 1, Math.ceil(percentile * sorted.size()) - 1);
+        return sorted.get(Math.max(i, 0)) / 1e6;
+    }
+
+    /**
+     * Times a single-node hot path, after running it for as long again to warm up the JIT.
+     *
+     * @return the mean time per call in nanoseconds
+     */
+    static double microBenchmark(String name, Runnable op, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        double nanos = ((double) (System.nanoTime() - start)) / iterations;
+        record(String.format("{\"benchmark\": \"%s\", \"iterations\": %d, \"nanosPerOp\": %.1f, \"timestamp\": %d}",
+                name, iterations, nanos, System.currentTimeMillis()));
+        return nanos;
+    }
+
+    private static synchronized void record(String json) {
+        Path path = Paths.get(RESULTS_FILE);
+        try {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND)) {
+                writer.write(json);
+                writer.write(System.lineSeparator());
+            }
+        } catch (IOException e) {
+            System.err.println("could not write benchmark results to " + path + ": " + e);
+        }
+    }
+
+    private PaxosBenchmark() {
+    }
+}
@@ -0,0 +1,631 @@
+package dslabs.paxos;
+
+import dslabs.atmostonce.AMOCommand;
+import dslabs.framework.Address;
+import dslabs.framework.Command;
+import dslabs.framework.Node;
+import dslabs.framework.Result;
+import dslabs.framework.testing.ClientWorker;
+import dslabs.framework.testing.InfiniteWorkload;
+import dslabs.framework.testing.MessageEnvelope;
+import dslabs.framework.testing.StateGenerator;
+import dslabs.framework.testing.StateGenerator.StateGeneratorBuilder;
+import dslabs.framework.testing.junit.BaseJUnitTest;
+import dslabs.framework.testing.junit.PrettyTestName;
+import dslabs.framework.testing.junit.RunTests;
+import dslabs.framework.testing.runner.RunSettings;
+import dslabs.framework.testing.runner.RunState;
+import dslabs.kvstore.KVStore;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.lang3.tuple.Triple;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runners.MethodSorters;
+
+import static dslabs.kvstore.KVStoreWorkload.append;
+import static dslabs.kvstore.KVStoreWorkload.appendDifferentKeyWorkload;
+import static dslabs.kvstore.KVStoreWorkload.differentKeysInfiniteWorkload;
+import static dslabs.kvstore.KVStoreWorkload.put;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Benchmarks for PaxosServer. These print their measurements instead of checking them against a bound, they only fail
+ * if the group stops making progress altogether.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class PaxosBenchmarkTest extends BaseJUnitTest {
+    private static final int SAMPLE_MILLIS = 5;
+    private static final int STALL_MILLIS = 2 * HeartBeatTimer.SERVER_TICK_MILLIS;
+    private static final int TRANSFER_MILLIS = 10 * HeartBeatTimer.SERVER_TICK_MILLIS; // bound on a leader transfer
+
+    @Override
+    protected void cleanupTest() {
+        PaxosServer.PRE_VOTE = false;
+        PaxosClient.CACHE_LEADER = true;
+        PaxosServer.MULTI_LEADER = false;
+        PaxosServer.FAST_PATH = false;
+        PaxosServer.SEPARATE_PAYLOADS = false;
+        PaxosServer.ADAPTIVE_TIMEOUTS = false;
+        PaxosClient.ADAPTIVE_RETRY = false;
+        PaxosLog.INTERN_BALLOTS = false;
+    }
+
+    /**
+     * Holds every message between different nodes for a random time up to the given latency before delivering it, and
+     * counts the client requests a server receives more than once.
+     */
+    private static final class LatencyRunSettings extends RunSettings {
+        private final int latencyMillis;
+        private final Set<Triple<Address, Address, Integer>> requests = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger duplicateRequests = new AtomicInteger();
+
+        LatencyRunSettings(int latencyMillis) {
+            this.latencyMillis = latencyMillis;
+        }
+
+        @Override
+        public boolean shouldDeliver(MessageEnvelope messageEnvelope) {
+            if (!super.shouldDeliver(messageEnvelope)) {
+                return false;
+            }
+            if (messageEnvelope.message() instanceof PaxosRequest) {
+                AMOCommand cmd = ((PaxosRequest) messageEnvelope.message()).cmd();
+                if (messageEnvelope.from().equals(cmd.sender())
+                        && !requests.add(Triple.of(messageEnvelope.to(), cmd.sender(), cmd.num()))) {
+                    duplicateRequests.incrementAndGet();
+                }
+            }
+            if (latencyMillis > 0 && !messageEnvelope.from().rootAddress().equals(messageEnvelope.to().rootAddress())) {
+                try {
+                    Thread.sleep(ThreadLocalRandom.current().nextInt(latencyMillis + 1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private void setupRunState(int numServers, int numClients) {
+        Address[] servers = PaxosTest.servers(numServers);
+        StateGenerator stateGenerator = PaxosTest.builder(servers).build();
+
+        runState = new RunState(stateGenerator);
+        for (Address server : servers) {
+            runState.addServer(server);
+        }
+        for (int i = 1; i <= numClients; i++) {
+            runState.addClientWorker(client(i), differentKeysInfiniteWorkload);
+        }
+    }
+
+    private int numResults() {
+        int results = 0;
+        for (ClientWorker cw : runState.clientWorkers()) {
+            results += cw.results().size();
+        }
+        return results;
+    }
+
+    /**
+     * Samples the number of finished commands for the given time and records every interval where no command finished.
+     */
+    private static final class StallRecorder {
+        private long lastProgressMillis = System.currentTimeMillis();
+        private int lastResults = 0;
+        private long maxStallMillis = 0;
+        private long totalStallMillis = 0;
+
+        void sample(int results) {
+            long now = System.currentTimeMillis();
+            if (results > lastResults) {
+                long stall = now - lastProgressMillis;
+                maxStallMillis = Math.max(maxStallMillis, stall);
+                if (stall > STALL_MILLIS) {
+                    totalStallMillis += stall;
+                }
+                lastResults = results;
+                lastProgressMillis = now;
+            }
+        }
+    }
+
+    private StallRecorder runChaos(int numServers, int cycles, int partitionMillis, int healMillis)
+            throws InterruptedException {
+        setupRunState(numServers, 3);
+        runSettings.waitForClients(false);
+        runState.start(runSettings);
+
+        // let the first election settle before measuring
+        Thread.sleep(500);
+
+        StallRecorder recorder = new StallRecorder();
+        recorder.lastResults = numResults();
+        for (int i = 0; i < cycles; i++) {
+            Address isolated = server(i % numServers + 1);
+            runSettings.nodeActive(isolated, false);
+            sampleFor(recorder, partitionMillis);
+            runSettings.nodeActive(isolated, true);
+            sampleFor(recorder, healMillis);
+        }
+        runState.stop();
+        return recorder;
+    }
+
+    private void sampleFor(StallRecorder recorder, int millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < end) {
+            recorder.sample(numResults());
+            Thread.sleep(SAMPLE_MILLIS);
+        }
+    }
+
+    private void reportChaos(String name, StallRecorder recorder) {
+        System.out.println(String.format("%s: %d ops, max commit stall %d ms, total stalled %d ms", name,
+                recorder.lastResults, recorder.maxStallMillis, recorder.totalStallMillis));
+        assertTrue(recorder.lastResults > 0);
+    }
+
+    private boolean isLeader(Address address) {
+        for (Node n : runState.servers()) {
+            if (n.address().equals(address)) {
+                return ((PaxosServer) n).isLeader();
+            }
+        }
+        return false;
+    }
+
+    private Address currentLeader() {
+        for (Node n : runState.servers()) {
+            if (((PaxosServer) n).isLeader()) {
+                return n.address();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Measures the longest gap between finished commands in the window after the event, averaged over all rounds.
+     */
+    private double failoverGap(int numServers, int rounds, boolean transfer) throws InterruptedException {
+        setupRunState(numServers, 3);
+        runSettings.waitForClients(false);
+        runState.start(runSettings);
+        Thread.sleep(500);
+
+        long totalGapMillis = 0;
+        for (int i = 0; i < rounds; i++) {
+            Address leader = currentLeader();
+            assertNotNull(leader);
+
+            StallRecorder recorder = new StallRecorder();
+            recorder.lastResults = numResults();
+            if (transfer) {
+                Address[] servers = PaxosTest.servers(numServers);
+                Address target = servers[(Arrays.asList(servers).indexOf(leader) + 1) % numServers];
+                long end = System.currentTimeMillis() + 1500;
+                runState.network().send(new MessageEnvelope(client(1), leader, new LeaderTransfer(target)));
+                long bound = System.currentTimeMillis() + TRANSFER_MILLIS;
+                while (!isLeader(target) && System.currentTimeMillis() < bound) {
+                    recorder.sample(numResults());
+                    Thread.sleep(SAMPLE_MILLIS);
+                }
+                assertTrue(String.format("transfer from %s didn't elect %s within %d ms", leader, target,
+                        TRANSFER_MILLIS), isLeader(target));
+                sampleFor(recorder, (int) Math.max(end - System.currentTimeMillis(), 0));
+            } else {
+                runSettings.nodeActive(leader, false);
+                sampleFor(recorder, 1500);
+                runSettings.nodeActive(leader, true);
+                Thread.sleep(500);
+            }
+            totalGapMillis += recorder.maxStallMillis;
+        }
+        runState.stop();
+        return ((double) totalGapMillis) / rounds;
+    }
+
+    private int totalMessages() {
+        int messages = 0;
+        for (Address a : runState.addresses()) {
+            messages += runState.network().numMessagesSentTo(a);
+        }
+        return messages;
+    }
+
+    private double messagesPerOp(int numServers, int numClients, int rounds) throws InterruptedException {
+        setupRunState(numServers, 0);
+        for (int i = 1; i <= numClients; i++) {
+            runState.addClientWorker(client(i), appendDifferentKeyWorkload(rounds));
+        }
+        runState.run(runSettings);
+        return ((double) totalMessages()) / (numClients * rounds);
+    }
+
+    private int throughput(int numServers, int numClients, int millis) throws InterruptedException {
+        setupRunState(numServers, numClients);
+        runSettings.waitForClients(false);
+        runState.start(runSettings);
+        Thread.sleep(500);
+
+        int start = numResults();
+        Thread.sleep(millis);
+        int ops = numResults() - start;
+        runState.stop();
+        return ops;
+    }
+
+    /**
+     * Puts to keys of the client's own, except for the given fraction of appends to one key shared by every client.
+     */
+    private static final class ConflictWorkload extends InfiniteWorkload {
+        private final Random rand = new Random(0);
+        private final double conflictRate;
+
+        ConflictWorkload(double conflictRate) {
+            this.conflictRate = conflictRate;
+        }
+
+        @Override
+        public Pair<Command, Result> nextCommandAndResult(Address clientAddress) {
+            if (rand.nextDouble() < conflictRate) {
+                return new ImmutablePair<>(append("shared", "x"), null);
+            }
+            return new ImmutablePair<>(put(clientAddress + "-" + (rand.nextInt(5) + 1), "v"), null);
+        }
+
+        @Override
+        public boolean hasResults() {
+            return false;
+        }
+
+        @Override
+        public void reset() {
+        }
+    }
+
+    /**
+     * Puts values of the given size to keys of the client's own.
+     */
+    private static final class LargeValueWorkload extends InfiniteWorkload {
+        private final Random rand = new Random(0);
+        private final String value;
+
+        LargeValueWorkload(int valueSize) {
+            value = StringUtils.repeat('x', valueSize);
+        }
+
+        @Override
+        public Pair<Command, Result> nextCommandAndResult(Address clientAddress) {
+            return new ImmutablePair<>(put(clientAddress + "-" + (rand.nextInt(5) + 1), value), null);
+        }
+
+        @Override
+        public boolean hasResults() {
+            return false;
+        }
+
+        @Override
+        public void reset() {
+        }
+    }
+
+    private int largeValueThroughput(int numServers, int numClients, int valueSize, int millis)
+            throws InterruptedException {
+        Address[] servers = PaxosTest.servers(numServers);
+        runState = new RunState(PaxosTest.builder(servers).build());
+        for (Address server : servers) {
+            runState.addServer(server);
+        }
+        for (int i = 1; i <= numClients; i++) {
+            runState.addClientWorker(client(i), new LargeValueWorkload(valueSize));
+        }
+        runSettings.waitForClients(false);
+        runState.start(runSettings);
+        Thread.sleep(500);
+
+        int start = numResults();
+        Thread.sleep(millis);
+        int ops = numResults() - start;
+        runState.stop();
+        runSettings.resetNetwork();
+        return ops;
+    }
+
+    /**
+     * Runs the given number of full replicas plus one witness, taking the last full replica down halfway through.
+     *
+     * @return the commands finished before and after the replica went down
+     */
+    private int[] witnessThroughput(int numReplicas, int numClients, int valueSize, int millis)
+            throws InterruptedException {
+        Address[] servers = PaxosTest.servers(numReplicas + 1);
+        Address[] witnesses = {servers[numReplicas]};
+        StateGeneratorBuilder builder = PaxosTest.builder(servers);
+        builder.serverSupplier(a -> new PaxosServer(a, servers.clone(), witnesses.clone(), new KVStore()));
+        runState = new RunState(builder.build());
+        for (Address server : servers) {
+            runState.addServer(server);
+        }
+        for (int i = 1; i <= numClients; i++) {
+            runState.addClientWorker(client(i), new LargeValueWorkload(valueSize));
+        }
+        runSettings.waitForClients(false);
+        runState.start(runSettings);
+        Thread.sleep(500);
+
+        int start = numResults();
+        Thread.sleep(millis);
+        int healthy = numResults() - start;
+
+        runSettings.nodeActive(servers[numReplicas - 1], false);
+        Thread.sleep(1000);
+        start = numResults();
+        Thread.sleep(millis);
+        int degraded = numResults() - start;
+
+        runState.stop();
+        runSettings.resetNetwork();
+        return new int[]{healthy, degraded};
+    }
+
+    /**
+     * Fills a log with chosen no-ops whose ballots are copies, as they are after arriving in messages.
+     *
+     * @return the heap used per slot
+     */
+    private static double logBytesPerSlot(int slots) {
+        Ballot ballot = new Ballot(1, server(1));
+        PaxosLog log = new PaxosLog();
+        long before = usedHeap();
+        for (int i = PaxosLog.LOG_INITIAL; i < PaxosLog.LOG_INITIAL + slots; i++) {
+            log.updateLog(i, new LogEntry(i, new Ballot(ballot), null, PaxosLogSlotStatus.CHOSEN));
+        }
+        long after = usedHeap();
+        assertTrue(log.getLastNonEmpty() > 0);
+        return ((double) (after - before)) / slots;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void reportConflicts(String name, double conflictRate, int numServers, int numClients, int millis)
+            throws InterruptedException {
+        Address[] servers = PaxosTest.servers(numServers);
+        runState = new RunState(PaxosTest.builder(servers).build());
+        for (Address server : servers) {
+            runState.addServer(server);
+        }
+        for (int i = 1; i <= numClients; i++) {
+            runState.addClientWorker(client(i), new ConflictWorkload(conflictRate));
+        }
+        runSettings.waitForClients(false);
+        runState.start(runSettings);
+        Thread.sleep(500);
+
+        int start = numResults();
+        Thread.sleep(millis);
+        int ops = numResults() - start;
+        long maxWait = 0;
+        for (ClientWorker cw : runState.clientWorkers()) {
+            maxWait = Math.max(maxWait, cw.maxWaitTimeMilis());
+        }
+        int fast = 0, slow = 0;
+        for (Node n : runState.servers()) {
+            fast += ((PaxosServer) n).instanceLog().fastCommits();
+            slow += ((PaxosServer) n).instanceLog().slowCommits();
+        }
+        runState.stop();
+        runSettings.resetNetwork();
+
+        System.out.println(String.format(
+                "%s, %2.0f%% conflicts: %.0f ops/s, mean latency %.2f ms, max %d ms, %d fast / %d slow commits",
+                name, conflictRate * 100, ops * 1000.0 / millis, ((double) numClients * millis) / Math.max(ops, 1),
+                maxWait, fast, slow));
+        assertTrue(ops > 0);
+    }
+
+    @Test(timeout = 30 * 1000)
+    @PrettyTestName("Commit stall under intermittent partitions, plain elections")
+    @Category(RunTests.class)
+    public void test01ChaosCommitStall() throws InterruptedException {
+        reportChaos("elections", runChaos(5, 10, 600, 600));
+    }
+
+    @Test(timeout = 30 * 1000)
+    @PrettyTestName("Commit stall under intermittent partitions, pre-vote")
+    @Category(RunTests.class)
+    public void test02ChaosCommitStallPreVote() throws InterruptedException {
+        PaxosServer.PRE_VOTE = true;
+        reportChaos("pre-vote", runChaos(5, 10, 600, 600));
+    }
+
+    @Test(timeout = 30 * 1000)
+    @PrettyTestName("Failover gap, leader failure vs leader transfer")
+    @Category(RunTests.class)
+    public void test03FailoverGap() throws InterruptedException {
+        int rounds = 5;
+        double failure = failoverGap(5, rounds, false);
+        runSettings.resetNetwork();
+        double transfer = failoverGap(5, rounds, true);
+        System.out.println(String.format("failover gap: %.1f ms after leader failure, %.1f ms after leader transfer",
+                failure, transfer));
+    }
+
+    @Test(timeout = 30 * 1000)
+    @PrettyTestName("Messages per committed op, broadcast vs cached leader")
+    @Category(RunTests.class)
+    public void test04MessagesPerOp() throws InterruptedException {
+        int numServers = 5, numClients = 5, rounds = 200;
+
+        PaxosClient.CACHE_LEADER = false;
+        double broadcast = messagesPerOp(numServers, numClients, rounds);
+        runState.stop();
+
+        PaxosClient.CACHE_LEADER = true;
+        double unicast = messagesPerOp(numServers, numClients, rounds);
+        System.out.println(String.format("messages per op: %.1f with client broadcast, %.1f with cached leader",
+                broadcast, unicast));
+    }
+
+    @Test(timeout = 30 * 1000)
+    @PrettyTestName("Throughput, single leader vs multi-leader")
+    @Category(RunTests.class)
+    public void test05MultiLeaderThroughput() throws InterruptedException {
+        int millis = 2000;
+        for (int numServers : new int[]{3, 5}) {
+            // clients pick their initial server by address, so 2 per server spreads them evenly
+            int numClients = 2 * numServers;
+
+            PaxosServer.MULTI_LEADER = false;
+            int single = throughput(numServers, numClients, millis);
+            runSettings.resetNetwork();
+
+            PaxosServer.MULTI_LEADER = true;
+            int multi = throughput(numServers, numClients, millis);
+            runSettings.resetNetwork();
+
+            System.out.println(String.format("%d servers: %.0f ops/s single leader, %.0f ops/s multi-leader",
+                    numServers, single * 1000.0 / millis, multi * 1000.0 / millis));
+            assertTrue(multi > 0);
+        }
+    }
+
+    @Test(timeout = 30 * 1000)
+    @PrettyTestName("Throughput and latency by conflict rate, Multi-Paxos vs fast path")
+    @Category(RunTests.class)
+    public void test06FastPathConflicts() throws InterruptedException {
+        // warm up both paths first, the first runs in a JVM are much slower
+        PaxosServer.FAST_PATH = true;
+        reportConflicts("warm-up", 0, 5, 10, 1000);
+        PaxosServer.FAST_PATH = false;
+        reportConflicts("warm-up", 0, 5, 10, 1000);
+
+        for (double conflictRate : new double[]{0, 0.02, 0.25}) {
+            PaxosServer.FAST_PATH = false;
+            reportConflicts("multi-paxos", conflictRate, 5, 10, 1500);
+
+            PaxosServer.FAST_PATH = true;
+            reportConflicts("fast path", conflictRate, 5, 10, 1500);
+        }
+    }
+
+    @Test(timeout = 30 * 1000)
+    @PrettyTestName("Throughput with large values, payloads in Paxos messages vs disseminated once")
+    @Category(RunTests.class)
+    public void test07SeparatePayloads() throws InterruptedException {
+        int millis = 2000;
+        for (int valueSize : new int[]{1024, 64 * 1024}) {
+            PaxosServer.SEPARATE_PAYLOADS = false;
+            int inline = largeValueThroughput(5, 5, valueSize, millis);
+
+            PaxosServer.SEPARATE_PAYLOADS = true;
+            int separate = largeValueThroughput(5, 5, valueSize, millis);
+
+            System.out.println(String.format("%d byte values: %.0f ops/s inline payloads, %.0f ops/s separate payloads",
+                    valueSize, inline * 1000.0 / millis, separate * 1000.0 / millis));
+            assertTrue(separate > 0);
+        }
+    }
+
+    @Test(timeout = 60 * 1000)
+    @PrettyTestName("Failover gap and duplicate requests by injected latency, fixed vs adaptive timeouts")
+    @Category(RunTests.class)
+    public void test08AdaptiveTimeouts() throws InterruptedException {
+        int rounds = 2;
+        for (int latencyMillis : new int[]{0, 5, 20}) {
+            for (boolean adaptive : new boolean[]{false, true}) {
+                PaxosServer.ADAPTIVE_TIMEOUTS = adaptive;
+                PaxosClient.ADAPTIVE_RETRY = adaptive;
+                LatencyRunSettings settings = new LatencyRunSettings(latencyMillis);
+                runSettings = settings;
+
+                double gap = failoverGap(5, rounds, false);
+                int ops = numResults();
+                System.out.println(String.format(
+                        "%2d ms latency, %s timeouts: failover gap %.1f ms, %d ops, %.3f duplicate requests per op",
+                        latencyMillis, adaptive ? "adaptive" : "fixed", gap, ops,
+                        ((double) settings.duplicateRequests.get()) / Math.max(ops, 1)));
+                assertTrue(ops > 0);
+            }
+        }
+    }
+
+    @Test(timeout = 60 * 1000)
+    @PrettyTestName("Throughput of two replicas and a witness, healthy and with a replica down")
+    @Category(RunTests.class)
+    public void test09Witness() throws InterruptedException {
+        int millis = 2000;
+        int[] ops = witnessThroughput(2, 5, 1024, millis);
+        System.out.println(String.format("2 replicas + witness: %.0f ops/s healthy, %.0f ops/s with a replica down",
+                ops[0] * 1000.0 / millis, ops[1] * 1000.0 / millis));
+        assertTrue(ops[0] > 0);
+        assertTrue(ops[1] > 0);
+    }
+
+    @Test(timeout = 60 * 1000)
+    @PrettyTestName("Log memory per slot, ballot copies vs interned ballots")
+    @Category(RunTests.class)
+    public void test10LogFootprint() {
+        int slots = 1_000_000;
+        PaxosLog.INTERN_BALLOTS = false;
+        double copies = logBytesPerSlot(slots);
+        PaxosLog.INTERN_BALLOTS = true;
+        double interned = logBytesPerSlot(slots);
+        System.out.println(String.format("%.1f bytes per slot with ballot copies, %.1f bytes per slot interned",
+                copies, interned));
+    }
+
+    @Test(timeout = 120 * 1000)
+    @PrettyTestName("Throughput, commit latency and network cost by group size, clients, keys and values")
+    @Category(RunTests.class)
+    public void test11Harness() throws InterruptedException {
+        PaxosBenchmark.Settings[] matrix = {
+                new PaxosBenchmark.Settings().numServers(3).numClients(1),
+                new PaxosBenchmark.Settings().numServers(3).numClients(10),
+                new PaxosBenchmark.Settings().numServers(5).numClients(10),
+                new PaxosBenchmark.Settings().numServers(3).numClients(10)
+                        .keyDistribution(PaxosBenchmark.KeyDistribution.ZIPFIAN),
+                new PaxosBenchmark.Settings().numServers(3).numClients(10)
+                        .keyDistribution(PaxosBenchmark.KeyDistribution.PER_CLIENT),
+                new PaxosBenchmark.Settings().numServers(3).numClients(10).valueSize(16 * 1024),
+        };
+        for (PaxosBenchmark.Settings settings : matrix) {
+            PaxosBenchmark.Results results = PaxosBenchmark.run(settings);
+            System.out.println(results);
+            assertTrue(results.opsPerSecond > 0);
+        }
+
+        // single-node hot paths: appending, choosing and executing a slot, and counting its votes
+        Address[] servers = PaxosTest.servers(3);
+        Ballot ballot = new Ballot(1, servers[0]);
+        PaxosLog log = new PaxosLog();
+        VoteTracker voteTracker = new VoteTracker(servers, log);
+        System.out.println(String.format("%.0f ns per slot to propose, reach quorum and execute",
+                PaxosBenchmark.microBenchmark("paxos-log-slot", () -> {
+                    LogEntry entry = voteTracker.createLogEntry(ballot, null);
+                    voteTracker.addLogEntry(entry);
+                    voteTracker.vote(servers[0], entry, true);
+                    voteTracker.vote(servers[1], entry, true);
+                    log.getAndIncrementFirstUnexecuted();
+                    log.garbageCollect(entry.slot());
+                }, 1_000_000)));
+        System.out.println("results appended to " + PaxosBenchmark.RESULTS_FILE);
+    }
+}
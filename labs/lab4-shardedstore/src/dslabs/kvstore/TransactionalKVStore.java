@@ -18,11 +18,12 @@ public class TransactionalKVStore extends KVStore {
      * A simple, single-round transaction (i.e., a transaction whose read and
      * write sets are known a priori).
      */
-    public interface Transaction extends KVStoreCommand {
+    public interface Transaction extends MultiKeyCommand {
         Set<String> readSet();
 
         Set<String> writeSet();
 
+        @Override
         default Set<String> keySet() {
             return Sets.union(readSet(), writeSet());
         }
@@ -145,11 +146,39 @@ public class TransactionalKVStore extends KVStore {
     public static final class SwapOk implements KVStoreResult {
     }
 
+    /**
+     * Returns a store holding the given keys' values in db, to {@link #merge} a transaction's writes from. Keys missing
+     * from db are left out, so merging removes them.
+     */
+    public static KVStore written(Map<String, String> db, Set<String> keys) {
+        KVStore written = new TransactionalKVStore();
+        for (String key : keys) {
+            if (db.containsKey(key)) {
+                written.execute(new Put(key, db.get(key)));
+            }
+        }
+        return written;
+    }
+
+    @Override
+    protected KVStore emptyStore() {
+        return new TransactionalKVStore();
+    }
+
     @Override
     public KVStoreResult execute(Command command) {
         if (command instanceof Transaction) {
             Transaction t = (Transaction) command;
-            // Your code here...
+            Map<String, String> db = new HashMap<>();
+            for (String key : t.keySet()) {
+                KVStoreResult r = super.execute(new Get(key));
+                if (r instanceof GetResult) {
+                    db.put(key, ((GetResult) r).value());
+                }
+            }
+            KVStoreResult result = t.run(db);
+            merge(written(db, t.writeSet()), t.writeSet());
+            return result;
         }
 
         return super.execute(command);
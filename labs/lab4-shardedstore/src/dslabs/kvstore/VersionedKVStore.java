@@ -0,0 +1,136 @@
+package dslabs.kvstore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+
+/**
+ * A {@link TransactionalKVStore} that also keeps the values its keys had, by the timestamp they were written at, so a
+ * read at a snapshot timestamp doesn't see later writes. Whoever writes to the store stamps the keys it wrote with
+ * {@link #version}. Versions more than {@link #RETENTION} older than the newest version of their key are dropped on
+ * the next write of the key, except for the one a read at that age still needs.
+ */
+@EqualsAndHashCode(callSuper = true)
+@ToString(callSuper = true)
+public class VersionedKVStore extends TransactionalKVStore {
+    /**
+     * How far back from the newest timestamp of the store snapshot reads are answered, in timestamp units.
+     */
+    public static long RETENTION = 1_000_000;
+
+    private final Map<String, TreeMap<Long, String>> versions = new HashMap<>(); // a null value marks a removal
+    private long timestamp; // newest timestamp of the store, or of the group that last held it
+
+    /**
+     * Records the current values of the given keys as their versions at ts, which must be newer than any version of
+     * those keys here.
+     */
+    public void version(Set<String> keys, long ts) {
+        for (String key : keys) {
+            KVStoreResult r = execute(new Get(key));
+            TreeMap<Long, String> history = versions.computeIfAbsent(key, k -> new TreeMap<>());
+            history.put(ts, r instanceof GetResult ? ((GetResult) r).value() : null);
+            Long oldest = history.floorKey(ts - RETENTION);
+            if (oldest != null) {
+                history.headMap(oldest, false).clear();
+            }
+            if (history.size() == 1 && history.firstEntry().getValue() == null) {
+                versions.remove(key);
+            }
+        }
+        advance(ts);
+    }
+
+    /**
+     * Moves the store's timestamp up to ts without writing anything, for a store leaving a group whose clock is ahead
+     * of its newest version.
+     */
+    public void advance(long ts) {
+        timestamp = Math.max(timestamp, ts);
+    }
+
+    public long timestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the values the given keys had at ts, leaving out keys that had none, or null if versions that old may
+     * have been dropped
+     */
+    public Map<String, String> readAt(Set<String> keys, long ts) {
+        if (ts < timestamp - RETENTION) {
+            return null;
+        }
+        Map<String, String> values = new HashMap<>();
+        for (String key : keys) {
+            TreeMap<Long, String> history = versions.get(key);
+            Map.Entry<Long, String> version = history == null ? null : history.floorEntry(ts);
+            if (version != null && version.getValue() != null) {
+                values.put(key, version.getValue());
+            }
+        }
+        return values;
+    }
+
+    @Override
+    protected KVStore emptyStore() {
+        return new VersionedKVStore();
+    }
+
+    @Override
+    public KVStore partition(Set<String> keys) {
+        VersionedKVStore partition = (VersionedKVStore) super.partition(keys);
+        partition.copyVersions(this, keys);
+        return partition;
+    }
+
+    @Override
+    public void merge(KVStore partition, Set<String> keys) {
+        super.merge(partition, keys);
+        if (partition instanceof VersionedKVStore) {
+            for (String key : keys) {
+                versions.remove(key);
+            }
+            copyVersions((VersionedKVStore) partition, keys);
+        }
+    }
+
+    /**
+     * Splits by the keys that have a value or versions, so removed keys keep their history.
+     */
+    @Override
+    public List<KVStore> split(int maxKeys) {
+        TreeSet<String> all = new TreeSet<>(keys());
+        all.addAll(versions.keySet());
+        List<String> keys = new ArrayList<>(all);
+        List<KVStore> parts = new ArrayList<>();
+        for (int i = 0; i == 0 || i < keys.size(); i += maxKeys) {
+            parts.add(partition(new TreeSet<>(keys.subList(i, Math.min(i + maxKeys, keys.size())))));
+        }
+        return parts;
+    }
+
+    @Override
+    public void absorb(KVStore part) {
+        super.absorb(part);
+        if (part instanceof VersionedKVStore) {
+            copyVersions((VersionedKVStore) part, ((VersionedKVStore) part).versions.keySet());
+        }
+    }
+
+    private void copyVersions(VersionedKVStore from, Set<String> keys) {
+        for (String key : keys) {
+            TreeMap<Long, String> history = from.versions.get(key);
+            if (history != null) {
+                versions.put(key, new TreeMap<>(history));
+            }
+        }
+        advance(from.timestamp);
+    }
+}
@@ -1,10 +1,12 @@
 package dslabs.shardkv;
 
+import dslabs.atmostonce.AMOApplication;
 import dslabs.atmostonce.AMOCommand;
 import dslabs.atmostonce.AMOResult;
 import dslabs.framework.Command;
 import dslabs.framework.Message;
 import dslabs.framework.Result;
+import dslabs.kvstore.KVStore;
 import dslabs.shardmaster.ShardMaster.Query;
 import lombok.Data;
 
@@ -16,5 +18,45 @@ final class ShardStoreRequest implements Message {
 @Data
 final class ShardStoreReply implements Message {
     private final Result result;
+    private final long timestamp; // clock of the partition that answered a client, for ShardStoreServer.SNAPSHOT_READS
+
+    ShardStoreReply(Result result, long timestamp) {
+        this.result = result;
+        this.timestamp = timestamp;
+    }
+
+    ShardStoreReply(Result result) {
+        this(result, 0);
+    }
+}
+
+/**
+ * Asks a replica of the group a shard moves away from for count chunks of it, starting at offset.
+ */
+@Data
+final class ShardChunkRequest implements Message {
+    private final int configNum;
+    private final int partition;
+    private final int shard;
+    private final int offset;
+    private final int count;
 }
 
+@Data
+final class ShardChunk implements Message {
+    private final int configNum;
+    private final int partition;
+    private final int shard;
+    private final int index;
+    private final AMOApplication<KVStore> data; // only the first chunk carries the shard's client results
+}
+
+/**
+ * Tells the group a shard moved away from that this replica holds all of its chunks.
+ */
+@Data
+final class ShardTransferDone implements Message {
+    private final int configNum;
+    private final int partition;
+    private final int shard;
+}
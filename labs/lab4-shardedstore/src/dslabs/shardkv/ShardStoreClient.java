@@ -7,14 +7,22 @@ import dslabs.framework.Client;
 import dslabs.framework.Command;
 import dslabs.framework.Result;
 import dslabs.kvstore.KVStore;
+import dslabs.kvstore.TransactionalKVStore.Transaction;
 import dslabs.paxos.PaxosReply;
 import dslabs.paxos.PaxosRequest;
 import dslabs.shardmaster.ShardMaster;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.NonNull;
 import lombok.ToString;
 import org.apache.commons.lang3.tuple.Pair;
 
@@ -28,6 +36,20 @@ public class ShardStoreClient extends ShardStoreNode implements Client {
 
   public static final boolean PRINT_DEBUG = false;
 
+  /**
+   * Single key commands sent at once, each group gets the ones on its shards in one request. A shard runs its commands
+   * of the batch in order, the groups run theirs in parallel.
+   */
+  @Data
+  public static final class Batch implements Command {
+    @NonNull private final List<Command> commands;
+  }
+
+  @Data
+  public static final class BatchResult implements Result {
+    @NonNull private final List<Result> results; // in the order of the batch's commands
+  }
+
 
   private final Map<Integer, Set<Address>> shardMappings;
 
@@ -36,6 +58,16 @@ public class ShardStoreClient extends ShardStoreNode implements Client {
   private int seqNum;
   private ShardStoreRequest request;
   private Result result;
+  private int aborts; // of the transaction in flight, in a row
+  private long clock; // newest partition clock a reply carried, snapshot reads are timestamped no older
+
+  // the read-only transaction in flight with ShardStoreServer.SNAPSHOT_READS, values at snapshotTimestamp so far
+  private long snapshotTimestamp;
+  private final Set<String> snapshotKeys;
+  private final Map<String, String> snapshotValues;
+
+  private final Map<Integer, Result> batchResults; // of the batch in flight, by the index of their command
+  private int batchAttempt; // sends of batches so far, of the latest one's BatchTimer
 
   /* -------------------------------------------------------------------------
       Construction and Initialization
@@ -43,6 +75,9 @@ public class ShardStoreClient extends ShardStoreNode implements Client {
   public ShardStoreClient(Address address, Address[] shardMasters, int numShards) {
     super(address, shardMasters, numShards);
     shardMappings = new HashMap<>();
+    snapshotKeys = new HashSet<>();
+    snapshotValues = new HashMap<>();
+    batchResults = new HashMap<>();
 
     seqNum = 0;
     request = null;
@@ -52,7 +87,8 @@ public class ShardStoreClient extends ShardStoreNode implements Client {
   @Override
   public synchronized void init() {
     getShardMasterConfig();
-    set(new ConfigurationTimer(), ConfigurationTimer.RETRY_MILLIS);
+    set(new ConfigurationTimer(), ShardStoreServer.WATCH_CONFIGS ? ConfigurationTimer.WATCH_MILLIS
+        : ConfigurationTimer.RETRY_MILLIS);
   }
 
   /* -------------------------------------------------------------------------
@@ -62,8 +98,27 @@ public class ShardStoreClient extends ShardStoreNode implements Client {
   public synchronized void sendCommand(Command command) {
     request = new ShardStoreRequest(new AMOCommand(seqNum, this.address(), command));
     result = null;
-
-    if (curConfig != null) {
+    aborts = 0;
+
+    if (command instanceof Batch) {
+      batchResults.clear();
+      Map<Integer, Command> commands = new TreeMap<>();
+      for (Command c : ((Batch) command).commands()) {
+        if (!(c instanceof KVStore.SingleKeyCommand)) {
+          throw new IllegalArgumentException("only single key commands can be batched");
+        }
+        commands.put(commands.size(), c);
+      }
+      sendBatch(commands);
+      return;
+    }
+    if (snapshot(command)) {
+      sendSnapshotRead();
+    } else if (sequenced(command)) {
+      // the group holding its routing key answers once it ran
+      broadcastToShardMasters(new PaxosRequest(new AMOCommand(seqNum, address(),
+          new ShardMaster.Sequence((AMOCommand) request.command()))));
+    } else if (curConfig != null) {
       broadcast(request, commandToReplicaGroup(command));
       debugMsg("sending request " + seqNum);
     } else {
@@ -91,7 +146,53 @@ public class ShardStoreClient extends ShardStoreNode implements Client {
       Message Handlers
      -----------------------------------------------------------------------*/
   private synchronized void handleShardStoreReply(ShardStoreReply m, Address sender) {
+    clock = Math.max(clock, m.timestamp());
+    if (m.result() instanceof WrongGroup) {
+      WrongGroup wrong = (WrongGroup) m.result();
+      if (!hasResult() && ((AMOCommand) request.command()).num() == wrong.num()) {
+        debugSenderMsg(sender, "wrong group for", Integer.toString(wrong.num()), "on config",
+            Integer.toString(wrong.configNum()));
+        if (wrong.config() != null) {
+          updateConfig(wrong.config()); // re-routes if it is newer
+        } else if (curConfig == null || wrong.configNum() > curConfig.configNum()) {
+          getShardMasterConfig();
+        }
+      }
+      return;
+    }
+    if (m.result() instanceof AMOResult && ((AMOResult) m.result()).result() instanceof BatchResults) {
+      if (!hasResult() && ((AMOCommand) request.command()).num() == ((AMOResult) m.result()).num()) {
+        handleBatchResults((BatchResults) ((AMOResult) m.result()).result());
+      }
+      return;
+    }
+    if (m.result() instanceof SnapshotValues) {
+      SnapshotValues values = (SnapshotValues) m.result();
+      if (!hasResult() && ((AMOCommand) request.command()).num() == values.num()
+          && values.timestamp() == snapshotTimestamp) {
+        snapshotKeys.addAll(values.keys());
+        snapshotValues.putAll(values.values());
+        Transaction txn = (Transaction) ((AMOCommand) request.command()).command();
+        if (snapshotKeys.containsAll(txn.readSet())) {
+          result = txn.run(new HashMap<>(snapshotValues));
+          notify();
+        }
+      }
+      return;
+    }
     if (!hasResult() && ((AMOCommand) (request.command())).num() == ((AMOResult) (m.result())).num()) {
+      if (((AMOResult) m.result()).result() instanceof TxnAborted) {
+        // lost a lock conflict, run it again under the next sequence number once its timer fires or the config
+        // changes. The random backoff grows with the aborts in a row, so two transactions that abort each other don't
+        // keep retrying in lockstep.
+        seqNum++;
+        aborts++;
+        request = new ShardStoreRequest(new AMOCommand(seqNum, address(), ((AMOCommand) request.command()).command()));
+        int backoff = Math.min(ClientTimer.RETRY_MILLIS, ClientTimer.ABORT_BACKOFF_MILLIS << Math.min(aborts, 5));
+        set(new ClientTimer(request), 1 + ThreadLocalRandom.current().nextInt(backoff));
+        return;
+      }
+      aborts = 0;
       result = ((AMOResult) (m.result())).result();
       notify();
     }
@@ -101,17 +202,19 @@ public class ShardStoreClient extends ShardStoreNode implements Client {
     if (m.result() instanceof ShardMaster.ShardConfig) {
       ShardMaster.ShardConfig config = (ShardMaster.ShardConfig) m.result();
       debugSenderMsg(sender, "ack config ", Integer.toString(config.configNum()));
-      if (curConfig == null || config.configNum() > curConfig.configNum()) {
-        curConfig = config;
-        shardMappings.clear();
-
-        for (Pair<Set<Address>, Set<Integer>> e : curConfig.groupInfo().values()) {
-          for (int i : e.getRight()) {
-            shardMappings.put(i, e.getLeft());
-          }
+      updateConfig(config);
+    } else if (m.result() instanceof ShardMaster.ConfigDeltas) {
+      ShardMaster.ConfigDeltas deltas = (ShardMaster.ConfigDeltas) m.result();
+      if (curConfig != null && curConfig.configNum() == deltas.fromConfigNum() && !deltas.deltas().isEmpty()) {
+        ShardMaster.ShardConfig config = curConfig;
+        for (ShardMaster.ConfigDelta delta : deltas.deltas()) {
+          config = config.apply(delta);
         }
+        debugSenderMsg(sender, "ack config delta ", Integer.toString(config.configNum()));
+        updateConfig(config);
       }
     } else if(m.result() instanceof ShardMaster.Error){ //ShardMaster not chosen initial config
+    } else if (m.result() instanceof AMOResult) { // the sequencer took a transaction
     } else {
       throw new Error("unhandled");
     }
@@ -128,15 +231,36 @@ public class ShardStoreClient extends ShardStoreNode implements Client {
     } else if (request.equals(t.request()) && result == null) {
       debugMsg("resending request " + seqNum);
 
-      broadcast(request, commandToReplicaGroup(((AMOCommand)t.request().command()).command()));
+      Command command = ((AMOCommand) t.request().command()).command();
+      if (snapshot(command)) {
+        // at a new timestamp, a group may have dropped the read or no longer keep versions that old
+        sendSnapshotRead();
+        set(t, ClientTimer.RETRY_MILLIS);
+        return;
+      }
+      if (sequenced(command)) {
+        // sequenced at most once, the routing group resends the result if it ran already
+        broadcastToShardMasters(new PaxosRequest(new AMOCommand(seqNum, address(),
+            new ShardMaster.Sequence((AMOCommand) request.command()))));
+      }
+      broadcast(request, commandToReplicaGroup(command));
 
       set(t, ClientTimer.RETRY_MILLIS);
     }
   }
 
+  private synchronized void onBatchTimer(BatchTimer t) {
+    if (hasResult() || t.num() != ((AMOCommand) request.command()).num() || t.attempt() != batchAttempt) {
+      return;
+    }
+    Map<Integer, Command> missing = missingBatchCommands();
+    debugMsg("resending " + missing.size() + " commands of batch " + seqNum);
+    sendBatch(missing);
+  }
+
   private synchronized void onConfigurationTimer(ConfigurationTimer t) {
     getShardMasterConfig();
-    set(t, ConfigurationTimer.RETRY_MILLIS);
+    set(t, ShardStoreServer.WATCH_CONFIGS ? ConfigurationTimer.WATCH_MILLIS : ConfigurationTimer.RETRY_MILLIS);
   }
 
     /* -------------------------------------------------------------------------
@@ -144,17 +268,138 @@ public class ShardStoreClient extends ShardStoreNode implements Client {
    -----------------------------------------------------------------------*/
 
   private Set<Address> commandToReplicaGroup(Command command) {
-    if (command instanceof KVStore.SingleKeyCommand) {
-      KVStore.SingleKeyCommand skc = ((KVStore.SingleKeyCommand) command);
-      int shard = keyToShard(skc.key());
-      return shardMappings.get(shard);
-    } else {
-      throw new Error("unsupported operation");
+    String key = routingKey(command);
+    int shard = curConfig == null ? keyToShard(key) : keyToShard(key, curConfig);
+    return shardMappings.get(shard);
+  }
+
+  /**
+   * Sends each group holding some of the commands one request with them. Only the {@link BatchTimer} armed here resends
+   * them, those of earlier sends are retired.
+   */
+  private void sendBatch(Map<Integer, Command> commands) {
+    set(new BatchTimer(seqNum, ++batchAttempt), ClientTimer.RETRY_MILLIS);
+    if (curConfig == null) {
+      getShardMasterConfig();
+      return;
+    }
+    Map<Set<Address>, Map<Integer, Command>> groups = new HashMap<>();
+    for (Map.Entry<Integer, Command> e : commands.entrySet()) {
+      groups.computeIfAbsent(commandToReplicaGroup(e.getValue()), g -> new TreeMap<>()).put(e.getKey(), e.getValue());
+    }
+    for (Map.Entry<Set<Address>, Map<Integer, Command>> e : groups.entrySet()) {
+      ShardStoreRequest req = new ShardStoreRequest(new AMOCommand(seqNum, address(), new CommandBatch(e.getValue())));
+      broadcast(req, e.getKey());
+    }
+  }
+
+  /**
+   * @return the commands of the batch in flight without a result yet, by their index
+   */
+  private Map<Integer, Command> missingBatchCommands() {
+    Map<Integer, Command> missing = new TreeMap<>();
+    List<Command> commands = ((Batch) ((AMOCommand) request.command()).command()).commands();
+    for (int i = 0; i < commands.size(); i++) {
+      if (!batchResults.containsKey(i)) {
+        missing.put(i, commands.get(i));
+      }
+    }
+    return missing;
+  }
+
+  private void handleBatchResults(BatchResults results) {
+    batchResults.putAll(results.results());
+    if (results.config() != null) {
+      updateConfig(results.config());
+    } else if (!results.rejected().isEmpty()) {
+      getShardMasterConfig(); // the group's timer resends them under the newer config
+    }
+    List<Command> commands = ((Batch) ((AMOCommand) request.command()).command()).commands();
+    if (batchResults.size() == commands.size()) {
+      List<Result> ordered = new ArrayList<>();
+      for (int i = 0; i < commands.size(); i++) {
+        ordered.add(batchResults.get(i));
+      }
+      result = new BatchResult(ordered);
+      notify();
+    }
+  }
+
+  private static boolean snapshot(Command command) {
+    return ShardStoreServer.SNAPSHOT_READS && command instanceof Transaction && command.readOnly();
+  }
+
+  /**
+   * Sends every group holding keys of the read-only transaction a {@link SnapshotRead} of them, at a new timestamp.
+   */
+  private void sendSnapshotRead() {
+    snapshotKeys.clear();
+    snapshotValues.clear();
+    if (curConfig == null) {
+      getShardMasterConfig();
+      return;
+    }
+    // hybrid logical clock: never before a write or read this client saw answered, even if its wall clock is behind
+    snapshotTimestamp = Math.max(wallClock(), clock);
+    Map<Set<Address>, Set<String>> keys = new HashMap<>();
+    for (String key : ((Transaction) ((AMOCommand) request.command()).command()).readSet()) {
+      keys.computeIfAbsent(shardMappings.get(keyToShard(key, curConfig)), g -> new HashSet<>()).add(key);
+    }
+    for (Map.Entry<Set<Address>, Set<String>> e : keys.entrySet()) {
+      broadcast(new ShardStoreRequest(new SnapshotRead(seqNum, snapshotTimestamp, e.getValue())), e.getKey());
+    }
+  }
+
+  private static boolean sequenced(Command command) {
+    return ShardStoreServer.SEQUENCED_TXNS && command instanceof Transaction;
+  }
+
+  private void updateConfig(ShardMaster.ShardConfig config) {
+    if (curConfig == null || config.configNum() > curConfig.configNum()) {
+      curConfig = config;
+      if (ShardStoreServer.WATCH_CONFIGS) {
+        getShardMasterConfig(); // the watch was answered, register the next one
+      }
+      shardMappings.clear();
+
+      for (Pair<Set<Address>, Set<Integer>> e : curConfig.groupInfo().values()) {
+        for (int i : e.getRight()) {
+          shardMappings.put(i, e.getLeft());
+        }
+      }
+      if (ShardStoreServer.WRONG_GROUP_REPLIES) {
+        reroute();
+      }
+    }
+  }
+
+  /**
+   * Sends the command in flight again under the config just received, instead of waiting for its timer.
+   */
+  private void reroute() {
+    if (request == null || hasResult()) {
+      return;
+    }
+    Command command = ((AMOCommand) request.command()).command();
+    if (command instanceof Batch) {
+      sendBatch(missingBatchCommands());
+    } else if (snapshot(command)) {
+      sendSnapshotRead();
+    } else if (!sequenced(command)) {
+      broadcast(request, commandToReplicaGroup(command));
     }
   }
 
   private void getShardMasterConfig() {
-    broadcastToShardMasters(new PaxosRequest(new AMOCommand(-1, address(), new ShardMaster.Query(-1))));
+    Command query;
+    if (ShardStoreServer.WATCH_CONFIGS) {
+      query = new ShardMaster.Watch(-1, curConfig == null ? ShardMaster.INITIAL_CONFIG_NUM - 1 : curConfig.configNum());
+    } else if (ShardStoreServer.DELTA_CONFIGS && curConfig != null) {
+      query = new ShardMaster.DeltaQuery(-1, curConfig.configNum());
+    } else {
+      query = new ShardMaster.Query(-1);
+    }
+    broadcastToShardMasters(new PaxosRequest(new AMOCommand(-1, address(), query)));
   }
 
     /* -------------------------------------------------------------------------
@@ -1,28 +1,31 @@
 package dslabs.shardkv;
 
-import dslabs.atmostonce.AMOApplication;
+import dslabs.atmostonce.AMOCommand;
 import dslabs.framework.Address;
 import dslabs.framework.Command;
 import dslabs.framework.Result;
-import dslabs.kvstore.KVStore;
+import dslabs.shardmaster.ShardMaster;
 import lombok.Data;
 import org.checkerframework.checker.units.qual.C;
 
 import java.util.Collection;
 import java.util.Map;
+import java.util.Set;
 
 
 @Data
 final class ShardMove implements Command {
     private final int configNum;
     private final Collection<Address> group;
-    private final Map<Integer, AMOApplication<KVStore>> shardsToMove;
+    private final int partition; // the Paxos group of the shards on both ends, see ShardStoreServer.PAXOS_GROUPS
+    private final Map<Integer, Integer> shardChunks; // shard -> number of ShardChunks it is streamed in
 }
 
 @Data
 final class ShardMoveAck implements Result {
     private final int configNum;
     private final int group;
+    private final int partition;
 }
 
 @Data
@@ -30,6 +33,154 @@ final class ResultWrapper implements Command {
     private final Result result;
 }
 
+/**
+ * Takes a partition from config fromConfigNum straight to config, past configs that leave its shards where they are.
+ */
+@Data
+final class ConfigJump implements Result {
+    private final int fromConfigNum;
+    private final ShardMaster.ShardConfig config;
+}
+
+/**
+ * Starts the two-phase commit of a client's transaction at the partition holding its routing key, which coordinates it.
+ */
+@Data
+final class TxnStart implements Command {
+    private final AMOCommand command;
+}
+
+/**
+ * Asks a participant partition to lock its keys of a client's transaction and vote on committing it.
+ */
+@Data
+final class TxnPrepare implements Command {
+    private final int configNum;
+    private final AMOCommand command;
+    private final Collection<Address> coordinator;
+    private final int coordinatorPartition;
+    private final int group; // the participant
+    private final int partition;
+}
+
+@Data
+final class TxnVote implements Result {
+    private final Address client;
+    private final int num;
+    private final int coordinatorPartition;
+    private final int group;
+    private final int partition;
+    private final boolean prepared;
+    private final Map<String, String> values; // of the participant's keys of the transaction that have one
+    private final long timestamp; // the transaction commits at or after it, see ShardStoreServer.SNAPSHOT_READS
+}
+
+/**
+ * Commits a prepared transaction, writing values to the participant's keys of its write set and removing the ones
+ * left out, or aborts it.
+ */
+@Data
+final class TxnDecision implements Command {
+    private final Address client;
+    private final int num;
+    private final Collection<Address> coordinator;
+    private final int coordinatorPartition;
+    private final int group;
+    private final int partition;
+    private final boolean commit;
+    private final Map<String, String> values;
+    private final long timestamp; // of the commit, the newest of the participants' votes
+}
+
+@Data
+final class TxnDone implements Result {
+    private final TxnDecision decision;
+}
+
+/**
+ * The transaction lost a lock conflict or ran into a reconfiguration, the client sends it again as a new command.
+ */
+@Data
+final class TxnAborted implements Result {
+}
+
+/**
+ * A closed epoch of the ShardMaster's sequencer, for a partition to queue its transactions in order. If first, it was
+ * the first epoch the ShardMaster sent, and a partition that hasn't queued the ones before it skips them.
+ */
+@Data
+final class SequencedEpoch implements Command {
+    private final ShardMaster.Epoch epoch;
+    private final boolean first;
+}
+
+/**
+ * A participant's values of its keys of a sequenced transaction, which every other participant needs to run it.
+ */
+@Data
+final class TxnReads implements Command {
+    private final int epoch;
+    private final int index; // of the transaction in the epoch
+    private final int group; // the sender
+    private final int fromPartition;
+    private final int partition;
+    private final Map<String, String> values;
+}
+
+/**
+ * A client's read-only transaction, read at a snapshot timestamp by any replica holding the keys without going through
+ * Paxos. It carries the keys of the transaction the receiving group holds.
+ */
+@Data
+final class SnapshotRead implements Command {
+    private final int num;
+    private final long timestamp;
+    private final Set<String> keys;
+}
+
+@Data
+final class SnapshotValues implements Result {
+    private final int num;
+    private final long timestamp;
+    private final Set<String> keys;
+    private final Map<String, String> values; // of the keys that had one at the timestamp
+}
+
+/**
+ * Moves a partition's clock up to timestamp, so it answers snapshot reads that far and writes after it.
+ */
+@Data
+final class ClockTick implements Command {
+    private final long timestamp;
+}
+
+/**
+ * The single key commands of a client's batch that one group holds, by their index in the batch. Each partition of the
+ * group runs its share as one Paxos command, a shard's commands in index order.
+ */
+@Data
+final class CommandBatch implements Command {
+    private final Map<Integer, Command> commands;
+}
+
+@Data
+final class BatchResults implements Result {
+    private final Map<Integer, Result> results;
+    private final Set<Integer> rejected; // commands on shards the group doesn't serve
+    private final ShardMaster.ShardConfig config; // hint for the rejected ones, see WrongGroup
+}
+
+/**
+ * Answers a client command on a shard the replica doesn't serve, with the config number it is on. It carries the config
+ * itself when that puts the shard on another group, so the client can re-route right away.
+ */
+@Data
+final class WrongGroup implements Result {
+    private final int num;
+    private final int configNum;
+    private final ShardMaster.ShardConfig config;
+}
+
 //@Data
 //final class NewConfig implements Command {
 //
@@ -1,8 +1,14 @@
 package dslabs.shardkv;
 
 import dslabs.framework.Address;
+import dslabs.framework.Command;
 import dslabs.framework.Message;
 import dslabs.framework.Node;
+import dslabs.kvstore.KVStore;
+import dslabs.kvstore.TransactionalKVStore.Transaction;
+import dslabs.shardmaster.ShardMaster;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.Collections;
 import java.util.LinkedList;
 import lombok.AccessLevel;
@@ -66,4 +72,33 @@ abstract class ShardStoreNode extends Node {
     int keyToShard(String key) {
         return keyToShard(key, numShards);
     }
+
+    /**
+     * Returns the shard holding key in the given config, after the splits and merges of the shard
+     * {@link #keyToShard(String)} gives.
+     */
+    int keyToShard(String key, ShardMaster.ShardConfig config) {
+        return config.leafShard(keyToShard(key), key.hashCode());
+    }
+
+    /**
+     * Returns the key a client command goes to the group of. For a transaction that is its least key, the group holding
+     * it coordinates the transaction's two-phase commit.
+     */
+    static String routingKey(Command command) {
+        if (command instanceof Transaction) {
+            return Collections.min(((Transaction) command).keySet());
+        }
+        return ((KVStore.SingleKeyCommand) command).key();
+    }
+
+    /**
+     * Microseconds of wall time, the physical part of the timestamps of {@link ShardStoreServer#SNAPSHOT_READS}. A
+     * client reads no older than the newest partition clock it was answered with, so it sees its own writes and
+     * everything it read before whatever the skew. Reads see the writes other clients were answered for before only
+     * as far as the clocks agree, which they do in the lab's runs, where every node shares this one.
+     */
+    static long wallClock() {
+        return ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now());
+    }
 }
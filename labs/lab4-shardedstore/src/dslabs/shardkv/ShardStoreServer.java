@@ -2,18 +2,26 @@ package dslabs.shardkv;
 
 import dslabs.atmostonce.AMOApplication;
 import dslabs.atmostonce.AMOCommand;
+import dslabs.atmostonce.AMOResult;
 import dslabs.framework.Address;
 import dslabs.framework.Command;
 import dslabs.framework.Message;
 import dslabs.framework.Result;
 import dslabs.kvstore.KVStore;
+import dslabs.kvstore.TransactionalKVStore;
+import dslabs.kvstore.TransactionalKVStore.Transaction;
+import dslabs.kvstore.VersionedKVStore;
 import dslabs.paxos.PaxosReply;
 import dslabs.paxos.PaxosRequest;
 import dslabs.paxos.PaxosServer;
+import dslabs.paxos.RelayedBatch;
+import dslabs.paxos.RelayedMessage;
 import dslabs.shardmaster.ShardMaster;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
+import org.apache.commons.lang3.tuple.Pair;
 
+import java.io.Serializable;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
@@ -25,19 +33,278 @@ public class ShardStoreServer extends ShardStoreNode {
     public static final boolean PRINT_DEBUG = false;
     private final static int DEFAULT_ADDRESS = 0;
 
-    private long stateTransferMs;
+    /**
+     * Number of independent Paxos groups on each server, multi-Raft style. Shard s is ordered by group
+     * (s - 1) % PAXOS_GROUPS, every group keeps its own config and reconfiguration state for its shards.
+     */
+    public static int PAXOS_GROUPS = 1;
+
+    /**
+     * With more than one group, tick all groups from one timer and send their heartbeats to a peer server in one
+     * {@link RelayedBatch}. This saves messages, not bytes: every group's heartbeat still carries its whole log, which
+     * the leader trims to what its slowest follower hasn't executed on every heartbeat.
+     */
+    public static boolean COALESCE_HEARTBEATS = true;
+
+    /**
+     * Keys per {@link ShardChunk} when a shard moves between groups, and chunks a receiving replica asks for at once.
+     */
+    public static int SHARD_CHUNK_KEYS = 1000;
+    public static int SHARD_CHUNK_WINDOW = 4;
+
+    /**
+     * Keep serving the shards a reconfiguration doesn't move while it is in flight, instead of rejecting every command
+     * of the partition until the last ShardMoveAck arrives.
+     */
+    public static boolean SHARD_AVAILABILITY = true;
+
+    /**
+     * Report the requests each owned shard executed and its size to the ShardMaster every
+     * {@link LoadReportTimer#REPORT_MILLIS}, for {@link ShardMaster#LOAD_AWARE} rebalancing. Every replica counts the
+     * same requests, so the replicas take turns by period and only one of them reports each.
+     */
+    public static boolean REPORT_LOAD = false;
+
+    /**
+     * Once servers and clients have a config, ask the ShardMaster for {@link ShardMaster.ConfigDelta}s from it rather
+     * than for whole configs.
+     */
+    public static boolean DELTA_CONFIGS = true;
+
+    /**
+     * Servers and clients register a {@link ShardMaster.Watch} that the ShardMaster answers when the next config
+     * appears, instead of querying every {@link ConfigurationTimer#RETRY_MILLIS}.
+     */
+    public static boolean WATCH_CONFIGS = false;
+
+    /**
+     * Fetch every config after the current one at once and go straight past the ones that don't change a partition's
+     * shards, moving on to the next fetched config as soon as a reconfiguration finishes instead of at the next poll.
+     */
+    public static boolean SKIP_CONFIGS = true;
+
+    /**
+     * Run a transaction whose keys are all in the coordinating partition as the one Paxos command that starts it,
+     * instead of going through two-phase commit.
+     */
+    public static boolean LOCAL_TXNS = true;
+
+    /**
+     * Send transactions through the ShardMaster's sequencer instead of two-phase commit, Calvin style. Each partition
+     * runs every epoch's transactions in sequence order, trading the values of their keys with the other participants.
+     */
+    public static boolean SEQUENCED_TXNS = false;
+    private static final int RETAINED_READS = 1024; // own reads kept for participants that missed them
+
+    /**
+     * Keep shards in {@link VersionedKVStore}s, stamping every write with the partition's clock, and let clients run
+     * read-only transactions as {@link SnapshotRead}s that any replica answers without locks or Paxos.
+     */
+    public static boolean SNAPSHOT_READS = false;
+
+    /**
+     * Answer client commands on shards this replica doesn't serve with a {@link WrongGroup} instead of dropping them.
+     */
+    public static boolean WRONG_GROUP_REPLIES = true;
+
+    /**
+     * Where a shard stands in the partition's current reconfiguration, only OWNED shards serve clients.
+     */
+    enum ShardState {
+        OWNED,
+        SENDING, // until the new owner acks
+        RECEIVING, // until its ShardMove is installed
+        GONE
+    }
 
     private final Address[] group;
     private final int groupId;
 
     private static final String PAXOS_ADDRESS_ID = "paxos";
-    private Address paxosAddress;
 
-    private ShardMaster.ShardConfig config;
-    private boolean reconfig;
-    private Set<Integer> thingsNeeded;
+    private Partition[] partitions;
+    private PaxosServer[] paxosServers;
+
+    private final Map<Integer, Long> shardRequests = new HashMap<>(); // since the last load report
+    private int shardMasterNum; // of the last command sent to the ShardMaster that isn't read-only
+    private int epochMillis = EpochTimer.EPOCH_MILLIS; // sequenced transactions, backs off while no epochs close
+    private int watchedConfigNum = Integer.MIN_VALUE; // config the last watch was registered from
+    private final TreeMap<Integer, ShardMaster.ShardConfig> fetchedConfigs = new TreeMap<>(); // not applied by all yet
+    private final Map<Address, SnapshotRead> snapshotReads = new HashMap<>(); // client -> its read waiting here
+    private final Map<Address, AMOCommand> parked = new HashMap<>(); // client -> its command waiting on its shard here
 
-    private final Map<Integer, AMOApplication<KVStore>> shards;
+    /**
+     * The shards of one Paxos group on this server, with the reconfiguration state they go through together.
+     */
+    @EqualsAndHashCode
+    @ToString
+    private static final class Partition implements Serializable {
+        private final int index;
+        private final Address paxosAddress;
+
+        private long stateTransferMs;
+
+        private ShardMaster.ShardConfig config;
+        private boolean reconfig;
+        private Set<Integer> thingsNeeded;
+
+        private final Map<Integer, AMOApplication<KVStore>> shards;
+        private final Map<Integer, ShardState> ownership; // GONE shards are left out
+
+        // Shard migration. Chunks are streamed between replicas directly, only the ShardMove marker saying which shards
+        // to install goes through Paxos. None of this is replicated state. The sending group drops its chunks once the
+        // ShardMoveAck is decided, a replica that installed a shard keeps its chunks until the rest of its group has it.
+        private final Map<Integer, Map<Integer, OutgoingShard>> outgoing; // config -> shard -> chunks being sent
+        private final Set<Pair<ShardTransferDone, Address>> peersDone; // from peers, of shards this replica didn't install
+        private final Map<Integer, IncomingShard> incoming; // shard -> chunks being received
+        private final Set<ShardMove> announced; // moves of the current config not proposed yet
+        private ShardMove pendingMove; // decided, but this replica is still missing chunks
+        private boolean transferTimerSet;
+        private final List<Command> blocked; // decided after pendingMove
+
+        // Two-phase commit of transactions. A partition holding either doesn't take a new config, so a transaction's
+        // keys stay put until it is decided.
+        private final Map<Address, TxnCoordination> coordinating; // client -> its transaction coordinated here
+        private final Map<Address, TxnPrepare> prepared; // client -> its transaction holding locks here
+        private final Map<String, Set<Address>> readLocks; // key -> clients of the prepared transactions reading it
+        private final Map<String, Address> writeLocks;
+        private final Map<Address, Integer> finishedTxns; // client -> last transaction decided here
+        private final Set<TxnDecision> unacked; // sent and not confirmed by a participant replica yet, not replicated
+
+        // Sequenced transactions, run in order. The partition doesn't take a config past the one of the first
+        // transaction it has yet to run, so all participants run a transaction under the same config.
+        private int nextEpoch;
+        private int sequencedConfigNum; // of the last epoch queued
+        private final LinkedList<SequencedTxn> sequenced;
+        private final Map<String, Integer> queuedKeys; // key -> queued transactions on it, held off single key commands
+        private final Map<Pair<Integer, Integer>, Map<Pair<Integer, Integer>, Map<String, String>>> txnReads;
+        private final TreeMap<Pair<Integer, Integer>, Map<String, String>> ownReads; // (epoch, index) -> values sent
+
+        // Snapshot reads. Timestamps are microseconds of wall time, hybrid logical style: the clock only moves through
+        // the log, up to a ClockTick or one past itself for a write. Every write after the clock passed a read's
+        // timestamp is newer than it, so the read's values at that timestamp are final.
+        private long clock;
+        private final Map<Address, Long> preparedAt; // client -> timestamp its prepared transaction commits at or after
+        private long tickProposed; // wall time of the last ClockTick proposed here, not replicated
+
+        Partition(int index, Address paxosAddress) {
+            this.index = index;
+            this.paxosAddress = paxosAddress;
+            shards = new HashMap<>();
+            ownership = new HashMap<>();
+            outgoing = new HashMap<>();
+            peersDone = new HashSet<>();
+            incoming = new HashMap<>();
+            announced = new HashSet<>();
+            blocked = new ArrayList<>();
+            coordinating = new HashMap<>();
+            prepared = new HashMap<>();
+            readLocks = new HashMap<>();
+            writeLocks = new HashMap<>();
+            finishedTxns = new HashMap<>();
+            unacked = new HashSet<>();
+            sequencedConfigNum = ShardMaster.INITIAL_CONFIG_NUM - 1;
+            sequenced = new LinkedList<>();
+            queuedKeys = new HashMap<>();
+            txnReads = new HashMap<>();
+            ownReads = new TreeMap<>();
+            preparedAt = new HashMap<>();
+            config = new ShardMaster.ShardConfig(ShardMaster.INITIAL_CONFIG_NUM - 1);
+            thingsNeeded = new HashSet<>();
+            reconfig = false;
+        }
+    }
+
+
+
+    @EqualsAndHashCode
+    @ToString
+    private static final class OutgoingShard implements Serializable {
+        private final int group; // the new owner, this group for the chunks kept for replicas that lag behind
+        private final List<AMOApplication<KVStore>> chunks;
+        private final Set<Address> receivers; // replicas of the new owner still missing chunks
+
+        OutgoingShard(int group, List<AMOApplication<KVStore>> chunks, Collection<Address> receivers) {
+            this.group = group;
+            this.chunks = chunks;
+            this.receivers = new HashSet<>(receivers);
+        }
+    }
+
+    /**
+     * A transaction this partition coordinates, until every participant voted to commit it or one voted against.
+     */
+    @EqualsAndHashCode
+    @ToString
+    private static final class TxnCoordination implements Serializable {
+        private final AMOCommand command;
+        private final Map<Pair<Integer, Integer>, Set<String>> keys; // (group, partition) -> its keys of the transaction
+        private final Set<Pair<Integer, Integer>> waiting; // participants that haven't voted
+        private final Map<String, String> values = new HashMap<>();
+        private long timestamp; // newest of the votes, the transaction commits at it
+
+        TxnCoordination(AMOCommand command, Map<Pair<Integer, Integer>, Set<String>> keys) {
+            this.command = command;
+            this.keys = keys;
+            this.waiting = new HashSet<>(keys.keySet());
+        }
+    }
+
+    /**
+     * A transaction of a sequencer epoch, its participants are found once it is first in line.
+     */
+    @EqualsAndHashCode
+    @ToString
+    private static final class SequencedTxn implements Serializable {
+        private final Pair<Integer, Integer> position; // (epoch, index)
+        private final int configNum;
+        private final AMOCommand command;
+        private Map<Pair<Integer, Integer>, Set<String>> keys;
+
+        SequencedTxn(int epoch, int index, int configNum, AMOCommand command) {
+            this.position = Pair.of(epoch, index);
+            this.configNum = configNum;
+            this.command = command;
+        }
+    }
+
+    @EqualsAndHashCode
+    @ToString
+    private static final class IncomingShard implements Serializable {
+        private final int configNum;
+        private final List<Address> sources;
+        private final int numChunks;
+        private final Map<Integer, AMOApplication<KVStore>> chunks = new HashMap<>();
+        private int requestedUpTo; // chunks below this were asked for
+        private int attempts;
+
+        IncomingShard(int configNum, Collection<Address> sources, int numChunks) {
+            this.configNum = configNum;
+            this.sources = new ArrayList<>(sources);
+            this.numChunks = numChunks;
+        }
+
+        /**
+         * Asks the given replicas first from now on.
+         */
+        void preferSources(Collection<Address> preferred) {
+            sources.removeAll(preferred);
+            sources.addAll(0, preferred);
+            attempts = 0;
+        }
+
+        boolean complete() {
+            return chunks.size() == numChunks;
+        }
+
+        int firstMissing() {
+            int i = 0;
+            while (chunks.containsKey(i)) {
+                i++;
+            }
+            return i;
+        }
+    }
 
 
 
@@ -49,30 +316,52 @@ public class ShardStoreServer extends ShardStoreNode {
         super(address, shardMasters, numShards);
         this.group = group;
         this.groupId = groupId;
-        shards = new HashMap<>();
-        config = new ShardMaster.ShardConfig(ShardMaster.INITIAL_CONFIG_NUM - 1);
-        thingsNeeded = new HashSet<>();
-        reconfig = false;
     }
 
     @Override
     public void init() {
-        // Setup Paxos
-        paxosAddress = Address.subAddress(address(), PAXOS_ADDRESS_ID);
+        // Setup Paxos, one group per partition
+        boolean relayed = PAXOS_GROUPS > 1 && COALESCE_HEARTBEATS;
+        partitions = new Partition[PAXOS_GROUPS];
+        paxosServers = new PaxosServer[PAXOS_GROUPS];
+        for (int p = 0; p < PAXOS_GROUPS; p++) {
+            Address paxosAddress = Address.subAddress(address(), paxosAddressId(p));
+
+            Address[] paxosAddresses = new Address[group.length];
+            for (int i = 0; i < paxosAddresses.length; i++) {
+                paxosAddresses[i] = Address.subAddress(group[i], paxosAddressId(p));
+            }
+
+            PaxosServer paxosServer =
+                    new PaxosServer(paxosAddress, paxosAddresses, address(), relayed);
+            addSubNode(paxosServer);
+            paxosServer.init();
 
-        Address[] paxosAddresses = new Address[group.length];
-        for (int i = 0; i < paxosAddresses.length; i++) {
-            paxosAddresses[i] = Address.subAddress(group[i], PAXOS_ADDRESS_ID);
+            partitions[p] = new Partition(p, paxosAddress);
+            paxosServers[p] = paxosServer;
+        }
+        if (relayed) {
+            set(new PaxosTickTimer(), PaxosServer.TICK_MILLIS);
         }
 
-        PaxosServer paxosServer =
-                new PaxosServer(paxosAddress, paxosAddresses, address());
-        addSubNode(paxosServer);
-        paxosServer.init();
+        if(WATCH_CONFIGS){
+            watchNextConfig(true);
+            set(new ConfigurationTimer(), ConfigurationTimer.WATCH_MILLIS);
+        } else{
+            sendQuery(new ShardMaster.Query(-1)); //TODO:change paxosserver to readonly queries
+            set(new ConfigurationTimer(), ConfigurationTimer.RETRY_MILLIS);
+        }
+        if (REPORT_LOAD) {
+            set(new LoadReportTimer(), LoadReportTimer.REPORT_MILLIS);
+        }
+        if (SEQUENCED_TXNS) {
+            set(new EpochTimer(), EpochTimer.EPOCH_MILLIS);
+        }
 
-        sendQuery(new ShardMaster.Query(-1)); //TODO:change paxosserver to readonly queries
-        set(new ConfigurationTimer(), ConfigurationTimer.RETRY_MILLIS);
+    }
 
+    private static String paxosAddressId(int partition) {
+        return partition == 0 ? PAXOS_ADDRESS_ID : PAXOS_ADDRESS_ID + partition;
     }
 
 
@@ -80,216 +369,1406 @@ public class ShardStoreServer extends ShardStoreNode {
         Message Handlers
        -----------------------------------------------------------------------*/
     private void handleShardStoreRequest(ShardStoreRequest m, Address sender) {
-        if(m.command() instanceof AMOCommand
-        && checkAMOCommand((AMOCommand) m.command())){
-            debugSenderMsg(sender, "ack req " + ((AMOCommand) m.command()).num());
-            processAMOCommand((AMOCommand)m.command(), false);
+        if(m.command() instanceof AMOCommand && ((AMOCommand) m.command()).command() instanceof CommandBatch){
+            splitBatch((AMOCommand) m.command());
+        } else if(m.command() instanceof AMOCommand){
+            Partition p = partitionOf((AMOCommand) m.command());
+            if(checkAMOCommand(p, (AMOCommand) m.command())){
+                debugSenderMsg(sender, "ack req " + ((AMOCommand) m.command()).num());
+                processAMOCommand(p, (AMOCommand)m.command(), false);
+            } else if(WRONG_GROUP_REPLIES){
+                AMOCommand cmd = (AMOCommand) m.command();
+                int shard = keyToShard(routingKey(cmd.command()), p.config);
+                if(Objects.equals(p.config.shardToGroupID().get(shard), groupId)){
+                    // the shard is still coming in or the key is locked, run it as soon as it can
+                    parked.put(cmd.sender(), cmd);
+                } else{
+                    send(new ShardStoreReply(new WrongGroup(cmd.num(), p.config.configNum(), configHint(p, shard))),
+                            sender);
+                }
+            }
         } else if(m.command() instanceof ShardMove){
-            if(checkShardMove((ShardMove) m.command())){
-                processShardMove((ShardMove)m.command(), false);
-            } else if(((ShardMove) m.command()).configNum() <= config.configNum()){
-                sendShardMoveAck(((ShardMove) m.command()).group());
+            Partition p = partitions[((ShardMove) m.command()).partition()];
+            if(checkIncomingShardMove(p, (ShardMove) m.command())){
+                ShardMove move = (ShardMove) m.command();
+                startTransfer(p, move);
+                if(transferComplete(p, move)){
+                    processShardMove(p, move, false);
+                } else{
+                    p.announced.add(move);
+                }
+            } else if(((ShardMove) m.command()).configNum() <= p.config.configNum()){
+                // installed already, ack the move's config: the sender may be on a later one, moving other shards
+                sendShardMoveAck(p, (ShardMove) m.command());
+            }
+        } else if(m.command() instanceof TxnPrepare){
+            processTxnPrepare(partitions[((TxnPrepare) m.command()).partition()], (TxnPrepare) m.command(), false);
+        } else if(m.command() instanceof TxnDecision){
+            processTxnDecision(partitions[((TxnDecision) m.command()).partition()], (TxnDecision) m.command(), false);
+        } else if(m.command() instanceof TxnReads){
+            processTxnReads(partitions[((TxnReads) m.command()).partition()], (TxnReads) m.command(), sender, false);
+        } else if(m.command() instanceof SnapshotRead){
+            SnapshotRead r = (SnapshotRead) m.command();
+            SnapshotRead waiting = snapshotReads.get(sender);
+            if(waiting == null || waiting.num() < r.num()
+            || (waiting.num() == r.num() && waiting.timestamp() < r.timestamp())){
+                snapshotReads.put(sender, r);
             }
+            serveSnapshotRead(sender, snapshotReads.get(sender));
         }
     }
 
     private void handleShardStoreReply(ShardStoreReply m, Address sender) {
-        if(m.result() instanceof ShardMoveAck
-                && checkShardMoveAck((ShardMoveAck) m.result())){
-            processShardMoveAck((ShardMoveAck) m.result(), false);
+        if(m.result() instanceof ShardMoveAck){
+            Partition p = partitions[((ShardMoveAck) m.result()).partition()];
+            if(checkShardMoveAck(p, (ShardMoveAck) m.result())){
+                processShardMoveAck(p, (ShardMoveAck) m.result(), false);
+            }
+        } else if(m.result() instanceof TxnVote){
+            Partition p = partitions[((TxnVote) m.result()).coordinatorPartition()];
+            if(checkTxnVote(p, (TxnVote) m.result())){
+                processTxnVote(p, (TxnVote) m.result(), false);
+            }
+        } else if(m.result() instanceof TxnDone){
+            TxnDecision dec = ((TxnDone) m.result()).decision();
+            partitions[dec.coordinatorPartition()].unacked.remove(dec);
         }
     }
 
     private void handlePaxosReply(PaxosReply m, Address sender){
         assert isShardMaster(sender);
         Result res = m.result();
-        if(res instanceof ShardMaster.ShardConfig
-                && checkNewConfig((ShardMaster.ShardConfig) res)){
-            debugSenderMsg(sender, "ack config num ", Integer.toString(((ShardMaster.ShardConfig) res).configNum()));
-            processNewConfig((ShardMaster.ShardConfig) res, false);
+        if(res instanceof ShardMaster.Epochs){
+            fetchEpochs((ShardMaster.Epochs) res);
+            return;
+        }
+        if(res instanceof ShardMaster.ConfigDeltas){
+            fetchDeltas((ShardMaster.ConfigDeltas) res);
+        } else if(res instanceof ShardMaster.ShardConfig){
+            fetchedConfigs.put(((ShardMaster.ShardConfig) res).configNum(), (ShardMaster.ShardConfig) res);
+        }
+        if(fetchedConfigs.isEmpty()){
+            return;
+        }
+        debugSenderMsg(sender, "ack configs up to ", Integer.toString(fetchedConfigs.lastKey()));
+        int configNum = Integer.MAX_VALUE;
+        for(Partition p: partitions){
+            advanceConfig(p);
+            configNum = Math.min(configNum, p.config.configNum());
+        }
+        fetchedConfigs.headMap(configNum, true).clear();
+    }
+
+    private void handleShardChunkRequest(ShardChunkRequest m, Address sender){
+        Map<Integer, OutgoingShard> sending = partitions[m.partition()].outgoing.get(m.configNum());
+        OutgoingShard out = sending == null ? null : sending.get(m.shard());
+        if(out == null){
+            return;
+        }
+        for(int i = m.offset(); i < Math.min(m.offset() + m.count(), out.chunks.size()); i++){
+            send(new ShardChunk(m.configNum(), m.partition(), m.shard(), i, out.chunks.get(i)), sender);
+        }
+    }
+
+    private void handleShardChunk(ShardChunk m, Address sender){
+        Partition p = partitions[m.partition()];
+        IncomingShard in = p.incoming.get(m.shard());
+        if(in == null || in.configNum != m.configNum()){
+            if(m.configNum() <= p.config.configNum()){
+                // installed already, our ShardTransferDone got lost
+                send(new ShardTransferDone(m.configNum(), m.partition(), m.shard()), sender);
+            }
+            return;
+        }
+        in.chunks.putIfAbsent(m.index(), m.data());
+        if(!in.complete()){
+            moreChunks(p, m.shard(), in);
+            return;
+        }
+        debugMsg("received " + in.numChunks + " chunks of shard " + m.shard());
+        for(Address a: in.sources){
+            send(new ShardTransferDone(m.configNum(), m.partition(), m.shard()), a);
+        }
+        if(p.pendingMove != null){
+            if(transferComplete(p, p.pendingMove)){
+                resumeDecisions(p);
+            }
+            return;
+        }
+        for(ShardMove move: new ArrayList<>(p.announced)){
+            if(checkIncomingShardMove(p, move) && transferComplete(p, move)){
+                p.announced.remove(move);
+                processShardMove(p, move, false);
+            }
+        }
+    }
+
+    private void handleShardTransferDone(ShardTransferDone m, Address sender){
+        Partition p = partitions[m.partition()];
+        Map<Integer, OutgoingShard> sending = p.outgoing.get(m.configNum());
+        OutgoingShard out = sending == null ? null : sending.get(m.shard());
+        if(out == null){
+            if(m.configNum() >= p.config.configNum() && Arrays.asList(group).contains(sender)){
+                // a peer installed the shard before we did, it won't need our chunks
+                p.peersDone.add(Pair.of(m, sender));
+            }
+            return;
+        }
+        out.receivers.remove(sender);
+        if(out.receivers.isEmpty()){
+            sending.remove(m.shard());
+            if(sending.isEmpty()){
+                p.outgoing.remove(m.configNum());
+            }
         }
     }
 
     private void handlePaxosDecision(PaxosDecision dec, Address sender){
-        assert sender.equals(paxosAddress);
+        Partition p = partitionOf(sender);
+        assert p != null;
         Command cmd = dec.decision().command();
-        if(cmd instanceof AMOCommand
-        && checkAMOCommand((AMOCommand) cmd)){
-            processAMOCommand((AMOCommand) cmd, true);
+        if(p.pendingMove != null){
+            // the shards of the move before must be installed first
+            p.blocked.add(cmd);
+            return;
+        }
+        processDecision(p, cmd);
+    }
+
+    private void processDecision(Partition p, Command cmd){
+        if(cmd instanceof AMOCommand && ((AMOCommand) cmd).command() instanceof CommandBatch){
+            processBatch(p, (AMOCommand) cmd);
+        } else if(cmd instanceof AMOCommand
+        && checkAMOCommand(p, (AMOCommand) cmd)){
+            processAMOCommand(p, (AMOCommand) cmd, true);
         } else if(cmd instanceof ShardMove
-        && checkShardMove((ShardMove) cmd)){
-            processShardMove((ShardMove) cmd, true);
+        && checkIncomingShardMove(p, (ShardMove) cmd)){
+            processShardMove(p, (ShardMove) cmd, true);
+        } else if(cmd instanceof TxnStart
+        && checkAMOCommand(p, ((TxnStart) cmd).command())){
+            processAMOCommand(p, ((TxnStart) cmd).command(), true);
+        } else if(cmd instanceof TxnPrepare){
+            processTxnPrepare(p, (TxnPrepare) cmd, true);
+        } else if(cmd instanceof TxnDecision){
+            processTxnDecision(p, (TxnDecision) cmd, true);
+        } else if(cmd instanceof SequencedEpoch
+        && checkSequencedEpoch(p, (SequencedEpoch) cmd)){
+            queueEpoch(p, ((SequencedEpoch) cmd).epoch());
+        } else if(cmd instanceof TxnReads){
+            processTxnReads(p, (TxnReads) cmd, null, true);
+        } else if(cmd instanceof ClockTick){
+            p.clock = Math.max(p.clock, ((ClockTick) cmd).timestamp());
         } else if(cmd instanceof ResultWrapper){
             Result res = ((ResultWrapper) cmd).result();
             if(res instanceof ShardMoveAck
-            && checkShardMoveAck((ShardMoveAck) res)){
-                processShardMoveAck((ShardMoveAck) res, true);
+            && checkShardMoveAck(p, (ShardMoveAck) res)){
+                processShardMoveAck(p, (ShardMoveAck) res, true);
             } else if(res instanceof ShardMaster.ShardConfig
-            && checkNewConfig((ShardMaster.ShardConfig) res)){
-                processNewConfig((ShardMaster.ShardConfig) res, true);
+            && checkNewConfig(p, (ShardMaster.ShardConfig) res)){
+                processNewConfig(p, (ShardMaster.ShardConfig) res, true);
+            } else if(res instanceof ConfigJump
+            && checkConfigJump(p, (ConfigJump) res)){
+                processNewConfig(p, ((ConfigJump) res).config(), true);
+            } else if(res instanceof TxnVote
+            && checkTxnVote(p, (TxnVote) res)){
+                processTxnVote(p, (TxnVote) res, true);
             }
         }
+        if(SEQUENCED_TXNS){
+            runSequenced(p);
+        }
+        if(SNAPSHOT_READS){
+            for(Map.Entry<Address, SnapshotRead> e: new ArrayList<>(snapshotReads.entrySet())){
+                serveSnapshotRead(e.getKey(), e.getValue());
+            }
+        }
+        if(!parked.isEmpty()){
+            runParked();
+        }
+        if(SKIP_CONFIGS && !(cmd instanceof AMOCommand)){
+            advanceConfig(p);
+        }
+        if(WATCH_CONFIGS && !(cmd instanceof AMOCommand)){
+            watchNextConfig(false);
+        }
 
     }
 
+    private void handleRelayedBatch(RelayedBatch m, Address sender){
+        for(RelayedMessage rm: m.messages()){
+            handleMessage(rm, rm.to());
+        }
+        sendRelayed();
+    }
+
 
     /* -------------------------------------------------------------------------
         Timer Handlers
        -----------------------------------------------------------------------*/
     private void onConfigurationTimer(ConfigurationTimer t){
+        if(WATCH_CONFIGS){
+            watchNextConfig(true);
+            set(t, ConfigurationTimer.WATCH_MILLIS);
+            return;
+        }
         //TODO:maybe do something different if reconfig == true
-        if(config.configNum() < ShardMaster.INITIAL_CONFIG_NUM){
+        int configNum = Integer.MAX_VALUE;
+        for(Partition p: partitions){
+            configNum = Math.min(configNum, p.config.configNum());
+        }
+        if(configNum < ShardMaster.INITIAL_CONFIG_NUM){
             sendQuery(new ShardMaster.Query(ShardMaster.INITIAL_CONFIG_NUM));
+        } else if(DELTA_CONFIGS){
+            sendQuery(new ShardMaster.DeltaQuery(SKIP_CONFIGS ? -1 : configNum + 1, configNum));
         } else{
-            sendQuery(new ShardMaster.Query(config.configNum() + 1));
+            sendQuery(new ShardMaster.Query(configNum + 1));
         }
         set(t, ConfigurationTimer.RETRY_MILLIS);
     }
 
     private void onClientTimer(ClientTimer t){
         ShardMove move = (ShardMove) t.request().command();
-        if(checkShardMove(move)){
-            sendShardStore(new ShardStoreRequest(move), config.shardToGroupID().get((Integer) move.shardsToMove().keySet().toArray()[DEFAULT_ADDRESS]));
+        Partition p = partitions[move.partition()];
+        if(checkShardMove(p, move)){
+            sendShardStore(p, new ShardStoreRequest(move), p.config.shardToGroupID().get((Integer) move.shardChunks().keySet().toArray()[DEFAULT_ADDRESS]));
             set(t, ClientTimer.RETRY_MILLIS);
         }
     }
 
+    private void onEpochTimer(EpochTimer t){
+        sendQuery(new ShardMaster.EpochQuery(nextEpoch(), groupId));
+        set(t, epochMillis);
+    }
+
+    /**
+     * @return the first epoch some partition has yet to queue
+     */
+    private int nextEpoch(){
+        int epoch = Integer.MAX_VALUE;
+        for(Partition p: partitions){
+            epoch = Math.min(epoch, p.nextEpoch);
+        }
+        return epoch;
+    }
+
+    private void onTxnTimer(TxnTimer t){
+        Partition p = partitions[t.partition()];
+        if(txnPending(p, t.request().command())){
+            sendShardStore(t.request(), t.servers());
+            set(t, TxnTimer.RETRY_MILLIS);
+        }
+    }
+
+    private void onShardTransferTimer(ShardTransferTimer t){
+        Partition p = partitions[t.partition()];
+        if(p.incoming.isEmpty()){
+            p.transferTimerSet = false;
+            return;
+        }
+        for(Map.Entry<Integer, IncomingShard> e: p.incoming.entrySet()){
+            if(!e.getValue().complete()){
+                // ask the next replica, from the first chunk still missing
+                e.getValue().attempts++;
+                requestChunks(p, e.getKey(), e.getValue());
+            }
+        }
+        set(t, ShardTransferTimer.RETRY_MILLIS);
+    }
+
+    private void onLoadReportTimer(LoadReportTimer t){
+        Map<Integer, ShardMaster.ShardLoad> loads = new HashMap<>();
+        for(Partition p: partitions){
+            for(Map.Entry<Integer, AMOApplication<KVStore>> e: p.shards.entrySet()){
+                if(shardState(p, e.getKey()) == ShardState.OWNED){
+                    loads.put(e.getKey(), new ShardMaster.ShardLoad(shardRequests.getOrDefault(e.getKey(), 0L),
+                            e.getValue().application().bytes()));
+                }
+            }
+        }
+        shardRequests.clear();
+        long period = wallClock() / (LoadReportTimer.REPORT_MILLIS * 1000L);
+        if(!loads.isEmpty() && period % group.length == Arrays.asList(group).indexOf(address())){
+            shardMasterNum++;
+            ShardMaster.Report report = new ShardMaster.Report(groupId, period, loads);
+            for(Address a: shardMasters()){
+                send(new PaxosRequest(new AMOCommand(shardMasterNum, address(), report)), a);
+            }
+        }
+        set(t, LoadReportTimer.REPORT_MILLIS);
+    }
+
+    private void onPaxosTickTimer(PaxosTickTimer t){
+        for(PaxosServer paxosServer: paxosServers){
+            paxosServer.fireTick();
+        }
+        sendRelayed();
+        set(t, PaxosServer.TICK_MILLIS);
+    }
+
     /* -------------------------------------------------------------------------
         Utils
        -----------------------------------------------------------------------*/
 
-    private void processAMOCommand(AMOCommand cmd, boolean replicated){
-        AMOApplication<KVStore> app = shards.get(keyToShard(((KVStore.SingleKeyCommand)cmd.command()).key()));
+    private void processAMOCommand(Partition p, AMOCommand cmd, boolean replicated){
+        AMOApplication<KVStore> app = p.shards.get(keyToShard(routingKey(cmd.command()), p.config));
         if(app.alreadyExecuted(cmd)){
-            if(app.execute(cmd) != null) send(new ShardStoreReply(app.execute(cmd)), cmd.sender());
+            if(app.execute(cmd) != null) send(new ShardStoreReply(app.execute(cmd), p.clock), cmd.sender());
             debugMsg("resending req " + cmd.num() + " to "+cmd.sender());
             return;
         }
+        boolean txn = cmd.command() instanceof Transaction;
         if(!replicated){
-            handleMessage(new PaxosRequest(new AMOCommand(cmd.num(), cmd.sender(), cmd)), paxosAddress);
+            if(txn && (SEQUENCED_TXNS || newerConfigFetched(p))){
+                // sequenced transactions come from the sequencer, a retry only gets an answer once it ran. Otherwise
+                // let the partition reconfigure first, the client retries.
+                return;
+            }
+            handleMessage(new PaxosRequest(new AMOCommand(cmd.num(), cmd.sender(), txn ? new TxnStart(cmd) : cmd)),
+                    p.paxosAddress);
             return;
         }
-        send(new ShardStoreReply(app.execute(cmd)), cmd.sender());
+        if(txn){
+            startTxn(p, cmd);
+            return;
+        }
+        Result result = app.record(cmd, executeCommand(p, cmd.command()));
+        send(new ShardStoreReply(result, p.clock), cmd.sender());
         debugMsg("sent req " + cmd.num() + " to " + cmd.sender());
     }
-    private void processShardMove(ShardMove move, boolean replicated){
+
+    /**
+     * Executes a single key command on its shard, stamping a write with the partition's clock.
+     */
+    private KVStore.KVStoreResult executeCommand(Partition p, Command command){
+        String key = ((KVStore.SingleKeyCommand) command).key();
+        int shard = keyToShard(key, p.config);
+        KVStore store = p.shards.get(shard).application();
+        KVStore.KVStoreResult result = store.execute(command);
+        if(SNAPSHOT_READS && !(command instanceof KVStore.Get)){
+            ((VersionedKVStore) store).version(Collections.singleton(key), ++p.clock);
+        }
+        if(REPORT_LOAD){
+            shardRequests.merge(shard, 1L, Long::sum);
+        }
+        return result;
+    }
+
+    /**
+     * Proposes each partition's share of a client's batch, and turns down the commands on shards not served here
+     * right away.
+     */
+    private void splitBatch(AMOCommand cmd){
+        Map<Integer, Map<Integer, Command>> shares = new HashMap<>();
+        Set<Integer> rejected = new HashSet<>();
+        ShardMaster.ShardConfig hint = null;
+        for(Map.Entry<Integer, Command> e: ((CommandBatch) cmd.command()).commands().entrySet()){
+            Partition p = partitions[partitionOf(keyToShard(routingKey(e.getValue())))];
+            int shard = keyToShard(routingKey(e.getValue()), p.config);
+            if(p.config.configNum() < ShardMaster.INITIAL_CONFIG_NUM || !serving(p, shard)){
+                rejected.add(e.getKey());
+                if(hint == null){
+                    hint = configHint(p, shard);
+                }
+            } else{
+                shares.computeIfAbsent(p.index, i -> new TreeMap<>()).put(e.getKey(), e.getValue());
+            }
+        }
+        if(!rejected.isEmpty()){
+            send(new ShardStoreReply(new AMOResult(cmd.num(),
+                    new BatchResults(Collections.emptyMap(), rejected, WRONG_GROUP_REPLIES ? hint : null))),
+                    cmd.sender());
+        }
+        for(Map.Entry<Integer, Map<Integer, Command>> e: shares.entrySet()){
+            AMOCommand share = new AMOCommand(cmd.num(), cmd.sender(), new CommandBatch(e.getValue()));
+            handleMessage(new PaxosRequest(new AMOCommand(cmd.num(), cmd.sender(), share)),
+                    partitions[e.getKey()].paxosAddress);
+        }
+    }
+
+    /**
+     * Runs a partition's share of a batch shard by shard. A shard that ran the batch before remembers the results of
+     * its commands, so a retry gets them back even when other shards of the batch moved away since. A shard with a
+     * command on a locked key is left for the client's retry.
+     */
+    private void processBatch(Partition p, AMOCommand cmd){
+        Map<Integer, Map<Integer, Command>> byShard = new TreeMap<>();
+        for(Map.Entry<Integer, Command> e: ((CommandBatch) cmd.command()).commands().entrySet()){
+            byShard.computeIfAbsent(keyToShard(routingKey(e.getValue()), p.config), s -> new TreeMap<>())
+                    .put(e.getKey(), e.getValue());
+        }
+        Map<Integer, Result> results = new HashMap<>();
+        Set<Integer> rejected = new HashSet<>();
+        ShardMaster.ShardConfig hint = null;
+        for(Map.Entry<Integer, Map<Integer, Command>> e: byShard.entrySet()){
+            if(p.config.configNum() < ShardMaster.INITIAL_CONFIG_NUM || !serving(p, e.getKey())){
+                rejected.addAll(e.getValue().keySet());
+                if(hint == null){
+                    hint = configHint(p, e.getKey());
+                }
+                continue;
+            }
+            AMOApplication<KVStore> app = p.shards.get(e.getKey());
+            if(app.alreadyExecuted(cmd)){
+                AMOResult done = app.execute(cmd);
+                if(done != null){
+                    results.putAll(((BatchResults) done.result()).results());
+                }
+                continue;
+            }
+            if(e.getValue().values().stream().anyMatch(c -> locked(p, c))){
+                continue;
+            }
+            Map<Integer, Result> shardResults = new HashMap<>();
+            for(Map.Entry<Integer, Command> c: e.getValue().entrySet()){
+                shardResults.put(c.getKey(), executeCommand(p, c.getValue()));
+            }
+            app.record(cmd, new BatchResults(shardResults, Collections.emptySet(), null));
+            results.putAll(shardResults);
+        }
+        send(new ShardStoreReply(new AMOResult(cmd.num(),
+                new BatchResults(results, rejected, WRONG_GROUP_REPLIES ? hint : null)), p.clock), cmd.sender());
+    }
+
+    /**
+     * Proposes the parked client commands whose shard can take them now, and drops those whose shard moved on.
+     */
+    private void runParked(){
+        for(AMOCommand cmd: new ArrayList<>(parked.values())){
+            Partition p = partitionOf(cmd);
+            if(checkAMOCommand(p, cmd)){
+                parked.remove(cmd.sender());
+                processAMOCommand(p, cmd, false);
+            } else if(!Objects.equals(p.config.shardToGroupID().get(keyToShard(routingKey(cmd.command()), p.config)),
+                    groupId)){
+                parked.remove(cmd.sender());
+            }
+        }
+    }
+
+    /**
+     * @return the partition's config if it puts the shard on another group, for a client to re-route with, or null
+     * while the shard is still on its way here or the group is behind
+     */
+    private ShardMaster.ShardConfig configHint(Partition p, int shard){
+        Integer owner = p.config.shardToGroupID().get(shard);
+        return owner == null || owner == groupId ? null : p.config;
+    }
+    private void processShardMove(Partition p, ShardMove move, boolean replicated){
         if(!replicated){
             handleMessage(new PaxosRequest(
-                    new AMOCommand(config.configNum(), getDefaultAddress(move.group()), move)),
-                    paxosAddress);
+                    new AMOCommand(p.config.configNum(), getDefaultAddress(move.group()), move)),
+                    p.paxosAddress);
             return;
         }
-        shards.putAll(move.shardsToMove());
-        thingsNeeded.removeAll(move.shardsToMove().keySet());
-        sendShardMoveAck(move.group());
-        if(thingsNeeded.isEmpty()){
-            reconfig = false;
-            debugMsg(System.currentTimeMillis() - stateTransferMs + " ms to get ShardMoves on config " + config.configNum());
+        if(!transferComplete(p, move)){
+            // the rest of the group has the chunks, hold later decisions until we do too. The sending group drops its
+            // chunks once the ShardMoveAck of a replica that installed them is decided, so ask our own replicas first.
+            startTransfer(p, move);
+            for(Integer shard: move.shardChunks().keySet()){
+                p.incoming.get(shard).preferSources(peers());
+            }
+            p.pendingMove = move;
+            return;
+        }
+        Map<Integer, OutgoingShard> kept = new HashMap<>();
+        for(Integer shard: move.shardChunks().keySet()){
+            IncomingShard in = p.incoming.remove(shard);
+            keepChunks(p, move.configNum(), shard, in, kept);
+            KVStore store = newStore();
+            for(AMOApplication<KVStore> chunk: in.chunks.values()){
+                store.absorb(chunk.application());
+            }
+            if(SNAPSHOT_READS){
+                p.clock = Math.max(p.clock, ((VersionedKVStore) store).timestamp());
+            }
+            p.shards.put(shard, in.chunks.get(0).withApplication(store));
+            p.ownership.put(shard, ShardState.OWNED);
+        }
+        if(!kept.isEmpty()){
+            p.outgoing.computeIfAbsent(move.configNum(), c -> new HashMap<>()).putAll(kept);
+        }
+        p.announced.remove(move);
+        p.thingsNeeded.removeAll(move.shardChunks().keySet());
+        sendShardMoveAck(p, move);
+        if(p.thingsNeeded.isEmpty()){
+            p.reconfig = false;
+            debugMsg(System.currentTimeMillis() - p.stateTransferMs + " ms to get ShardMoves on config " + p.config.configNum());
         }
     }
 
-    private void processShardMoveAck(ShardMoveAck ack, boolean replicated){
+    private void processShardMoveAck(Partition p, ShardMoveAck ack, boolean replicated){
         if(!replicated){
             handleMessage(
                     new PaxosRequest(
-                            new AMOCommand(config.configNum(),
-                                    getDefaultAddress(ack.group()),
+                            new AMOCommand(p.config.configNum(),
+                                    getDefaultAddress(p, ack.group()),
                                     new ResultWrapper(ack))),
-                    paxosAddress);
+                    p.paxosAddress);
             return;
         }
-        thingsNeeded.remove(ack.group());
-        if(thingsNeeded.isEmpty()){
-            reconfig = false;
-            debugMsg(System.currentTimeMillis() - stateTransferMs + " ms to get ShardMoveAcks on config " + config.configNum());
+        p.thingsNeeded.remove(ack.group());
+        p.ownership.entrySet().removeIf(e -> e.getValue() == ShardState.SENDING
+                && Objects.equals(p.config.shardToGroupID().get(e.getKey()), ack.group()));
+        // a replica of the new owner installed the shards, the others fetch the chunks from it
+        Map<Integer, OutgoingShard> sending = p.outgoing.get(ack.configNum());
+        if(sending != null){
+            sending.values().removeIf(out -> out.group == ack.group());
+            if(sending.isEmpty()){
+                p.outgoing.remove(ack.configNum());
+            }
+        }
+        if(p.thingsNeeded.isEmpty()){
+            p.reconfig = false;
+            debugMsg(System.currentTimeMillis() - p.stateTransferMs + " ms to get ShardMoveAcks on config " + p.config.configNum());
         }
     }
 
-    private void processNewConfig(ShardMaster.ShardConfig newConfig, boolean replicated){
-        stateTransferMs = System.currentTimeMillis();
+    private void processNewConfig(Partition p, ShardMaster.ShardConfig newConfig, boolean replicated){
+        p.stateTransferMs = System.currentTimeMillis();
         if(!replicated){
             handleMessage(
                     new PaxosRequest(
-                            new AMOCommand(config.configNum(),
+                            new AMOCommand(p.config.configNum(),
                                     shardMasters()[DEFAULT_ADDRESS],
                                     new ResultWrapper(newConfig))),
-                    paxosAddress);
+                    p.paxosAddress);
             return;
         }
 
-        config = newConfig;
+        ShardMaster.ShardConfig oldConfig = p.config;
+        p.config = newConfig;
+        p.announced.clear();
+        p.incoming.values().removeIf(in -> in.configNum < newConfig.configNum());
+        p.peersDone.removeIf(d -> d.getLeft().configNum() < newConfig.configNum());
 
-        if(config.groupInfo().get(groupId) == null && shards.size() == 0) return; //not in this config
+        if(p.config.groupInfo().get(groupId) == null && p.shards.size() == 0) return; //not in this config
+        if(!oldConfig.splits().equals(newConfig.splits())){
+            reshard(p, oldConfig, newConfig);
+        }
 
-        reconfig = true;
-        if(config.configNum() == ShardMaster.INITIAL_CONFIG_NUM){
-            for(Integer i: config.groupInfo().get(groupId).getRight()){
-                shards.put(i, new AMOApplication<>(new KVStore()));
+        Set<Integer> owned = ownedShards(p, newConfig, groupId);
+        p.reconfig = true;
+        if(p.config.configNum() == ShardMaster.INITIAL_CONFIG_NUM){
+            for(Integer i: owned){
+                p.shards.put(i, new AMOApplication<>(newStore()));
+                p.ownership.put(i, ShardState.OWNED);
             }
-            reconfig = false;
+            p.reconfig = false;
             debugMsg("set config " + ShardMaster.INITIAL_CONFIG_NUM);
             return;
         }
         if(newConfig.groupInfo().get(groupId) == null
-        || shards.size() > newConfig.groupInfo().get(groupId).getRight().size()){ //Sending shards
-            Set<Integer> toMove = (new HashSet<>(shards.keySet()));
-            if(newConfig.groupInfo().get(groupId) != null)
-                toMove.removeAll(newConfig.groupInfo().get(groupId).getRight());
-            thingsNeeded.clear();
+        || p.shards.size() > owned.size()){ //Sending shards
+            Set<Integer> toMove = (new HashSet<>(p.shards.keySet()));
+            toMove.removeAll(owned);
+            p.thingsNeeded.clear();
             for(Integer shardNum: toMove){
-                thingsNeeded.add(newConfig.shardToGroupID().get(shardNum));
+                p.thingsNeeded.add(newConfig.shardToGroupID().get(shardNum));
+                p.ownership.put(shardNum, ShardState.SENDING);
             }
-            for(Integer groupIDNeeded: thingsNeeded){
-                ShardMove move = new ShardMove(newConfig.configNum(), Arrays.asList(group), new HashMap<>());
-                Set<Integer> shardNums = new HashSet<>(shards.keySet());
+            Map<Integer, OutgoingShard> sending = new HashMap<>();
+            for(Integer groupIDNeeded: p.thingsNeeded){
+                ShardMove move = new ShardMove(newConfig.configNum(), Arrays.asList(group), p.index, new HashMap<>());
+                Set<Integer> shardNums = new HashSet<>(p.shards.keySet());
                 shardNums.retainAll(newConfig.groupInfo().get(groupIDNeeded).getRight());
 
                 for(Integer shardNum: shardNums){
-                    move.shardsToMove().put(shardNum, shards.remove(shardNum));
+                    AMOApplication<KVStore> shard = p.shards.remove(shardNum);
+                    if(SNAPSHOT_READS){
+                        // the new owner writes after every snapshot read answered here
+                        ((VersionedKVStore) shard.application()).advance(p.clock);
+                    }
+                    List<AMOApplication<KVStore>> chunks = chunks(shard);
+                    sending.put(shardNum,
+                            new OutgoingShard(groupIDNeeded, chunks, newConfig.groupInfo().get(groupIDNeeded).getLeft()));
+                    move.shardChunks().put(shardNum, chunks.size());
                 }
                 ShardStoreRequest req = new ShardStoreRequest(move);
-                sendShardStore(req, groupIDNeeded);
+                sendShardStore(p, req, groupIDNeeded);
                 set(new ClientTimer(req), ClientTimer.RETRY_MILLIS); //Maybe not needed?
             }
 
-            debugMsg(System.currentTimeMillis() - stateTransferMs + " ms to send ShardMoves on config " + config.configNum());
-            stateTransferMs = System.currentTimeMillis();
+            p.outgoing.put(newConfig.configNum(), sending);
+            debugMsg(System.currentTimeMillis() - p.stateTransferMs + " ms to send ShardMoves on config " + p.config.configNum());
+            p.stateTransferMs = System.currentTimeMillis();
 
-        } else if(shards.size() < newConfig.groupInfo().get(groupId).getRight().size()){ //Receiving shards
-            thingsNeeded = new HashSet<>(newConfig.groupInfo().get(groupId).getRight());
-            thingsNeeded.removeAll(shards.keySet());
+        } else if(p.shards.size() < owned.size()){ //Receiving shards
+            p.thingsNeeded = new HashSet<>(owned);
+            p.thingsNeeded.removeAll(p.shards.keySet());
+            for(Integer shardNum: p.thingsNeeded){
+                p.ownership.put(shardNum, ShardState.RECEIVING);
+            }
         } else{
-            reconfig = false;
+            p.reconfig = false;
         }
     }
 
-    private boolean checkAMOCommand(AMOCommand cmd){
-        return config.configNum() >= ShardMaster.INITIAL_CONFIG_NUM
-                && !reconfig
-                && shards.containsKey(keyToShard(((KVStore.SingleKeyCommand)cmd.command()).key()));
+    /**
+     * Applies the splits and merges of a new config to the shards held here. The ShardMaster keeps the shards it splits
+     * or merges on their group in that config, so the new shards are made from local data only. Each new shard
+     * remembers the client results of every shard it was made from.
+     */
+    private void reshard(Partition p, ShardMaster.ShardConfig oldConfig, ShardMaster.ShardConfig newConfig){
+        Map<Integer, AMOApplication<KVStore>> made = new TreeMap<>();
+        for(Integer shard: ownedShards(p, newConfig, groupId)){
+            if(!oldConfig.shardToGroupID().containsKey(shard)){
+                made.put(shard, new AMOApplication<>(newStore()));
+            }
+        }
+        for(Integer shard: new TreeSet<>(p.shards.keySet())){
+            if(newConfig.shardToGroupID().containsKey(shard)){
+                continue;
+            }
+            AMOApplication<KVStore> retired = p.shards.remove(shard);
+            p.ownership.remove(shard);
+            Map<Integer, Set<String>> keys = new HashMap<>();
+            for(String key: retired.application().keys()){
+                keys.computeIfAbsent(keyToShard(key, newConfig), s -> new HashSet<>()).add(key);
+            }
+            for(Map.Entry<Integer, AMOApplication<KVStore>> e: made.entrySet()){
+                e.getValue().application().absorb(
+                        retired.application().partition(keys.getOrDefault(e.getKey(), Collections.emptySet())));
+                e.getValue().mergeClients(retired);
+            }
+        }
+        for(Map.Entry<Integer, AMOApplication<KVStore>> e: made.entrySet()){
+            p.shards.put(e.getKey(), e.getValue());
+            p.ownership.put(e.getKey(), ShardState.OWNED);
+        }
+        debugMsg("resharded into " + made.keySet() + " on config " + newConfig.configNum());
     }
-    private boolean checkShardMove(ShardMove move){
-        return reconfig
-                && isCurrConfig(move.configNum());
+
+    /**
+     * Starts coordinating a client's transaction, sending the prepares to all of its participants at once.
+     */
+    private void startTxn(Partition p, AMOCommand cmd){
+        if(p.coordinating.containsKey(cmd.sender())){
+            return;
+        }
+        Map<Pair<Integer, Integer>, Set<String>> keys = participants(p, (Transaction) cmd.command());
+        if(LOCAL_TXNS && keys.size() == 1 && keys.containsKey(Pair.of(groupId, p.index))){
+            runLocalTxn(p, cmd, keys.get(Pair.of(groupId, p.index)));
+            return;
+        }
+        p.coordinating.put(cmd.sender(), new TxnCoordination(cmd, keys));
+        for(Pair<Integer, Integer> participant: keys.keySet()){
+            ShardStoreRequest req = new ShardStoreRequest(new TxnPrepare(p.config.configNum(), cmd, Arrays.asList(group),
+                    p.index, participant.getLeft(), participant.getRight()));
+            Collection<Address> servers = p.config.groupInfo().get(participant.getLeft()).getLeft();
+            sendShardStore(req, servers);
+            set(new TxnTimer(p.index, req, servers), TxnTimer.RETRY_MILLIS);
+        }
+        debugMsg("coordinating txn " + cmd.num() + " of " + cmd.sender() + " over " + keys.keySet());
     }
-    private boolean checkShardMoveAck(ShardMoveAck ack){
-        return reconfig
-                && isCurrConfig(ack.configNum());
+
+    /**
+     * @return the keys of the transaction by the (group, partition) holding them in the partition's config
+     */
+    private Map<Pair<Integer, Integer>, Set<String>> participants(Partition p, Transaction txn){
+        Map<Pair<Integer, Integer>, Set<String>> keys = new HashMap<>();
+        for(String key: txn.keySet()){
+            Pair<Integer, Integer> participant = Pair.of(p.config.shardToGroupID().get(keyToShard(key, p.config)),
+                    partitionOf(keyToShard(key)));
+            keys.computeIfAbsent(participant, k -> new HashSet<>()).add(key);
+        }
+        return keys;
     }
-    private boolean checkNewConfig(ShardMaster.ShardConfig newConfig){
-        return !reconfig
-                && isCurrConfig((newConfig.configNum() - 1));
+
+    /**
+     * Runs a transaction on keys that are all in this partition right away, aborting it if a prepared transaction
+     * holds a conflicting lock.
+     */
+    private void runLocalTxn(Partition p, AMOCommand cmd, Set<String> keys){
+        Transaction txn = (Transaction) cmd.command();
+        Result result = new TxnAborted();
+        if(canLock(p, txn, keys)){
+            Map<String, String> db = txnValues(p, keys);
+            result = txn.run(db);
+            writeTxnValues(p, txn, keys, db, p.clock + 1);
+        }
+        AMOApplication<KVStore> app = p.shards.get(keyToShard(routingKey(txn), p.config));
+        send(new ShardStoreReply(app.record(cmd, result), p.clock), cmd.sender());
+        debugMsg("ran local txn " + cmd.num() + " of " + cmd.sender());
     }
 
+    private void processTxnPrepare(Partition p, TxnPrepare prep, boolean replicated){
+        Address client = prep.command().sender();
+        if(!replicated){
+            if(newerConfigFetched(p)){
+                // about to reconfigure, new locks would only hold it up
+                sendTxnVote(p, prep, false, Collections.emptyMap());
+                return;
+            }
+            handleMessage(new PaxosRequest(new AMOCommand(prep.command().num(), client, prep)), p.paxosAddress);
+            return;
+        }
+        if(prep.equals(p.prepared.get(client))){
+            sendTxnVote(p, prep, true, txnValues(p, txnKeys(p, prep)));
+            return;
+        }
+        Set<String> keys = txnKeys(p, prep);
+        // a prepare of a decided transaction is late, it can't have committed without this vote
+        if(p.prepared.containsKey(client) || p.finishedTxns.getOrDefault(client, -1) >= prep.command().num()
+        || !isCurrConfig(p, prep.configNum()) || !canLock(p, (Transaction) prep.command().command(), keys)){
+            sendTxnVote(p, prep, false, Collections.emptyMap());
+            return;
+        }
+        Transaction txn = (Transaction) prep.command().command();
+        for(String key: keys){
+            if(txn.writeSet().contains(key)){
+                p.writeLocks.put(key, client);
+            } else{
+                p.readLocks.computeIfAbsent(key, k -> new HashSet<>()).add(client);
+            }
+        }
+        p.prepared.put(client, prep);
+        p.preparedAt.put(client, ++p.clock);
+        sendTxnVote(p, prep, true, txnValues(p, keys));
+    }
 
+    private void processTxnVote(Partition p, TxnVote vote, boolean replicated){
+        if(!replicated){
+            handleMessage(new PaxosRequest(new AMOCommand(vote.num(), vote.client(), new ResultWrapper(vote))),
+                    p.paxosAddress);
+            return;
+        }
+        TxnCoordination c = p.coordinating.get(vote.client());
+        if(!vote.prepared()){
+            finishTxn(p, c, false);
+            return;
+        }
+        c.waiting.remove(Pair.of(vote.group(), vote.partition()));
+        c.values.putAll(vote.values());
+        c.timestamp = Math.max(c.timestamp, vote.timestamp());
+        if(c.waiting.isEmpty()){
+            finishTxn(p, c, true);
+        }
+    }
+
+    /**
+     * Decides a coordinated transaction, answers the client and sends the outcome to every participant until one of
+     * its replicas confirms it. An aborted transaction is answered with {@link TxnAborted}.
+     */
+    private void finishTxn(Partition p, TxnCoordination c, boolean commit){
+        p.coordinating.remove(c.command.sender());
+        Transaction txn = (Transaction) c.command.command();
+        Map<String, String> db = new HashMap<>(c.values);
+        Result result = commit ? txn.run(db) : new TxnAborted();
+        AMOApplication<KVStore> app = p.shards.get(keyToShard(routingKey(txn), p.config));
+        send(new ShardStoreReply(app.record(c.command, result), Math.max(p.clock, c.timestamp)), c.command.sender());
+
+        for(Map.Entry<Pair<Integer, Integer>, Set<String>> e: c.keys.entrySet()){
+            Map<String, String> values = new HashMap<>();
+            for(String key: e.getValue()){
+                if(commit && txn.writeSet().contains(key) && db.containsKey(key)){
+                    values.put(key, db.get(key));
+                }
+            }
+            TxnDecision dec = new TxnDecision(c.command.sender(), c.command.num(), Arrays.asList(group), p.index,
+                    e.getKey().getLeft(), e.getKey().getRight(), commit, values, c.timestamp);
+            p.unacked.add(dec);
+            ShardStoreRequest req = new ShardStoreRequest(dec);
+            Collection<Address> servers = p.config.groupInfo().get(e.getKey().getLeft()).getLeft();
+            sendShardStore(req, servers);
+            set(new TxnTimer(p.index, req, servers), TxnTimer.RETRY_MILLIS);
+        }
+        debugMsg((commit ? "committed" : "aborted") + " txn " + c.command.num() + " of " + c.command.sender());
+    }
 
-    private void sendQuery(ShardMaster.Query query) {
+    private void processTxnDecision(Partition p, TxnDecision dec, boolean replicated){
+        TxnPrepare prep = p.prepared.get(dec.client());
+        boolean held = prep != null && prep.command().num() == dec.num();
+        if(!replicated){
+            if(!held && p.finishedTxns.getOrDefault(dec.client(), -1) >= dec.num()){
+                sendTxnDone(dec);
+                return;
+            }
+            handleMessage(new PaxosRequest(new AMOCommand(dec.num(), dec.client(), dec)), p.paxosAddress);
+            return;
+        }
+        if(held){
+            Transaction txn = (Transaction) prep.command().command();
+            Set<String> keys = txnKeys(p, prep);
+            if(dec.commit()){
+                writeTxnValues(p, txn, keys, dec.values(), dec.timestamp());
+            }
+            for(String key: keys){
+                p.writeLocks.remove(key, dec.client());
+                Set<Address> readers = p.readLocks.get(key);
+                if(readers != null){
+                    readers.remove(dec.client());
+                    if(readers.isEmpty()){
+                        p.readLocks.remove(key);
+                    }
+                }
+            }
+            p.prepared.remove(dec.client());
+            p.preparedAt.remove(dec.client());
+        }
+        // an abort can get here before its prepare, which must then be turned down
+        p.finishedTxns.merge(dec.client(), dec.num(), Math::max);
+        sendTxnDone(dec);
+    }
+
+    /**
+     * Writes the values of the given keys in the transaction's write set to their shards at timestamp ts, removing
+     * those without one.
+     */
+    private void writeTxnValues(Partition p, Transaction txn, Set<String> keys, Map<String, String> values, long ts){
+        for(String key: keys){
+            if(txn.writeSet().contains(key)){
+                KVStore store = p.shards.get(keyToShard(key, p.config)).application();
+                store.merge(TransactionalKVStore.written(values, Collections.singleton(key)), Collections.singleton(key));
+                if(SNAPSHOT_READS){
+                    ((VersionedKVStore) store).version(Collections.singleton(key), ts);
+                }
+            }
+        }
+        p.clock = Math.max(p.clock, ts);
+    }
+
+    /**
+     * @return the keys of the prepare's transaction this partition holds in its current config
+     */
+    private Set<String> txnKeys(Partition p, TxnPrepare prep){
+        Set<String> keys = new HashSet<>();
+        for(String key: ((Transaction) prep.command().command()).keySet()){
+            if(Objects.equals(p.config.shardToGroupID().get(keyToShard(key, p.config)), groupId)
+            && partitionOf(keyToShard(key)) == p.index){
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return whether every key is served here and none is locked against the transaction, read locks are shared
+     */
+    private boolean canLock(Partition p, Transaction txn, Set<String> keys){
+        for(String key: keys){
+            if(!serving(p, keyToShard(key, p.config)) || p.writeLocks.containsKey(key)
+            || (txn.writeSet().contains(key) && p.readLocks.containsKey(key))){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Map<String, String> txnValues(Partition p, Set<String> keys){
+        Map<String, String> values = new HashMap<>();
+        for(String key: keys){
+            KVStore.KVStoreResult r = p.shards.get(keyToShard(key, p.config)).application().execute(new KVStore.Get(key));
+            if(r instanceof KVStore.GetResult){
+                values.put(key, ((KVStore.GetResult) r).value());
+            }
+        }
+        return values;
+    }
+
+    private void sendTxnVote(Partition p, TxnPrepare prep, boolean prepared, Map<String, String> values){
+        sendShardStore(new ShardStoreReply(new TxnVote(prep.command().sender(), prep.command().num(),
+                prep.coordinatorPartition(), groupId, p.index, prepared, values,
+                prepared ? p.preparedAt.get(prep.command().sender()) : 0)), prep.coordinator());
+    }
+
+    private void sendTxnDone(TxnDecision dec){
+        sendShardStore(new ShardStoreReply(new TxnDone(dec)), dec.coordinator());
+    }
+
+    private static boolean txnPending(Partition p, Command cmd){
+        if(cmd instanceof TxnReads){
+            // the other participants may still miss them while the transaction waits
+            return !p.sequenced.isEmpty() && p.sequenced.getFirst().position.equals(
+                    Pair.of(((TxnReads) cmd).epoch(), ((TxnReads) cmd).index()));
+        }
+        if(cmd instanceof TxnPrepare){
+            TxnPrepare prep = (TxnPrepare) cmd;
+            TxnCoordination c = p.coordinating.get(prep.command().sender());
+            return c != null && c.command.equals(prep.command())
+                    && c.waiting.contains(Pair.of(prep.group(), prep.partition()));
+        }
+        return p.unacked.contains(cmd);
+    }
+
+    /**
+     * @return whether this server fetched a config after the partition's, it stops taking new transactions until it
+     * gets there
+     */
+    private boolean newerConfigFetched(Partition p){
+        return fetchedConfigs.higherKey(p.config.configNum()) != null;
+    }
+
+    /**
+     * Proposes the fetched epochs each partition hasn't queued yet, and closes the open epoch if there is one to close.
+     */
+    private void fetchEpochs(ShardMaster.Epochs epochs){
+        boolean fresh = false;
+        for(Partition p: partitions){
+            for(ShardMaster.Epoch epoch: epochs.epochs()){
+                if(epoch.epochNum() >= p.nextEpoch){
+                    // the ShardMaster leaves out the first epochs only if the group doesn't need them
+                    boolean first = epoch.epochNum() == epochs.fromEpoch();
+                    handleMessage(new PaxosRequest(new AMOCommand(epoch.epochNum(), shardMasters()[DEFAULT_ADDRESS],
+                            new SequencedEpoch(epoch, first))), p.paxosAddress);
+                    fresh = true;
+                }
+            }
+        }
+        if(epochs.closable()){
+            shardMasterNum++;
+            for(Address a: shardMasters()){
+                send(new PaxosRequest(new AMOCommand(shardMasterNum, address(),
+                        new ShardMaster.CloseEpoch(epochs.openEpochNum(), groupId, nextEpoch()))), a);
+            }
+        }
+        // poll every EPOCH_MILLIS while epochs close, up to EPOCH_IDLE_MILLIS apart while nothing happens
+        epochMillis = fresh || epochs.closable() ? EpochTimer.EPOCH_MILLIS
+                : Math.min(2 * epochMillis, EpochTimer.EPOCH_IDLE_MILLIS);
+    }
+
+    private static boolean checkSequencedEpoch(Partition p, SequencedEpoch e){
+        return e.epoch().epochNum() == p.nextEpoch || e.first() && e.epoch().epochNum() > p.nextEpoch;
+    }
+
+    private void queueEpoch(Partition p, ShardMaster.Epoch epoch){
+        p.nextEpoch = epoch.epochNum() + 1;
+        p.sequencedConfigNum = Math.max(p.sequencedConfigNum, epoch.configNum());
+        for(int i = 0; i < epoch.txns().size(); i++){
+            AMOCommand cmd = epoch.txns().get(i);
+            p.sequenced.add(new SequencedTxn(epoch.epochNum(), i, epoch.configNum(), cmd));
+            for(String key: ((Transaction) cmd.command()).keySet()){
+                p.queuedKeys.merge(key, 1, Integer::sum);
+            }
+        }
+    }
+
+    /**
+     * Runs the partition's sequenced transactions in order, as far as the values of the other participants are in.
+     * Only called on decisions, so every replica runs each transaction at the same point of its log.
+     */
+    private void runSequenced(Partition p){
+        while(!p.sequenced.isEmpty()){
+            SequencedTxn t = p.sequenced.getFirst();
+            if(t.configNum != p.config.configNum()){
+                return; // reconfigures to the transaction's config first
+            }
+            Transaction txn = (Transaction) t.command.command();
+            if(t.keys == null){
+                t.keys = participants(p, txn);
+            }
+            Set<String> keys = t.keys.getOrDefault(Pair.of(groupId, p.index), Collections.emptySet());
+            if(!keys.isEmpty()){
+                for(String key: keys){
+                    if(!serving(p, keyToShard(key, p.config))){
+                        return; // its shard is still coming in
+                    }
+                }
+                if(!p.ownReads.containsKey(t.position)){
+                    sendTxnReads(p, t, keys);
+                }
+                Map<Pair<Integer, Integer>, Map<String, String>> reads =
+                        p.txnReads.getOrDefault(t.position, Collections.emptyMap());
+                if(reads.size() < t.keys.size() - 1){
+                    return;
+                }
+                Map<String, String> db = new HashMap<>(p.ownReads.get(t.position));
+                for(Map<String, String> values: reads.values()){
+                    db.putAll(values);
+                }
+                Result result = txn.run(db);
+                writeTxnValues(p, txn, keys, db, p.clock + 1);
+                if(keys.contains(routingKey(txn))){
+                    AMOApplication<KVStore> app = p.shards.get(keyToShard(routingKey(txn), p.config));
+                    send(new ShardStoreReply(app.record(t.command, result), p.clock), t.command.sender());
+                }
+            }
+            p.sequenced.removeFirst();
+            p.txnReads.remove(t.position);
+            for(String key: txn.keySet()){
+                p.queuedKeys.computeIfPresent(key, (k, n) -> n > 1 ? n - 1 : null);
+            }
+        }
+    }
+
+    /**
+     * Reads the partition's keys of the transaction first in line and sends them to the other participants.
+     */
+    private void sendTxnReads(Partition p, SequencedTxn t, Set<String> keys){
+        Map<String, String> values = txnValues(p, keys);
+        p.ownReads.put(t.position, values);
+        if(p.ownReads.size() > RETAINED_READS){
+            p.ownReads.pollFirstEntry();
+        }
+        for(Pair<Integer, Integer> participant: t.keys.keySet()){
+            if(participant.equals(Pair.of(groupId, p.index))){
+                continue;
+            }
+            ShardStoreRequest req = new ShardStoreRequest(new TxnReads(t.position.getLeft(), t.position.getRight(),
+                    groupId, p.index, participant.getRight(), values));
+            Collection<Address> servers = p.config.groupInfo().get(participant.getLeft()).getLeft();
+            sendShardStore(req, servers);
+            set(new TxnTimer(p.index, req, servers), TxnTimer.RETRY_MILLIS);
+        }
+    }
+
+    private void processTxnReads(Partition p, TxnReads r, Address sender, boolean replicated){
+        Pair<Integer, Integer> position = Pair.of(r.epoch(), r.index());
+        Pair<Integer, Integer> participant = Pair.of(r.group(), r.fromPartition());
+        if(sequencedRan(p, position)){
+            // the sender is still waiting, so it missed ours
+            Map<String, String> own = p.ownReads.get(position);
+            if(!replicated && own != null){
+                send(new ShardStoreRequest(new TxnReads(r.epoch(), r.index(), groupId, p.index, r.fromPartition(), own)),
+                        sender);
+            }
+            return;
+        }
+        if(!replicated){
+            if(!p.txnReads.getOrDefault(position, Collections.emptyMap()).containsKey(participant)){
+                handleMessage(new PaxosRequest(new AMOCommand(r.epoch(), shardMasters()[DEFAULT_ADDRESS], r)),
+                        p.paxosAddress);
+            }
+            return;
+        }
+        p.txnReads.computeIfAbsent(position, k -> new HashMap<>()).putIfAbsent(participant, r.values());
+    }
+
+    private static boolean sequencedRan(Partition p, Pair<Integer, Integer> position){
+        return p.sequenced.isEmpty() ? position.getLeft() < p.nextEpoch
+                : position.compareTo(p.sequenced.getFirst().position) < 0;
+    }
+
+    /**
+     * Answers a snapshot read from the versions at its timestamp, once the clocks of the partitions holding its keys
+     * passed it and no prepared transaction may still write one of them at or before it. A partition that is behind
+     * gets a {@link ClockTick} proposed. Reads of shards this replica doesn't serve are dropped, as are reads older
+     * than the versions kept, the client retries them.
+     */
+    private void serveSnapshotRead(Address client, SnapshotRead r){
+        boolean ready = true;
+        Map<String, String> values = new HashMap<>();
+        for(String key: r.keys()){
+            Partition p = partitions[partitionOf(keyToShard(key))];
+            int shard = keyToShard(key, p.config);
+            if(!serving(p, shard)){
+                snapshotReads.remove(client);
+                return;
+            }
+            if(p.clock < r.timestamp()){
+                proposeClockTick(p, r.timestamp());
+                ready = false;
+            } else if(!ready || commitPending(p, key, r.timestamp())){
+                ready = false;
+            } else{
+                Map<String, String> read = ((VersionedKVStore) p.shards.get(shard).application())
+                        .readAt(Collections.singleton(key), r.timestamp());
+                if(read == null){
+                    snapshotReads.remove(client);
+                    return;
+                }
+                values.putAll(read);
+            }
+        }
+        if(ready){
+            snapshotReads.remove(client);
+            send(new ShardStoreReply(new SnapshotValues(r.num(), r.timestamp(), r.keys(), values), r.timestamp()), client);
+        }
+    }
+
+    /**
+     * Proposes moving the partition's clock to the current wall time, or to ts if a client saw a clock ahead of it,
+     * unless a tick is in flight already. Reads keep coming with newer timestamps, so they wait for the next tick
+     * instead of each getting its own.
+     */
+    private void proposeClockTick(Partition p, long ts){
+        long now = Math.max(wallClock(), ts);
+        if(p.tickProposed > p.clock && now - p.tickProposed < ClientTimer.RETRY_MILLIS * 1000L){
+            return;
+        }
+        p.tickProposed = now;
+        handleMessage(new PaxosRequest(new AMOCommand(0, address(), new ClockTick(now))), p.paxosAddress);
+    }
+
+    /**
+     * @return whether a prepared transaction writing the key may still commit at or before ts
+     */
+    private static boolean commitPending(Partition p, String key, long ts){
+        Address writer = p.writeLocks.get(key);
+        return writer != null && p.preparedAt.get(writer) <= ts;
+    }
+
+    private static KVStore newStore(){
+        return SNAPSHOT_READS ? new VersionedKVStore() : new KVStore();
+    }
+
+    /**
+     * Splits a shard into chunks of at most {@link #SHARD_CHUNK_KEYS} keys, the same way on every replica.
+     */
+    private static List<AMOApplication<KVStore>> chunks(AMOApplication<KVStore> shard){
+        List<AMOApplication<KVStore>> chunks = new ArrayList<>();
+        for(KVStore part: shard.application().split(SHARD_CHUNK_KEYS)){
+            chunks.add(chunks.isEmpty() ? shard.withApplication(part) : new AMOApplication<>(part));
+        }
+        return chunks;
+    }
+
+    /**
+     * Starts fetching the chunks of the move's shards that this replica doesn't have yet.
+     */
+    private void startTransfer(Partition p, ShardMove move){
+        boolean started = false;
+        for(Map.Entry<Integer, Integer> e: move.shardChunks().entrySet()){
+            IncomingShard in = p.incoming.get(e.getKey());
+            if(in != null && in.configNum == move.configNum()){
+                continue;
+            }
+            in = new IncomingShard(move.configNum(), move.group(), e.getValue());
+            p.incoming.put(e.getKey(), in);
+            requestChunks(p, e.getKey(), in);
+            started = true;
+        }
+        if(started && !p.transferTimerSet){
+            set(new ShardTransferTimer(p.index), ShardTransferTimer.RETRY_MILLIS);
+            p.transferTimerSet = true;
+        }
+    }
+
+    /**
+     * Asks one of the sources for a window of chunks, from the first one still missing.
+     */
+    private void requestChunks(Partition p, int shard, IncomingShard in){
+        int offset = in.firstMissing();
+        in.requestedUpTo = Math.min(offset + SHARD_CHUNK_WINDOW, in.numChunks);
+        send(new ShardChunkRequest(in.configNum, p.index, shard, offset, SHARD_CHUNK_WINDOW),
+                in.sources.get(in.attempts % in.sources.size()));
+    }
+
+    /**
+     * Slides the window on as chunks arrive, so up to {@link #SHARD_CHUNK_WINDOW} chunks past the first one still
+     * missing are always asked for. A lost chunk holds the window until the {@link ShardTransferTimer} asks again.
+     */
+    private void moreChunks(Partition p, int shard, IncomingShard in){
+        int upTo = Math.min(in.firstMissing() + SHARD_CHUNK_WINDOW, in.numChunks);
+        if(upTo > in.requestedUpTo){
+            send(new ShardChunkRequest(in.configNum, p.index, shard, in.requestedUpTo, upTo - in.requestedUpTo),
+                    in.sources.get(in.attempts % in.sources.size()));
+            in.requestedUpTo = upTo;
+        }
+    }
+
+    /**
+     * Adds the chunks of a shard this replica installs to kept, for the peers that may still miss them, and tells the
+     * peers it has the shard.
+     */
+    private void keepChunks(Partition p, int configNum, int shard, IncomingShard in, Map<Integer, OutgoingShard> kept){
+        ShardTransferDone done = new ShardTransferDone(configNum, p.index, shard);
+        Set<Address> receivers = new HashSet<>();
+        for(Address peer: peers()){
+            send(done, peer);
+            if(!p.peersDone.remove(Pair.of(done, peer))){
+                receivers.add(peer);
+            }
+        }
+        if(!receivers.isEmpty()){
+            List<AMOApplication<KVStore>> chunks = new ArrayList<>();
+            for(int i = 0; i < in.numChunks; i++){
+                chunks.add(in.chunks.get(i));
+            }
+            kept.put(shard, new OutgoingShard(groupId, chunks, receivers));
+        }
+    }
+
+    /**
+     * @return the other replicas of this group
+     */
+    private List<Address> peers(){
+        List<Address> peers = new ArrayList<>(Arrays.asList(group));
+        peers.remove(address());
+        return peers;
+    }
+
+    private static boolean transferComplete(Partition p, ShardMove move){
+        for(Integer shard: move.shardChunks().keySet()){
+            IncomingShard in = p.incoming.get(shard);
+            if(in == null || in.configNum != move.configNum() || !in.complete()){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Installs the shards of the pending move, then goes on with the decisions held behind it.
+     */
+    private void resumeDecisions(Partition p){
+        ShardMove move = p.pendingMove;
+        p.pendingMove = null;
+        processShardMove(p, move, true);
+        if(SEQUENCED_TXNS){
+            runSequenced(p);
+        }
+        List<Command> blocked = new ArrayList<>(p.blocked);
+        p.blocked.clear();
+        for(int i = 0; i < blocked.size(); i++){
+            if(p.pendingMove != null){
+                p.blocked.addAll(blocked.subList(i, blocked.size()));
+                return;
+            }
+            processDecision(p, blocked.get(i));
+        }
+    }
+
+    private boolean checkAMOCommand(Partition p, AMOCommand cmd){
+        int shard = keyToShard(routingKey(cmd.command()), p.config);
+        return p.config.configNum() >= ShardMaster.INITIAL_CONFIG_NUM
+                && serving(p, shard)
+                && (cmd.command() instanceof Transaction || !locked(p, cmd.command()));
+    }
+
+    private boolean serving(Partition p, int shard){
+        return (SHARD_AVAILABILITY ? shardState(p, shard) == ShardState.OWNED : !p.reconfig)
+                && p.shards.containsKey(shard);
+    }
+
+    /**
+     * @return whether a prepared transaction holds a lock on the key of a single key command that conflicts with it,
+     * or a queued sequenced transaction has the key
+     */
+    private static boolean locked(Partition p, Command command){
+        String key = ((KVStore.SingleKeyCommand) command).key();
+        return p.writeLocks.containsKey(key) || p.queuedKeys.containsKey(key)
+                || (!(command instanceof KVStore.Get) && p.readLocks.containsKey(key));
+    }
+
+    private static ShardState shardState(Partition p, int shard){
+        return p.ownership.getOrDefault(shard, ShardState.GONE);
+    }
+    private boolean checkShardMove(Partition p, ShardMove move){
+        return p.reconfig
+                && isCurrConfig(p, move.configNum());
+    }
+    private boolean checkIncomingShardMove(Partition p, ShardMove move){
+        // receiving side, thingsNeeded holds the shards still to install
+        return checkShardMove(p, move)
+                && p.thingsNeeded.containsAll(move.shardChunks().keySet());
+    }
+    private boolean checkShardMoveAck(Partition p, ShardMoveAck ack){
+        return p.reconfig
+                && isCurrConfig(p, ack.configNum());
+    }
+    private boolean checkNewConfig(Partition p, ShardMaster.ShardConfig newConfig){
+        return !p.reconfig
+                && txnsIdle(p)
+                && newConfig.configNum() <= configLimit(p)
+                && isCurrConfig(p, (newConfig.configNum() - 1));
+    }
+    private boolean checkConfigJump(Partition p, ConfigJump jump){
+        return !p.reconfig
+                && txnsIdle(p)
+                && jump.config().configNum() <= configLimit(p)
+                && isCurrConfig(p, jump.fromConfigNum());
+    }
+    /**
+     * @return the last config the partition may take, the one of the first sequenced transaction it has yet to run
+     */
+    private static int configLimit(Partition p){
+        if(!SEQUENCED_TXNS){
+            return Integer.MAX_VALUE;
+        }
+        return p.sequenced.isEmpty() ? p.sequencedConfigNum : p.sequenced.getFirst().configNum;
+    }
+    private static boolean txnsIdle(Partition p){
+        return p.coordinating.isEmpty() && p.prepared.isEmpty();
+    }
+    private boolean checkTxnVote(Partition p, TxnVote vote){
+        TxnCoordination c = p.coordinating.get(vote.client());
+        // a no counts even after a yes of the same participant, aborting is always safe before the decision
+        return c != null && c.command.num() == vote.num()
+                && (!vote.prepared() || c.waiting.contains(Pair.of(vote.group(), vote.partition())));
+    }
+
+
+
+    /**
+     * Registers a watch for the config after the one all partitions are at, once none of them is reconfiguring, since
+     * a config arriving mid-reconfiguration is dropped. Unless again is set, only when that config changed.
+     */
+    private void watchNextConfig(boolean again){
+        int configNum = Integer.MAX_VALUE;
+        for(Partition p: partitions){
+            if(p.reconfig){
+                return;
+            }
+            configNum = Math.min(configNum, p.config.configNum());
+        }
+        if(!again && configNum == watchedConfigNum){
+            return;
+        }
+        watchedConfigNum = configNum;
+        sendQuery(new ShardMaster.Watch(
+                SKIP_CONFIGS ? -1 : Math.max(configNum + 1, ShardMaster.INITIAL_CONFIG_NUM), configNum));
+    }
+
+    /**
+     * Adds the configs the deltas make, if a partition or an earlier reply has the config they start from.
+     */
+    private void fetchDeltas(ShardMaster.ConfigDeltas deltas){
+        ShardMaster.ShardConfig config = fetchedConfigs.get(deltas.fromConfigNum());
+        for(Partition p: partitions){
+            if(p.config.configNum() == deltas.fromConfigNum()){
+                config = p.config;
+            }
+        }
+        if(config == null){
+            return;
+        }
+        for(ShardMaster.ConfigDelta delta: deltas.deltas()){
+            config = config.apply(delta);
+            fetchedConfigs.put(config.configNum(), config);
+        }
+    }
+
+    /**
+     * Proposes the partition's next fetched config, once it is done with its current one. With SKIP_CONFIGS that is
+     * the first config changing its shards, or the last fetched one if none does, since the partition has nothing to
+     * send or receive in the configs before it.
+     */
+    private void advanceConfig(Partition p){
+        if(p.reconfig){
+            return;
+        }
+        int from = p.config.configNum();
+        ShardMaster.ShardConfig next = fetchedConfigs.get(Math.max(from + 1, ShardMaster.INITIAL_CONFIG_NUM));
+        if(next == null || next.configNum() > configLimit(p)){
+            return;
+        }
+        if(SKIP_CONFIGS && from >= ShardMaster.INITIAL_CONFIG_NUM){
+            Set<Integer> owned = ownedShards(p, p.config, groupId);
+            while(owned.equals(ownedShards(p, next, groupId)) && fetchedConfigs.containsKey(next.configNum() + 1)
+            && next.configNum() < configLimit(p)){
+                next = fetchedConfigs.get(next.configNum() + 1);
+            }
+        }
+        if(checkNewConfig(p, next)){
+            processNewConfig(p, next, false);
+        } else if(next.configNum() > from + 1){
+            debugMsg("skipping configs " + (from + 1) + " to " + (next.configNum() - 1));
+            handleMessage(
+                    new PaxosRequest(
+                            new AMOCommand(from,
+                                    shardMasters()[DEFAULT_ADDRESS],
+                                    new ResultWrapper(new ConfigJump(from, next)))),
+                    p.paxosAddress);
+        }
+    }
+
+    private void sendQuery(ShardMaster.ShardMasterCommand query) {
         for(Address a: shardMasters()){
             send(new PaxosRequest(new AMOCommand(-1, address(), query)), a);
         }
     }
-    private void sendShardStore(Message m, Integer id) {
-        for(Address a: config.groupInfo().get(id).getLeft()){
+    private void sendShardStore(Partition p, Message m, Integer id) {
+        for(Address a: p.config.groupInfo().get(id).getLeft()){
             send(m, a);
         }
     }
@@ -299,19 +1778,66 @@ public class ShardStoreServer extends ShardStoreNode {
         }
     }
 
-    private void sendShardMoveAck(Collection<Address> id){
-        sendShardStore(new ShardStoreReply(new ShardMoveAck(config.configNum(), groupId)), id);
+    private void sendShardMoveAck(Partition p, ShardMove move){
+        sendShardStore(new ShardStoreReply(new ShardMoveAck(move.configNum(), groupId, p.index)), move.group());
+    }
+
+    /**
+     * Sends what the relayed Paxos groups queued for their peers, one batch per peer server.
+     */
+    private void sendRelayed(){
+        Map<Address, List<RelayedMessage>> batches = new HashMap<>();
+        for(PaxosServer paxosServer: paxosServers){
+            for(RelayedMessage rm: paxosServer.takeRelayed()){
+                batches.computeIfAbsent(rm.to().rootAddress(), a -> new ArrayList<>()).add(rm);
+            }
+        }
+        for(Map.Entry<Address, List<RelayedMessage>> batch: batches.entrySet()){
+            send(new RelayedBatch(batch.getValue()), batch.getKey());
+        }
+    }
+
+    private boolean isCurrConfig(Partition p, int num){
+        return num == p.config.configNum();
+    }
+
+    private Partition partitionOf(AMOCommand cmd){
+        return partitions[partitionOf(keyToShard(routingKey(cmd.command())))];
     }
 
-    private boolean isCurrConfig(int num){
-        return num == config.configNum();
+    private static int partitionOf(int shard){
+        return (shard - 1) % PAXOS_GROUPS;
+    }
+
+    private Partition partitionOf(Address paxosAddress){
+        for(Partition p: partitions){
+            if(p.paxosAddress.equals(paxosAddress)){
+                return p;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the shards of the partition that the given group owns in the config
+     */
+    private static Set<Integer> ownedShards(Partition p, ShardMaster.ShardConfig config, int groupId){
+        Set<Integer> owned = new HashSet<>();
+        if(config.groupInfo().get(groupId) != null){
+            for(Integer shard: config.groupInfo().get(groupId).getRight()){
+                if(partitionOf(config.rootShard(shard)) == p.index){
+                    owned.add(shard);
+                }
+            }
+        }
+        return owned;
     }
 
     private Address getDefaultAddress(Collection<Address> id){
         return (Address) id.toArray()[DEFAULT_ADDRESS];
     }
-    private Address getDefaultAddress(int id){
-        return (Address) config.groupInfo().get(id).getLeft().toArray()[DEFAULT_ADDRESS];
+    private Address getDefaultAddress(Partition p, int id){
+        return (Address) p.config.groupInfo().get(id).getLeft().toArray()[DEFAULT_ADDRESS];
     }
 
 
@@ -320,6 +1846,43 @@ public class ShardStoreServer extends ShardStoreNode {
     }
 
 
+    /* -------------------------------------------------------------------------
+        Benchmarks
+       -----------------------------------------------------------------------*/
+
+    /**
+     * Replaces the data of an owned shard, so benchmarks can move large shards without putting every key through Paxos.
+     *
+     * @return whether this server owns the shard
+     */
+    boolean seedShard(int shard, KVStore data){
+        Partition p = partitions[partitionOf(shard)];
+        if(!p.shards.containsKey(shard)){
+            return false;
+        }
+        p.shards.put(shard, new AMOApplication<>(data));
+        return true;
+    }
+
+    boolean hasShard(int shard){
+        return partitions[partitionOf(shard)].shards.containsKey(shard);
+    }
+
+    /**
+     * @return the config every partition finished reconfiguring to, or -1 while one is still reconfiguring
+     */
+    int settledConfigNum(){
+        int configNum = Integer.MAX_VALUE;
+        for(Partition p: partitions){
+            if(p.reconfig){
+                return -1;
+            }
+            configNum = Math.min(configNum, p.config.configNum());
+        }
+        return configNum;
+    }
+
+
     /* -------------------------------------------------------------------------
     Debug
     -----------------------------------------------------------------------*/
@@ -1,16 +1,61 @@
 package dslabs.shardkv;
 
+import dslabs.framework.Address;
 import dslabs.framework.Timer;
+import java.util.Collection;
 import lombok.Data;
 
 @Data
 final class ClientTimer implements Timer {
     static final int RETRY_MILLIS = 100;
+    static final int ABORT_BACKOFF_MILLIS = 5; // doubled per abort in a row, up to RETRY_MILLIS
     private final ShardStoreRequest request;
 }
 
 @Data
 final class ConfigurationTimer implements Timer {
     static final int RETRY_MILLIS = 100;
+    static final int WATCH_MILLIS = 1000; // re-registers the watch, in case the ShardMaster's leader changed
 }
 
+@Data
+final class PaxosTickTimer implements Timer {
+}
+
+@Data
+final class ShardTransferTimer implements Timer {
+    static final int RETRY_MILLIS = 50;
+    private final int partition;
+}
+
+@Data
+final class LoadReportTimer implements Timer {
+    static final int REPORT_MILLIS = 1000;
+}
+
+/**
+ * Resends a TxnPrepare until the participant votes, or a TxnDecision until a participant replica confirms it.
+ */
+@Data
+final class TxnTimer implements Timer {
+    static final int RETRY_MILLIS = 100;
+    private final int partition;
+    private final ShardStoreRequest request;
+    private final Collection<Address> servers;
+}
+
+@Data
+final class EpochTimer implements Timer {
+    static final int EPOCH_MILLIS = 10; // how often epochs are fetched, and closed
+    static final int EPOCH_IDLE_MILLIS = 160; // how often at most while no epochs close
+}
+
+/**
+ * Resends the commands of a client's batch that have no result yet, to the groups holding them by then. Every send of
+ * the batch arms a new timer with the next attempt number, only the timer of the latest attempt resends.
+ */
+@Data
+final class BatchTimer implements Timer {
+    private final int num;
+    private final int attempt;
+}
@@ -1,10 +1,15 @@
 package dslabs.shardmaster;
 
+import dslabs.atmostonce.AMOCommand;
 import dslabs.framework.Address;
-import dslabs.framework.Application;
 import dslabs.framework.Command;
 import dslabs.framework.Result;
+import dslabs.paxos.WatchedApplication;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -12,6 +17,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import lombok.AllArgsConstructor;
@@ -19,28 +25,77 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
-import org.apache.commons.lang3.SerializationUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 
 @ToString
 @EqualsAndHashCode
-public final class ShardMaster implements Application {
+public final class ShardMaster implements WatchedApplication {
 
   public static final int INITIAL_CONFIG_NUM = 0;
 
-  private final Map<Integer, ShardConfig> configLog;  //configNum -> ShardConfig
+  /**
+   * Balance the request load the groups {@link Report}, rather than only shard counts. Join and Leave still keep the
+   * counts balanced and hand the heaviest shards to the least loaded groups, reports move shards off the busiest group
+   * once it carries LOAD_SKEW_THRESHOLD times the mean load.
+   */
+  public static boolean LOAD_AWARE = false;
+  public static double LOAD_SKEW_THRESHOLD = 1.25;
+
+  /**
+   * What moving all data costs against removing a load skew of 1, a move has to reduce the skew by more than this
+   * times the fraction of bytes it moves.
+   */
+  public static double MOVE_COST_WEIGHT = 0.5;
+
+  /**
+   * Split a shard in two once it carries SPLIT_LOAD times the mean group load, and merge two halves of a shard back
+   * once together they carry less than MERGE_LOAD times it. Splits and merges each get a config of their own that
+   * keeps the shards on their group, later rebalancing moves the halves apart.
+   */
+  public static boolean SPLIT_SHARDS = false;
+  public static double SPLIT_LOAD = 0.5;
+  public static double MERGE_LOAD = 0.1;
+  public static int MAX_SPLIT_DEPTH = 8; // a single hot key can't be split
+
+  /**
+   * Configs are kept as a {@link ConfigDelta} from the one before, with every CHECKPOINT_INTERVAL-th config and the
+   * latest kept in full. Configs more than CONFIG_HISTORY behind the latest are dropped, from a checkpoint on.
+   */
+  public static int CHECKPOINT_INTERVAL = 32;
+  public static int CONFIG_HISTORY = 1024;
+
+
+  private final TreeMap<Integer, ShardConfig> configLog;  //configNum -> ShardConfig, checkpoints and the latest
+  private final Map<Integer, ConfigDelta> deltas; //configNum -> changes from the config before
   private final Map<Integer, Set<Address>> replicaGroups; //groupID -> Set<servers>
+  private final Map<Integer, ShardLoad> loads; //shardNum -> last reported load
+  private final Map<Integer, Long> reportPeriods; //groupID -> period of its last counted report
   private final int numShards;
 
   private int configNum;
+  private int nextShardNum; // shard numbers are never reused, a split or merge always makes new ones
+
+  private final List<Epoch> epochs; //closed epochs of sequenced transactions from firstEpoch on
+  private final List<AMOCommand> openEpoch;
+  private int firstEpoch; // every group queued the epochs before it, they are dropped
+  private final Map<Integer, Integer> groupEpochs; //groupID -> first epoch it has yet to queue, as last reported
+  private final Map<Integer, Integer> leftGroupEpochs; //groupID -> epoch a group that left still has to queue
 
   public ShardMaster(int numShards) {
     this.numShards = numShards;
 
     replicaGroups = new TreeMap<>();
     configNum = INITIAL_CONFIG_NUM - 1;
-    configLog = new HashMap<>();
+    configLog = new TreeMap<>();
+    deltas = new HashMap<>();
+    loads = new TreeMap<>();
+    reportPeriods = new TreeMap<>();
+    nextShardNum = numShards + 1;
+    epochs = new ArrayList<>();
+    openEpoch = new ArrayList<>();
+    groupEpochs = new TreeMap<>();
+    leftGroupEpochs = new TreeMap<>();
   }
 
   public interface ShardMasterCommand extends Command {
@@ -67,6 +122,43 @@ public final class ShardMaster implements Application {
     private final int shardNum;
   }
 
+  /**
+   * Splits a shard's keys in two new shards by their hash.
+   */
+  @Data
+  public static final class Split implements ShardMasterCommand {
+
+    private final int shardNum;
+  }
+
+  /**
+   * Merges a shard with the other half of the shard it was split from, both must be on the same group.
+   */
+  @Data
+  public static final class Merge implements ShardMasterCommand {
+
+    private final int shardNum;
+  }
+
+  /**
+   * Requests a group executed on each of its shards in a report period, and their size. Only the first report of a
+   * group for a period counts, later ones for it or an older period are ignored.
+   */
+  @Data
+  public static final class Report implements ShardMasterCommand {
+
+    private final int groupId;
+    private final long period;
+    private final Map<Integer, ShardLoad> shards;
+  }
+
+  @Data
+  public static final class ShardLoad implements Serializable {
+
+    private final long requests;
+    private final long bytes;
+  }
+
   @Data
   public static final class Query implements ShardMasterCommand {
 
@@ -78,10 +170,134 @@ public final class ShardMaster implements Application {
     }
   }
 
+  /**
+   * Asks for the changes from a config the caller has to the given one, -1 for the latest.
+   */
+  @Data
+  public static final class DeltaQuery implements ShardMasterCommand {
+
+    private final int configNum;
+    private final int knownConfigNum;
+
+    @Override
+    public boolean readOnly() {
+      return true;
+    }
+  }
+
+  /**
+   * A {@link DeltaQuery} that the ShardMaster's leader holds on to until there is a config after the caller's, so
+   * callers can long poll rather than query every 100 ms.
+   */
+  @Data
+  public static final class Watch implements ShardMasterCommand {
+
+    private final int configNum;
+    private final int knownConfigNum;
+
+    @Override
+    public boolean readOnly() {
+      return true;
+    }
+  }
+
+  /**
+   * Sequences a client's transaction into the open epoch. Every group runs its part of each closed epoch's
+   * transactions in order, so transactions sequenced here need no locks or aborts across groups.
+   */
+  @Data
+  public static final class Sequence implements ShardMasterCommand {
+
+    private final AMOCommand command;
+  }
+
+  /**
+   * Closes the open epoch if it is epochNum and there is something to close, see {@link Epochs#closable}. Also reports
+   * nextEpoch, the first epoch the sending server of group groupId has yet to queue, epochs every group queued are
+   * dropped.
+   */
+  @Data
+  public static final class CloseEpoch implements ShardMasterCommand {
+
+    private final int epochNum;
+    private final int groupId;
+    private final int nextEpoch;
+  }
+
+  /**
+   * Asks for the closed epochs from fromEpoch on, or from the first one group groupId needs if that is later.
+   */
+  @Data
+  public static final class EpochQuery implements ShardMasterCommand {
+
+    private final int fromEpoch;
+    private final int groupId;
+
+    @Override
+    public boolean readOnly() {
+      return true;
+    }
+  }
+
+  /**
+   * A batch of sequenced transactions, groups run them under config configNum, the latest when the epoch closed.
+   */
+  @Data
+  public static final class Epoch implements Serializable {
+
+    private final int epochNum;
+    private final int configNum;
+    private final List<AMOCommand> txns;
+  }
+
   public interface ShardMasterResult extends Result {
 
   }
 
+  /**
+   * The deltas taking config fromConfigNum to the config asked for, empty if the caller has it already.
+   */
+  @Data
+  public static final class ConfigDeltas implements ShardMasterResult {
+
+    private final int fromConfigNum;
+    private final List<ConfigDelta> deltas;
+  }
+
+  /**
+   * What changed from the config before configNum.
+   */
+  @Data
+  public static final class ConfigDelta implements Serializable {
+
+    private final int configNum;
+    private final Map<Integer, Set<Address>> joined;
+    private final Set<Integer> left;
+    private final Map<Integer, Integer> moved; //shardNum -> new groupID, shards new to the config too
+    private final Set<Integer> retired; //shards split or merged away
+    private final Map<Integer, List<Integer>> splits;
+  }
+
+  @Data
+  public static final class Sequenced implements ShardMasterResult {
+
+    private final int epochNum;
+  }
+
+  /**
+   * The closed epochs from fromEpoch on. The open epoch is closable once it holds transactions or a config came after
+   * the last closed epoch's, which is how groups running sequenced transactions learn when to reconfigure. A fromEpoch
+   * past the one asked for means the group needs none of the epochs in between, as when it joined after they closed.
+   */
+  @Data
+  public static final class Epochs implements ShardMasterResult {
+
+    private final int fromEpoch;
+    private final List<Epoch> epochs;
+    private final int openEpochNum;
+    private final boolean closable;
+  }
+
   @Data
   public static final class Ok implements ShardMasterResult {
 
@@ -105,18 +321,144 @@ public final class ShardMaster implements Application {
     //shardNum -> groupID
     private final Map<Integer, Integer> shardToGroupID;
 
+    //shardNum -> the two shards it was split into, or the one its halves were merged into
+    private final Map<Integer, List<Integer>> splits;
+
     public ShardConfig(int configNum) {
       this.configNum = configNum;
       groupInfo = new TreeMap<>();
       shardToGroupID = new TreeMap<>();
+      splits = new TreeMap<>();
     }
     public ShardConfig(int configNum, Map<Integer, Pair<Set<Address>, Set<Integer>>> groupInfo){
       this.configNum = configNum;
       this.groupInfo = groupInfo;
       this.shardToGroupID = new TreeMap<>();
+      this.splits = new TreeMap<>();
       populateShardToGroupID(this);
     }
 
+    /**
+     * Follows the splits and merges of a shard numbered 1..numShards to the shard holding the key in this config.
+     *
+     * @param keyHash
+     *         the key's hashCode, it picks the half of each split
+     */
+    public int leafShard(int shard, int keyHash) {
+      int depth = 0;
+      List<Integer> next;
+      while ((next = splits.get(shard)) != null) {
+        shard = next.size() == 1 ? next.get(0) : next.get(splitBit(keyHash, depth++));
+      }
+      return shard;
+    }
+
+    /**
+     * @return the shard numbered 1..numShards that the given one was split or merged from
+     */
+    public int rootShard(int shard) {
+      Integer parent;
+      while ((parent = parentShard(shard)) != null) {
+        shard = parent;
+      }
+      return shard;
+    }
+
+    private Integer parentShard(int shard) {
+      for (Map.Entry<Integer, List<Integer>> e : splits.entrySet()) {
+        if (e.getValue().contains(shard)) {
+          return e.getKey();
+        }
+      }
+      return null;
+    }
+
+    private int splitDepth(int shard) {
+      int depth = 0;
+      Integer parent;
+      while ((parent = parentShard(shard)) != null) {
+        depth += splits.get(parent).size() == 2 ? 1 : 0;
+        shard = parent;
+      }
+      return depth;
+    }
+
+    /**
+     * @return the config the delta makes of this one
+     */
+    public ShardConfig apply(ConfigDelta delta) {
+      ShardConfig next = copy(delta.configNum());
+      next.groupInfo.keySet().removeAll(delta.left());
+      for (Map.Entry<Integer, Set<Address>> e : delta.joined().entrySet()) {
+        next.groupInfo.put(e.getKey(), new ImmutablePair<>(e.getValue(), new HashSet<>()));
+      }
+      for (int shard : delta.retired()) {
+        removeShard(next, shard);
+      }
+      for (Map.Entry<Integer, Integer> e : delta.moved().entrySet()) {
+        removeShard(next, e.getKey());
+        next.groupInfo.get(e.getValue()).getRight().add(e.getKey());
+      }
+      next.splits.putAll(delta.splits());
+      populateShardToGroupID(next);
+      return next;
+    }
+
+    /**
+     * @return the delta that makes the given next config of this one
+     */
+    public ConfigDelta diff(ShardConfig next) {
+      Map<Integer, Set<Address>> joined = new TreeMap<>();
+      for (Map.Entry<Integer, Pair<Set<Address>, Set<Integer>>> e : next.groupInfo.entrySet()) {
+        if (!groupInfo.containsKey(e.getKey())) {
+          joined.put(e.getKey(), e.getValue().getLeft());
+        }
+      }
+      Set<Integer> left = new TreeSet<>(groupInfo.keySet());
+      left.removeAll(next.groupInfo.keySet());
+      Map<Integer, Integer> moved = new TreeMap<>();
+      for (Map.Entry<Integer, Integer> e : next.shardToGroupID.entrySet()) {
+        if (!e.getValue().equals(shardToGroupID.get(e.getKey()))) {
+          moved.put(e.getKey(), e.getValue());
+        }
+      }
+      Set<Integer> retired = new TreeSet<>(shardToGroupID.keySet());
+      retired.removeAll(next.shardToGroupID.keySet());
+      Map<Integer, List<Integer>> newSplits = new TreeMap<>();
+      for (Map.Entry<Integer, List<Integer>> e : next.splits.entrySet()) {
+        if (!e.getValue().equals(splits.get(e.getKey()))) {
+          newSplits.put(e.getKey(), e.getValue());
+        }
+      }
+      return new ConfigDelta(next.configNum, joined, left, moved, retired, newSplits);
+    }
+
+    /**
+     * Copies the maps and shard sets, the group members are never changed so they are shared.
+     */
+    private ShardConfig copy(int configNum) {
+      ShardConfig copy = new ShardConfig(configNum);
+      for (Map.Entry<Integer, Pair<Set<Address>, Set<Integer>>> e : groupInfo.entrySet()) {
+        copy.groupInfo.put(e.getKey(),
+            new ImmutablePair<>(e.getValue().getLeft(), new HashSet<>(e.getValue().getRight())));
+      }
+      copy.shardToGroupID.putAll(shardToGroupID);
+      copy.splits.putAll(splits);
+      return copy;
+    }
+
+    private void removeShard(ShardConfig config, int shard) {
+      Integer owner = shardToGroupID.get(shard);
+      if (owner != null && config.groupInfo.containsKey(owner)) {
+        config.groupInfo.get(owner).getRight().remove(shard);
+      }
+    }
+
+    // Fibonacci hashing, so keys with nearby hashes like key-1 and key-2 still land in both halves
+    private static int splitBit(int keyHash, int depth) {
+      return ((keyHash * 0x9E3779B9) >>> (31 - depth % 32)) & 1;
+    }
+
     private void populateShardToGroupID(ShardConfig config){
       config.shardToGroupID.clear();
       for(Integer groupID: config.groupInfo.keySet()){
@@ -127,6 +469,14 @@ public final class ShardMaster implements Application {
     }
   }
 
+  /**
+   * A {@link Watch} only gets an answer from a new config.
+   */
+  @Override
+  public int version() {
+    return configNum;
+  }
+
   @Override
   public Result execute(Command command) {
     if (command instanceof Join) {
@@ -137,11 +487,14 @@ public final class ShardMaster implements Application {
       }
 
       replicaGroups.put(join.groupId(), join.servers());
+      // a new group has nothing to run in the closed epochs, it starts at the open one
+      groupEpochs.put(join.groupId(), nextEpochNum());
+      leftGroupEpochs.remove(join.groupId());
       ShardConfig config = newConfig();
 
       config.groupInfo().put(join.groupId(), new ImmutablePair<>(join.servers(), new HashSet<>()));
       rebalance();
-      populateShardToGroupID();
+      finishConfig();
 
       return new Ok();
     }
@@ -155,9 +508,12 @@ public final class ShardMaster implements Application {
 
       ShardConfig config = newConfig();
       replicaGroups.remove(leave.groupId());
+      reportPeriods.remove(leave.groupId());
+      // it still runs its part of the closed epochs, and takes this config once it queued the next one
+      leftGroupEpochs.put(leave.groupId(), nextEpochNum());
       config.groupInfo.remove(leave.groupId);
       rebalance();
-      populateShardToGroupID();
+      finishConfig();
 
       return new Ok();
     }
@@ -166,7 +522,7 @@ public final class ShardMaster implements Application {
       Move move = (Move) command;
 
       if (!replicaGroups.containsKey(move.groupId) //bad groupID
-          || move.shardNum() < 1 || move.shardNum() > numShards //bad shardNum
+          || !liveShards(configLog.get(configNum)).contains(move.shardNum()) //bad shardNum
           || configLog.get(configNum).groupInfo.get(move.groupId).getRight()
           .contains(move.shardNum)) { //group already has shard
         return new Error();
@@ -176,7 +532,48 @@ public final class ShardMaster implements Application {
       Iterator<Pair<Set<Address>, Set<Integer>>> iter = configLog.get(configNum).groupInfo().values().iterator();
       while (!iter.next().getRight().remove(move.shardNum())) {}
       configLog.get(configNum).groupInfo.get(move.groupId).getRight().add(move.shardNum);
-      populateShardToGroupID();
+      finishConfig();
+
+      return new Ok();
+    }
+
+    if (command instanceof Split) {
+      return split(((Split) command).shardNum()) ? new Ok() : new Error();
+    }
+
+    if (command instanceof Merge) {
+      return merge(((Merge) command).shardNum()) ? new Ok() : new Error();
+    }
+
+    if (command instanceof Report) {
+      Report report = (Report) command;
+      ShardConfig current = configLog.get(configNum);
+
+      if (current == null || !current.groupInfo().containsKey(report.groupId())) {
+        return new Error();
+      }
+      if (report.period() <= reportPeriods.getOrDefault(report.groupId(), Long.MIN_VALUE)) {
+        return new Ok();
+      }
+      reportPeriods.put(report.groupId(), report.period());
+
+      for (Map.Entry<Integer, ShardLoad> e : report.shards().entrySet()) {
+        // shards that moved since the report was sent are left to their new owner
+        if (Integer.valueOf(report.groupId()).equals(current.shardToGroupID().get(e.getKey()))) {
+          loads.put(e.getKey(), e.getValue());
+        }
+      }
+      if (SPLIT_SHARDS && splitOrMergeByLoad(current)) {
+        return new Ok();
+      }
+      if (LOAD_AWARE && loadSkew(current.groupInfo()) > LOAD_SKEW_THRESHOLD) {
+        ShardConfig config = newConfig();
+        if (balanceLoad(config)) {
+          finishConfig();
+        } else {
+          configLog.remove(configNum--);
+        }
+      }
 
       return new Ok();
     }
@@ -186,30 +583,155 @@ public final class ShardMaster implements Application {
 
       if (query.configNum() == -1 && configNum >= INITIAL_CONFIG_NUM || query.configNum() > configNum) {
         return configLog.get(configNum);
-      } else if (!configLog.containsKey(query.configNum())) {
+      }
+      ShardConfig config = config(query.configNum());
+      return config == null ? new Error() : config;
+    }
+
+    if (command instanceof DeltaQuery) {
+      DeltaQuery query = (DeltaQuery) command;
+      Result result = deltaQuery(query.configNum(), query.knownConfigNum());
+      return result == null ? new Error() : result;
+    }
+
+    if (command instanceof Sequence) {
+      openEpoch.add(((Sequence) command).command());
+      return new Sequenced(nextEpochNum());
+    }
+
+    if (command instanceof CloseEpoch) {
+      CloseEpoch close = (CloseEpoch) command;
+      reportEpoch(close.groupId(), close.nextEpoch());
+      if (close.epochNum() != nextEpochNum() || !closable()) {
         return new Error();
-      } else {
-        return configLog.get(query.configNum());
       }
+      epochs.add(new Epoch(nextEpochNum(), configNum, new ArrayList<>(openEpoch)));
+      openEpoch.clear();
+      return new Ok();
+    }
+
+    if (command instanceof EpochQuery) {
+      EpochQuery query = (EpochQuery) command;
+      int from = Math.max(Math.max(query.fromEpoch(), firstEpoch), groupEpochs.getOrDefault(query.groupId(), 0));
+      from = Math.min(from, nextEpochNum());
+      return new Epochs(from, new ArrayList<>(epochs.subList(from - firstEpoch, epochs.size())), nextEpochNum(),
+          closable());
+    }
+
+    if (command instanceof Watch) {
+      Watch watch = (Watch) command;
+      Result result = deltaQuery(watch.configNum(), watch.knownConfigNum());
+      if (result instanceof ConfigDeltas && ((ConfigDeltas) result).deltas().isEmpty()) {
+        return null; // nothing new, the PaxosServer answers once a later command changes that
+      }
+      return result;
     }
 
     throw new IllegalArgumentException();
   }
 
+  private boolean closable() {
+    return configNum >= INITIAL_CONFIG_NUM
+        && (!openEpoch.isEmpty() || epochs.isEmpty() || epochs.get(epochs.size() - 1).configNum() < configNum);
+  }
+
+  private int nextEpochNum() {
+    return firstEpoch + epochs.size();
+  }
+
+  /**
+   * Records how far a group queued the epochs, and drops the ones every group queued. A group that left stops counting
+   * once it queued the first epoch closed after it left. The last closed epoch is kept, for its config.
+   */
+  private void reportEpoch(int groupId, int nextEpoch) {
+    if (groupEpochs.containsKey(groupId)) {
+      groupEpochs.merge(groupId, nextEpoch, Math::max);
+    }
+    if (leftGroupEpochs.containsKey(groupId) && nextEpoch > leftGroupEpochs.get(groupId)) {
+      groupEpochs.remove(groupId);
+      leftGroupEpochs.remove(groupId);
+    }
+    int queued = groupEpochs.values().stream().min(Integer::compare).orElse(nextEpochNum());
+    int drop = Math.min(queued, nextEpochNum() - 1) - firstEpoch;
+    if (drop > 0) {
+      epochs.subList(0, drop).clear();
+      firstEpoch += drop;
+    }
+  }
+
+  /**
+   * @return the deltas from config known to config num, -1 for the latest, or the whole config if those deltas were
+   * dropped, or null if there is no such config
+   */
+  private Result deltaQuery(int num, int known) {
+    int target = num == -1 || num > configNum ? configNum : num;
+    ShardConfig config = config(target);
+
+    if (config == null) {
+      return null;
+    } else if (known < configLog.firstKey()) {
+      return config; // the deltas from the caller's config are gone
+    }
+    List<ConfigDelta> result = new ArrayList<>();
+    for (int n = known + 1; n <= target; n++) {
+      result.add(deltas.get(n));
+    }
+    return new ConfigDeltas(known, result);
+  }
+
   private ShardConfig newConfig() {
-    ShardConfig config = ShardConfig.builder().configNum(++configNum).groupInfo(
-        SerializationUtils.clone(configLog.getOrDefault(configNum - 1, new ShardConfig(INITIAL_CONFIG_NUM - 1)))
-            .groupInfo()).shardToGroupID(new TreeMap<>()).build();
-    configLog.put(configNum, config);
+    ShardConfig config = configLog.getOrDefault(configNum, new ShardConfig(INITIAL_CONFIG_NUM - 1)).copy(configNum + 1);
+    configLog.put(++configNum, config);
+    return config;
+  }
+
+  /**
+   * Records the latest config as a delta from the one before, which is dropped unless it is a checkpoint, and drops
+   * the configs more than CONFIG_HISTORY old.
+   */
+  private void finishConfig() {
+    populateShardToGroupID();
+    ShardConfig previous = configLog.get(configNum - 1);
+    if (previous == null) {
+      return; // the first config
+    }
+    deltas.put(configNum, previous.diff(configLog.get(configNum)));
+    if ((configNum - 1) % CHECKPOINT_INTERVAL != 0) {
+      configLog.remove(configNum - 1);
+    }
+
+    Integer oldest = configLog.floorKey(configNum - CONFIG_HISTORY);
+    if (oldest != null && oldest > configLog.firstKey()) {
+      configLog.headMap(oldest).clear();
+      deltas.keySet().removeIf(n -> n <= oldest);
+    }
+  }
+
+  /**
+   * @return the config, from the checkpoint before it and the deltas since, or null if there is none or it was dropped
+   */
+  private ShardConfig config(int num) {
+    Map.Entry<Integer, ShardConfig> checkpoint = configLog.floorEntry(num);
+    if (num > configNum || checkpoint == null) {
+      return null;
+    }
+    ShardConfig config = checkpoint.getValue();
+    for (int n = checkpoint.getKey() + 1; n <= num; n++) {
+      config = config.apply(deltas.get(n));
+    }
     return config;
   }
 
+  /**
+   * Balances shard counts, moving as few shards as possible. Over-full groups give up their cheapest shards to move.
+   * The freed shards go out in shard order, or heaviest first to the least loaded group if LOAD_AWARE.
+   */
   private void rebalance() {
     ShardConfig config = configLog.get(configNum);
-    int minFill = numShards / replicaGroups.size();
-    int extraFill = numShards % replicaGroups.size();
+    Set<Integer> unusedVals = liveShards(config);
+    int minFill = unusedVals.size() / replicaGroups.size();
+    int extraFill = unusedVals.size() % replicaGroups.size();
 
-    Set<Integer> unusedVals = IntStream.rangeClosed(1, numShards).boxed().collect(Collectors.toSet());
     List<Integer> removed = new ArrayList<>();
 
     // take off extra
@@ -217,8 +739,11 @@ public final class ShardMaster implements Application {
     for (Pair<Set<Address>, Set<Integer>> p : config.groupInfo().values()) {
       Set<Integer> shards = p.getRight();
       unusedVals.removeAll(shards);
+      List<Integer> byMoveCost = new ArrayList<>(shards);
+      byMoveCost.sort(Comparator.comparingLong((Integer s) -> load(s).bytes())
+          .thenComparing(Comparator.reverseOrder()));
       while (shards.size() > minFill + ((extraFill - i) > 0 ? 1 : 0)) {
-        int val = shards.iterator().next();
+        int val = byMoveCost.remove(0);
         shards.remove(val);
         removed.add(val);
       }
@@ -227,16 +752,213 @@ public final class ShardMaster implements Application {
 
     // add set of unused numbers
     removed.addAll(unusedVals);
+    if (LOAD_AWARE) {
+      removed.sort(Comparator.comparingLong((Integer s) -> load(s).requests()).reversed()
+          .thenComparing(Comparator.naturalOrder()));
+    } else {
+      Collections.sort(removed);
+    }
 
     // fill in holes
+    Map<Integer, Integer> targets = new TreeMap<>();
     i = 0;
-    for (Pair<Set<Address>, Set<Integer>> p : config.groupInfo().values()) {
-      Set<Integer> shards = p.getRight();
-      while (shards.size() < minFill + ((extraFill - i) > 0 ? 1 : 0)) {
-        shards.add(removed.remove(0));
-      }
+    for (Map.Entry<Integer, Pair<Set<Address>, Set<Integer>>> e : config.groupInfo().entrySet()) {
+      targets.put(e.getKey(), minFill + ((extraFill - i) > 0 ? 1 : 0));
       i++;
     }
+    for (int shard : removed) {
+      Integer target = null;
+      for (Map.Entry<Integer, Pair<Set<Address>, Set<Integer>>> e : config.groupInfo().entrySet()) {
+        if (e.getValue().getRight().size() < targets.get(e.getKey()) && (target == null || LOAD_AWARE
+            && groupLoad(e.getValue().getRight()) < groupLoad(config.groupInfo().get(target).getRight()))) {
+          target = e.getKey();
+        }
+      }
+      config.groupInfo().get(target).getRight().add(shard);
+    }
+
+    if (LOAD_AWARE) {
+      balanceLoad(config);
+    }
+  }
+
+  /**
+   * Moves shards from the busiest group to the least loaded one while that lowers the load skew by more than the
+   * data it moves costs, see {@link #MOVE_COST_WEIGHT}. Ties go to the lowest group and shard numbers.
+   *
+   * @return whether any shard moved
+   */
+  private boolean balanceLoad(ShardConfig config) {
+    Map<Integer, Pair<Set<Address>, Set<Integer>>> groups = config.groupInfo();
+    long totalBytes = loads.values().stream().mapToLong(ShardLoad::bytes).sum();
+    boolean moved = false;
+    for (int round = 0; round < numShards && groups.size() > 1; round++) {
+      Integer busiest = null, idlest = null;
+      for (Map.Entry<Integer, Pair<Set<Address>, Set<Integer>>> e : groups.entrySet()) {
+        long load = groupLoad(e.getValue().getRight());
+        if (busiest == null || load > groupLoad(groups.get(busiest).getRight())) {
+          busiest = e.getKey();
+        }
+        if (idlest == null || load < groupLoad(groups.get(idlest).getRight())) {
+          idlest = e.getKey();
+        }
+      }
+
+      double skew = loadSkew(groups);
+      Integer best = null;
+      double bestGain = 0;
+      for (int shard : new TreeSet<>(groups.get(busiest).getRight())) {
+        groups.get(busiest).getRight().remove(shard);
+        groups.get(idlest).getRight().add(shard);
+        double gain = skew - loadSkew(groups)
+            - (totalBytes == 0 ? 0 : MOVE_COST_WEIGHT * load(shard).bytes() / totalBytes);
+        groups.get(idlest).getRight().remove(shard);
+        groups.get(busiest).getRight().add(shard);
+        if (gain > bestGain) {
+          best = shard;
+          bestGain = gain;
+        }
+      }
+      if (best == null) {
+        break;
+      }
+      groups.get(busiest).getRight().remove(best);
+      groups.get(idlest).getRight().add(best);
+      moved = true;
+    }
+    return moved;
+  }
+
+  /**
+   * @return the load of the busiest group over the mean, 1 if nothing reported load yet
+   */
+  private double loadSkew(Map<Integer, Pair<Set<Address>, Set<Integer>>> groups) {
+    long max = 0, total = 0;
+    for (Pair<Set<Address>, Set<Integer>> p : groups.values()) {
+      long load = groupLoad(p.getRight());
+      max = Math.max(max, load);
+      total += load;
+    }
+    return total == 0 ? 1 : ((double) max) * groups.size() / total;
+  }
+
+  private long groupLoad(Set<Integer> shards) {
+    long load = 0;
+    for (int shard : shards) {
+      load += load(shard).requests();
+    }
+    return load;
+  }
+
+  private ShardLoad load(int shard) {
+    return loads.getOrDefault(shard, NO_LOAD);
+  }
+
+  private static final ShardLoad NO_LOAD = new ShardLoad(0, 0);
+
+  /**
+   * @return the shards keys map to in the config, 1..numShards unless some were split or merged
+   */
+  private Set<Integer> liveShards(ShardConfig config) {
+    Set<Integer> live = new TreeSet<>();
+    List<Integer> next = IntStream.rangeClosed(1, numShards).boxed().collect(Collectors.toList());
+    while (!next.isEmpty()) {
+      int shard = next.remove(next.size() - 1);
+      if (config.splits().containsKey(shard)) {
+        next.addAll(config.splits().get(shard));
+      } else {
+        live.add(shard);
+      }
+    }
+    return live;
+  }
+
+  private boolean split(int shard) {
+    ShardConfig current = configLog.get(configNum);
+    if (current == null || !current.shardToGroupID().containsKey(shard)) {
+      return false;
+    }
+
+    ShardConfig config = newConfig();
+    List<Integer> halves = Arrays.asList(nextShardNum++, nextShardNum++);
+    config.splits().put(shard, halves);
+    Set<Integer> shards = config.groupInfo().get(current.shardToGroupID().get(shard)).getRight();
+    shards.remove(shard);
+    shards.addAll(halves);
+    finishConfig();
+
+    // until the halves report, assume they split the load and data evenly
+    ShardLoad load = loads.remove(shard);
+    if (load != null) {
+      for (int half : halves) {
+        loads.put(half, new ShardLoad(load.requests() / 2, load.bytes() / 2));
+      }
+    }
+    return true;
+  }
+
+  private boolean merge(int shard) {
+    ShardConfig current = configLog.get(configNum);
+    Integer parent = current == null ? null : current.parentShard(shard);
+    if (parent == null || current.splits().get(parent).size() != 2) {
+      return false;
+    }
+    List<Integer> halves = current.splits().get(parent);
+    Integer group = current.shardToGroupID().get(halves.get(0));
+    if (group == null || !group.equals(current.shardToGroupID().get(halves.get(1)))) {
+      return false; // not split any further, and on the same group
+    }
+
+    ShardConfig config = newConfig();
+    int merged = nextShardNum++;
+    config.splits().put(parent, Collections.singletonList(merged));
+    Set<Integer> shards = config.groupInfo().get(group).getRight();
+    shards.removeAll(halves);
+    shards.add(merged);
+    finishConfig();
+
+    long requests = 0, bytes = 0;
+    for (int half : halves) {
+      ShardLoad load = loads.remove(half);
+      if (load != null) {
+        requests += load.requests();
+        bytes += load.bytes();
+      }
+    }
+    loads.put(merged, new ShardLoad(requests, bytes));
+    return true;
+  }
+
+  /**
+   * Splits the busiest shard if it carries SPLIT_LOAD times the mean group load, or else merges the first pair of
+   * halves that together carry less than MERGE_LOAD times it.
+   *
+   * @return whether a new config was made
+   */
+  private boolean splitOrMergeByLoad(ShardConfig current) {
+    long total = 0;
+    Integer busiest = null;
+    for (int shard : current.shardToGroupID().keySet()) {
+      total += load(shard).requests();
+      if (busiest == null || load(shard).requests() > load(busiest).requests()) {
+        busiest = shard;
+      }
+    }
+    if (total == 0) {
+      return false;
+    }
+    double meanGroupLoad = ((double) total) / current.groupInfo().size();
+    if (load(busiest).requests() > SPLIT_LOAD * meanGroupLoad && current.splitDepth(busiest) < MAX_SPLIT_DEPTH) {
+      return split(busiest);
+    }
+    for (List<Integer> halves : current.splits().values()) {
+      if (halves.size() == 2
+          && load(halves.get(0)).requests() + load(halves.get(1)).requests() < MERGE_LOAD * meanGroupLoad
+          && merge(halves.get(0))) {
+        return true;
+      }
+    }
+    return false;
   }
 
   private void populateShardToGroupID(){
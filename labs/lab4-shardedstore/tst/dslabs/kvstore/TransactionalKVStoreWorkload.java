@@ -256,6 +256,147 @@ public abstract class TransactionalKVStoreWorkload extends KVStoreWorkload {
         return new DifferentKeysInfiniteWorkload(numShards);
     }
 
+    /**
+     * Alternates between a multi-put and a multi-get of the same two keys of the client. The keys are on different
+     * shards with probability crossShardRatio and on one shard otherwise.
+     */
+    private static class CrossShardInfiniteWorkload extends InfiniteWorkload {
+        private final Random rand = new Random();
+        private final int numShards;
+        private final double crossShardRatio;
+
+        private final Map<String, String> data = new HashMap<>();
+        private Set<String> keys;
+
+        CrossShardInfiniteWorkload(int numShards, double crossShardRatio) {
+            this.numShards = numShards;
+            this.crossShardRatio = crossShardRatio;
+        }
+
+        @Override
+        public Pair<Command, Result> nextCommandAndResult(
+                Address clientAddress) {
+            if (keys != null) {
+                Map<String, String> values = new HashMap<>();
+                keys.forEach(k -> values.put(k,
+                        data.getOrDefault(k, MultiGetResult.KEY_NOT_FOUND)));
+                MultiGet get = multiGet(keys);
+                keys = null;
+                return new ImmutablePair<>(get, multiGetResult(values));
+            }
+
+            // keys ending in a shard number go to that shard
+            int shard1 = rand.nextInt(numShards) + 1, shard2 = shard1;
+            if (rand.nextDouble() < crossShardRatio) {
+                shard2 = (shard1 + rand.nextInt(numShards - 1)) % numShards + 1;
+            }
+            keys = Sets.newHashSet(
+                    String.format("key-%s-a-%s", clientAddress, shard1),
+                    String.format("key-%s-b-%s", clientAddress, shard2));
+            Map<String, String> puts = new HashMap<>();
+            keys.forEach(k -> puts.put(k,
+                    RandomStringUtils.random(8, 0, 0, true, true, null, rand)));
+            data.putAll(puts);
+            return new ImmutablePair<>(multiPut(puts), multiPutOk());
+        }
+
+        @Override
+        public boolean hasResults() {
+            return true;
+        }
+
+        @Override
+        public void reset() {
+            data.clear();
+            keys = null;
+        }
+    }
+
+    public static Workload crossShardInfiniteWorkload(int numShards,
+                                                      double crossShardRatio) {
+        return new CrossShardInfiniteWorkload(numShards, crossShardRatio);
+    }
+
+    /**
+     * Swaps two random keys of a small set shared by every client, one key per shard.
+     */
+    private static class HotKeySwapInfiniteWorkload extends InfiniteWorkload {
+        private final Random rand = new Random();
+        private final int numHotKeys;
+
+        HotKeySwapInfiniteWorkload(int numHotKeys) {
+            this.numHotKeys = numHotKeys;
+        }
+
+        @Override
+        public Pair<Command, Result> nextCommandAndResult(
+                Address clientAddress) {
+            int key1 = rand.nextInt(numHotKeys) + 1;
+            int key2 = (key1 + rand.nextInt(numHotKeys - 1)) % numHotKeys + 1;
+            return new ImmutablePair<>(swap("hot-" + key1, "hot-" + key2),
+                    swapOk());
+        }
+
+        @Override
+        public boolean hasResults() {
+            return true;
+        }
+
+        @Override
+        public void reset() {
+        }
+    }
+
+    public static Workload hotKeySwapInfiniteWorkload(int numHotKeys) {
+        return new HotKeySwapInfiniteWorkload(numHotKeys);
+    }
+
+    /**
+     * Multi-gets and multi-puts of two keys on different shards, from one set of keys every client shares. Results
+     * depend on the interleaving, so none are expected.
+     */
+    private static class ReadHeavyInfiniteWorkload extends InfiniteWorkload {
+        private final Random rand = new Random();
+        private final int numShards;
+        private final double readRatio;
+
+        ReadHeavyInfiniteWorkload(int numShards, double readRatio) {
+            this.numShards = numShards;
+            this.readRatio = readRatio;
+        }
+
+        @Override
+        public Pair<Command, Result> nextCommandAndResult(
+                Address clientAddress) {
+            // each pair of keys is always read and written together, so
+            // MULTI_GETS_MATCH holds when reads are consistent
+            int shard1 = rand.nextInt(numShards) + 1;
+            int shard2 = shard1 % numShards + 1;
+            String key1 = "shared-a-" + shard1, key2 = "shared-b-" + shard2;
+            if (rand.nextDouble() < readRatio) {
+                return new ImmutablePair<>(multiGet(key1, key2), null);
+            }
+            String value = RandomStringUtils.random(8, 0, 0, true, true, null,
+                    rand);
+            return new ImmutablePair<>(multiPut(key1, value, key2, value),
+                    null);
+        }
+
+        @Override
+        public boolean hasResults() {
+            return false;
+        }
+
+        @Override
+        public void reset() {
+        }
+    }
+
+    public static Workload readHeavyInfiniteWorkload(int numShards,
+                                                     double readRatio) {
+        return new ReadHeavyInfiniteWorkload(numShards, readRatio);
+    }
+
 
     /* TransactionalKVStore-specific predicates */
     public static final StatePredicate MULTI_GETS_MATCH =
@@ -0,0 +1,116 @@
+package dslabs.paxos;
+
+import com.google.common.collect.Sets;
+import dslabs.atmostonce.AMOApplication;
+import dslabs.atmostonce.AMOCommand;
+import dslabs.atmostonce.AMOResult;
+import dslabs.framework.Address;
+import dslabs.framework.Command;
+import dslabs.framework.testing.junit.DSLabsTestRunner;
+import dslabs.framework.testing.junit.PrettyTestName;
+import dslabs.kvstore.KVStore.Append;
+import dslabs.kvstore.KVStore.Get;
+import dslabs.kvstore.KVStore.Put;
+import dslabs.kvstore.TransactionalKVStore;
+import dslabs.kvstore.TransactionalKVStore.MultiGet;
+import dslabs.kvstore.TransactionalKVStore.MultiPut;
+import dslabs.kvstore.TransactionalKVStore.Swap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+
+import static dslabs.framework.testing.junit.BaseJUnitTest.client;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link ParallelApply} leaves the same store and at-most-once state, and returns the same results, as
+ * executing the same windows one command at a time.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+@RunWith(DSLabsTestRunner.class)
+public class ParallelApplyTest {
+    private static final int NUM_CLIENTS = 8;
+    private static final int NUM_KEYS = 12;
+
+    private final Random random = new Random(42);
+    private final Map<Address, Integer> nums = new HashMap<>();
+
+    private String key() {
+        return "key-" + random.nextInt(NUM_KEYS);
+    }
+
+    private Command command() {
+        switch (random.nextInt(6)) {
+            case 0:
+                return new Get(key());
+            case 1:
+                return new Put(key(), Integer.toString(random.nextInt(100)));
+            case 2:
+                return new Append(key(), Integer.toString(random.nextInt(100)));
+            case 3:
+                return new Swap(key(), key());
+            case 4: {
+                Map<String, String> values = new HashMap<>();
+                for (int i = 0; i < 3; i++) {
+                    values.put(key(), Integer.toString(random.nextInt(100)));
+                }
+                return new MultiPut(values);
+            }
+            default:
+                return new MultiGet(Sets.newHashSet(key(), key(), key()));
+        }
+    }
+
+    /**
+     * A window of commands from several clients, with retries of a client's last command and stale retries of older
+     * ones mixed in, as a Paxos log can hold them.
+     */
+    private List<AMOCommand> window(int size) {
+        List<AMOCommand> window = new ArrayList<>();
+        Map<Address, AMOCommand> last = new HashMap<>();
+        while (window.size() < size) {
+            Address client = client(1 + random.nextInt(NUM_CLIENTS));
+            int r = random.nextInt(10);
+            if (r < 2 && last.containsKey(client)) {
+                window.add(last.get(client));
+            } else if (r < 3 && nums.getOrDefault(client, 0) > 1) {
+                window.add(new AMOCommand(random.nextInt(nums.get(client)), client, command()));
+            } else {
+                int num = nums.merge(client, 1, Integer::sum);
+                AMOCommand c = new AMOCommand(num, client, command());
+                last.put(client, c);
+                window.add(c);
+            }
+        }
+        return window;
+    }
+
+    private void checkWindows(int windows, int windowSize) {
+        AMOApplication<TransactionalKVStore> serial = new AMOApplication<>(new TransactionalKVStore());
+        AMOApplication<TransactionalKVStore> parallel = new AMOApplication<>(new TransactionalKVStore());
+        for (int i = 0; i < windows; i++) {
+            List<AMOCommand> window = window(windowSize);
+            List<AMOResult> expected = ParallelApply.executeSerially(serial, window);
+            assertEquals(expected, ParallelApply.execute(parallel, window, 1));
+            assertEquals(serial, parallel);
+        }
+    }
+
+    @Test(timeout = 10 * 1000)
+    @PrettyTestName("Parallel apply matches serial apply, single-key commands and transactions")
+    public void test01SerialEquivalence() {
+        checkWindows(500, 32);
+    }
+
+    @Test(timeout = 10 * 1000)
+    @PrettyTestName("Parallel apply matches serial apply, small windows with many duplicates")
+    public void test02SmallWindows() {
+        checkWindows(2000, 4);
+    }
+}
@@ -0,0 +1,569 @@
+package dslabs.shardkv;
+
+import dslabs.framework.Address;
+import dslabs.framework.Client;
+import dslabs.framework.Command;
+import dslabs.framework.Result;
+import dslabs.framework.testing.ClientWorker;
+import dslabs.framework.testing.Workload;
+import dslabs.framework.testing.junit.PrettyTestName;
+import dslabs.framework.testing.junit.RunTests;
+import dslabs.kvstore.KVStore;
+import dslabs.kvstore.KVStoreWorkload;
+import dslabs.kvstore.TransactionalKVStoreWorkload;
+import dslabs.shardkv.ShardStoreClient.Batch;
+import dslabs.shardkv.ShardStoreClient.BatchResult;
+import dslabs.shardmaster.ShardMaster.Move;
+import dslabs.shardmaster.ShardMaster.Ok;
+import dslabs.shardmaster.ShardMaster.ShardConfig;
+import dslabs.shardmaster.ShardMaster.Split;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runners.MethodSorters;
+
+import static dslabs.framework.testing.StatePredicate.RESULTS_OK;
+import static dslabs.kvstore.KVStoreWorkload.get;
+import static dslabs.kvstore.KVStoreWorkload.getResult;
+import static dslabs.kvstore.KVStoreWorkload.put;
+import static dslabs.kvstore.KVStoreWorkload.putOk;
+import static dslabs.kvstore.TransactionalKVStoreWorkload.MULTI_GETS_MATCH;
+
+/**
+ * Benchmarks for ShardStoreServer. These print their measurements instead of checking them against a bound.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public final class ShardStoreBenchmarkTest extends ShardStoreBaseTest {
+
+    @Override
+    protected void cleanupTest() {
+        super.cleanupTest();
+        ShardStoreServer.PAXOS_GROUPS = 1;
+        ShardStoreServer.COALESCE_HEARTBEATS = true;
+        ShardStoreServer.SHARD_AVAILABILITY = true;
+        ShardStoreServer.WATCH_CONFIGS = false;
+        ShardStoreServer.SKIP_CONFIGS = true;
+        ShardStoreServer.LOCAL_TXNS = true;
+        ShardStoreServer.SEQUENCED_TXNS = false;
+        ShardStoreServer.SNAPSHOT_READS = false;
+        ShardStoreServer.WRONG_GROUP_REPLIES = true;
+    }
+
+    private int messagesSentToServers(int numServersPerGroup) {
+        int messages = 0;
+        for (Address a : servers(1, numServersPerGroup)) {
+            messages += runState.network().numMessagesSentTo(a);
+        }
+        return messages;
+    }
+
+    /**
+     * Messages per second received by each server of an idle replica group.
+     */
+    private double idleMessageRate(int paxosGroups, boolean coalesce, int millis) throws InterruptedException {
+        int numServersPerGroup = 3;
+        ShardStoreServer.PAXOS_GROUPS = paxosGroups;
+        ShardStoreServer.COALESCE_HEARTBEATS = coalesce;
+
+        setupStates(1, numServersPerGroup, 1, Math.max(paxosGroups, 10));
+        runSettings.waitForClients(false);
+        runState.start(runSettings);
+        joinGroup(1, numServersPerGroup);
+        Thread.sleep(500);
+
+        int start = messagesSentToServers(numServersPerGroup);
+        long startNanos = System.nanoTime();
+        Thread.sleep(millis);
+        int messages = messagesSentToServers(numServersPerGroup) - start;
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        runState.stop();
+        runSettings.resetNetwork();
+        return messages / seconds / numServersPerGroup;
+    }
+
+    /**
+     * Moves a shard of the given number of keys from group 1 to group 2, one server each.
+     *
+     * @return the milliseconds until group 2 installed the shard, and the peak heap growth in bytes meanwhile
+     */
+    private long[] migrateShard(int numKeys) throws InterruptedException {
+        int numShards = 2;
+        setupStates(2, 1, 1, numShards);
+        runSettings.waitForClients(false);
+        runState.start(runSettings);
+        joinGroup(1, 1);
+        joinGroup(2, 1);
+
+        ShardStoreServer from = (ShardStoreServer) runState.server(server(1, 1));
+        ShardStoreServer to = (ShardStoreServer) runState.server(server(2, 1));
+        int shard = 0;
+        while (shard == 0) {
+            Thread.sleep(10);
+            for (int s = 1; s <= numShards; s++) {
+                // the join of group 2 may still be moving one of them away
+                if (from.hasShard(s) && getConfig().shardToGroupID().get(s) == 1) {
+                    shard = s;
+                }
+            }
+        }
+        KVStore data = new KVStore();
+        for (int i = 0; i < numKeys; i++) {
+            data.execute(new KVStore.Put("key-" + (shard + numShards * i), "v"));
+        }
+        from.seedShard(shard, data);
+        data = null;
+
+        long baseline = usedHeap();
+        long start = System.currentTimeMillis();
+        sendCommandAndCheck(configController, new Move(2, shard), new Ok());
+        long peak = baseline;
+        while (!to.hasShard(shard)) {
+            peak = Math.max(peak, Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+            Thread.sleep(1);
+        }
+        long millis = System.currentTimeMillis() - start;
+        runState.stop();
+        return new long[]{millis, peak - baseline};
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+
+    /**
+     * Runs clients against groups 1 and 2 while group 3 joins and group 1 leaves.
+     *
+     * @return the mean over clients of the longest time without a result during the reconfigurations, and the
+     * results finished meanwhile
+     */
+    private long[] reconfigurationStalls(int numClients, int millis) throws InterruptedException {
+        int numServersPerGroup = 3;
+        setupStates(3, numServersPerGroup, 1, 10);
+        runSettings.waitForClients(false);
+        runState.start(runSettings);
+        joinGroup(1, numServersPerGroup);
+        joinGroup(2, numServersPerGroup);
+        for (int i = 1; i <= numClients; i++) {
+            runState.addClientWorker(client(i), KVStoreWorkload.differentKeysInfiniteWorkload, true);
+        }
+        Thread.sleep(1000);
+
+        List<ClientWorker> workers = new ArrayList<>();
+        runState.clientWorkers().forEach(workers::add);
+        int[] lastResults = new int[workers.size()];
+        long[] lastProgress = new long[workers.size()];
+        long[] maxStall = new long[workers.size()];
+        int startResults = 0;
+        for (int i = 0; i < workers.size(); i++) {
+            lastResults[i] = workers.get(i).results().size();
+            lastProgress[i] = System.currentTimeMillis();
+            startResults += lastResults[i];
+        }
+
+        startThread(() -> {
+            try {
+                joinGroup(3, numServersPerGroup);
+                removeGroup(1);
+            } catch (InterruptedException ignored) {
+            }
+        });
+        long end = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(2);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < workers.size(); i++) {
+                int results = workers.get(i).results().size();
+                if (results > lastResults[i]) {
+                    lastResults[i] = results;
+                    lastProgress[i] = now;
+                }
+                maxStall[i] = Math.max(maxStall[i], now - lastProgress[i]);
+            }
+        }
+        shutdownStartedThreads();
+        runState.stop();
+        runSettings.resetNetwork();
+
+        int results = -startResults;
+        for (int i = 0; i < workers.size(); i++) {
+            results += lastResults[i];
+        }
+        return new long[]{(long) Arrays.stream(maxStall).average().orElse(0), results};
+    }
+
+    @Test(timeout = 10 * 1000)
+    @PrettyTestName("Single group, basic workload, four Paxos groups per server")
+    @Category(RunTests.class)
+    public void test01MultiPaxosBasic() throws InterruptedException {
+        ShardStoreServer.PAXOS_GROUPS = 4;
+        int numGroups = 1, numServersPerGroup = 3, numShardMasters = 3, numShards = 10;
+
+        setupStates(numGroups, numServersPerGroup, numShardMasters, numShards);
+        runState.addClientWorker(client(1), KVStoreWorkload.simpleWorkload);
+
+        runState.start(runSettings);
+        joinGroup(1, numServersPerGroup);
+
+        runState.waitFor();
+        runState.stop();
+
+        runSettings.addInvariant(RESULTS_OK);
+    }
+
+    @Test(timeout = 60 * 1000)
+    @PrettyTestName("Idle per-server message rate by Paxos groups per server, separate vs coalesced heartbeats")
+    @Category(RunTests.class)
+    public void test02GroupOverhead() throws InterruptedException {
+        int millis = 2000;
+        for (int paxosGroups : new int[]{1, 10, 100}) {
+            double separate = idleMessageRate(paxosGroups, false, millis);
+            double coalesced = idleMessageRate(paxosGroups, true, millis);
+            System.out.println(String.format(
+                    "%3d Paxos groups: %.0f msgs/s per server separate, %.0f msgs/s per server coalesced",
+                    paxosGroups, separate, coalesced));
+        }
+    }
+
+    @Test(timeout = 300 * 1000)
+    @PrettyTestName("Shard migration time and peak heap growth by shard size, streamed in chunks")
+    @Category(RunTests.class)
+    public void test03ShardMigration() throws InterruptedException {
+        for (int numKeys : new int[]{10_000, 100_000, 1_000_000}) {
+            long[] migration = migrateShard(numKeys);
+            System.out.println(String.format("%,9d keys: migrated in %d ms, peak heap growth %.1f MB", numKeys,
+                    migration[0], migration[1] / 1e6));
+            runSettings.resetNetwork();
+        }
+    }
+
+    @Test(timeout = 60 * 1000)
+    @PrettyTestName("Client-visible unavailability during rebalancing, group-wide vs per-shard blocking")
+    @Category(RunTests.class)
+    public void test04AvailabilityDuringReconfiguration() throws InterruptedException {
+        int millis = 3000;
+        for (boolean perShard : new boolean[]{false, true}) {
+            ShardStoreServer.SHARD_AVAILABILITY = perShard;
+            long[] stalls = reconfigurationStalls(5, millis);
+            System.out.println(String.format("%s blocking: longest stall per client %d ms on average, %d ops",
+                    perShard ? "per-shard" : "group-wide", stalls[0], stalls[1]));
+        }
+    }
+
+    @Test(timeout = 60 * 1000)
+    @PrettyTestName("Splitting a hot shard and moving half of it to another group")
+    @Category(RunTests.class)
+    public void test05HotShardSplit() throws InterruptedException {
+        int numShards = 2, numKeys = 200;
+        setupStates(2, 3, 1, numShards);
+        runState.start(runSettings);
+        joinGroup(1, 3);
+        joinGroup(2, 3);
+
+        Client client = runState.addClient(client(1));
+        int shard = getConfig().groupInfo().get(1).getRight().iterator().next();
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < numKeys; i++) {
+            keys.add("key-" + (shard + numShards * i));
+            sendCommandAndCheck(client, put(keys.get(i), "v" + i), putOk());
+        }
+
+        long start = System.currentTimeMillis();
+        sendCommandAndCheck(configController, new Split(shard), new Ok());
+        List<Integer> halves = getConfig().splits().get(shard);
+        sendCommandAndCheck(configController, new Move(2, halves.get(1)), new Ok());
+        ShardConfig config = getConfig();
+
+        int moved = 0;
+        for (int i = 0; i < numKeys; i++) {
+            sendCommandAndCheck(client, get(keys.get(i)), getResult("v" + i));
+            int leaf = config.leafShard(ShardStoreNode.keyToShard(keys.get(i), numShards), keys.get(i).hashCode());
+            moved += config.shardToGroupID().get(leaf) == 2 ? 1 : 0;
+        }
+        long millis = System.currentTimeMillis() - start;
+        runState.stop();
+        System.out.println(String.format("split shard %d, %d of %d keys moved to group 2, all read back in %d ms",
+                shard, moved, numKeys, millis));
+    }
+
+    /**
+     * Messages per second the shard masters receive with the given number of idle clients.
+     */
+    private double shardMasterLoad(int numClients, int millis) throws InterruptedException {
+        int numShardMasters = 3;
+        setupStates(1, 3, numShardMasters, 10);
+        runSettings.waitForClients(false);
+        runState.start(runSettings);
+        joinGroup(1, 3);
+        for (int i = 1; i <= numClients; i++) {
+            runState.addClient(client(i));
+        }
+        Thread.sleep(500);
+
+        int start = 0;
+        for (int i = 1; i <= numShardMasters; i++) {
+            start += runState.network().numMessagesSentTo(shardMaster(i));
+        }
+        long startNanos = System.nanoTime();
+        Thread.sleep(millis);
+        int messages = -start;
+        for (int i = 1; i <= numShardMasters; i++) {
+            messages += runState.network().numMessagesSentTo(shardMaster(i));
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        runState.stop();
+        runSettings.resetNetwork();
+        return messages / seconds;
+    }
+
+    @Test(timeout = 120 * 1000)
+    @PrettyTestName("Shard master load by client count, polling vs watching for configs")
+    @Category(RunTests.class)
+    public void test06ConfigWatchLoad() throws InterruptedException {
+        for (boolean watch : new boolean[]{false, true}) {
+            ShardStoreServer.WATCH_CONFIGS = watch;
+            for (int numClients : new int[]{10, 100, 500}) {
+                System.out.println(String.format("%s, %3d clients: %.0f messages/s to the shard masters",
+                        watch ? "watching" : "polling", numClients, shardMasterLoad(numClients, 2000)));
+            }
+        }
+    }
+
+    /**
+     * Joins numGroups single-server groups back to back and waits for every server to settle on the last config.
+     *
+     * @return the milliseconds from the first Join until every server has finished reconfiguring to the last config
+     */
+    private long joinConvergence(int numGroups) throws InterruptedException {
+        setupStates(numGroups, 1, 1, 10);
+        runSettings.waitForClients(false);
+        runState.start(runSettings);
+
+        long startNanos = System.nanoTime();
+        for (int g = 1; g <= numGroups; g++) {
+            joinGroup(g, 1);
+        }
+        int latest = getConfig().configNum();
+        for (int g = 1; g <= numGroups; g++) {
+            ShardStoreServer s = (ShardStoreServer) runState.server(server(g, 1));
+            while (s.settledConfigNum() < latest) {
+                Thread.sleep(5);
+            }
+        }
+        long millis = (System.nanoTime() - startNanos) / 1_000_000;
+        runState.stop();
+        runSettings.resetNetwork();
+        return millis;
+    }
+
+    @Test(timeout = 120 * 1000)
+    @PrettyTestName("Time to converge after back-to-back Joins, config by config vs skipping")
+    @Category(RunTests.class)
+    public void test07JoinConvergence() throws InterruptedException {
+        for (boolean skip : new boolean[]{false, true}) {
+            ShardStoreServer.SKIP_CONFIGS = skip;
+            for (int numGroups : new int[]{3, 6, 9}) {
+                System.out.println(String.format("%s, %d joins: converged in %d ms",
+                        skip ? "skipping" : "config by config", numGroups, joinConvergence(numGroups)));
+            }
+        }
+    }
+
+    /**
+     * Runs clients doing two-key transactions against three groups.
+     *
+     * @return transactions finished per second
+     */
+    private double transactionThroughput(double crossShardRatio, int numClients, int millis)
+            throws InterruptedException {
+        return transactionThroughput(
+                TransactionalKVStoreWorkload.crossShardInfiniteWorkload(10, crossShardRatio), numClients, millis);
+    }
+
+    private double transactionThroughput(Workload workload, int numClients, int millis) throws InterruptedException {
+        int numServersPerGroup = 3, numShards = 10;
+        setupStates(3, numServersPerGroup, 1, numShards);
+        runSettings.waitForClients(false);
+        runState.start(runSettings);
+        for (int g = 1; g <= 3; g++) {
+            joinGroup(g, numServersPerGroup);
+        }
+        for (int i = 1; i <= numClients; i++) {
+            runState.addClientWorker(client(i), workload, true);
+        }
+        Thread.sleep(1000);
+
+        List<ClientWorker> workers = new ArrayList<>();
+        runState.clientWorkers().forEach(workers::add);
+        int results = 0;
+        for (ClientWorker worker : workers) {
+            results -= worker.results().size();
+        }
+        long startNanos = System.nanoTime();
+        Thread.sleep(millis);
+        for (ClientWorker worker : workers) {
+            results += worker.results().size();
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        runState.stop();
+        assertRunInvariantsHold();
+        runSettings.resetNetwork();
+        return results / seconds;
+    }
+
+    @Test(timeout = 120 * 1000)
+    @PrettyTestName("Transaction throughput by cross-shard ratio")
+    @Category(RunTests.class)
+    public void test08TransactionThroughput() throws InterruptedException {
+        for (double ratio : new double[]{0, 0.25, 0.5, 1}) {
+            System.out.println(String.format("%3.0f%% cross-shard: %.0f transactions/s", ratio * 100,
+                    transactionThroughput(ratio, 10, 2000)));
+        }
+    }
+
+    @Test(timeout = 120 * 1000)
+    @PrettyTestName("Transaction latency, single-group via two-phase commit vs the local path, and cross-shard")
+    @Category(RunTests.class)
+    public void test09LocalTransactionLatency() throws InterruptedException {
+        for (boolean local : new boolean[]{false, true}) {
+            ShardStoreServer.LOCAL_TXNS = local;
+            System.out.println(String.format("single-shard, %s: %.2f ms per transaction",
+                    local ? "local path" : "two-phase commit", 1000 / transactionThroughput(0, 1, 2000)));
+        }
+        System.out.println(String.format("cross-shard: %.2f ms per transaction", 1000 / transactionThroughput(1, 1, 2000)));
+    }
+
+    @Test(timeout = 120 * 1000)
+    @PrettyTestName("Hot-key Swap throughput, two-phase commit vs sequenced transactions")
+    @Category(RunTests.class)
+    public void test10HotKeySwapContention() throws InterruptedException {
+        for (boolean sequenced : new boolean[]{false, true}) {
+            ShardStoreServer.SEQUENCED_TXNS = sequenced;
+            for (int numClients : new int[]{5, 20}) {
+                System.out.println(String.format("%s, %2d clients on 4 hot keys: %.0f swaps/s",
+                        sequenced ? "sequenced" : "two-phase commit", numClients,
+                        transactionThroughput(TransactionalKVStoreWorkload.hotKeySwapInfiniteWorkload(4), numClients,
+                                2000)));
+            }
+        }
+    }
+
+    @Test(timeout = 120 * 1000)
+    @PrettyTestName("Read-heavy cross-shard transaction throughput, locking vs snapshot reads")
+    @Category(RunTests.class)
+    public void test11SnapshotReadThroughput() throws InterruptedException {
+        runSettings.addInvariant(MULTI_GETS_MATCH);
+        for (boolean snapshot : new boolean[]{false, true}) {
+            ShardStoreServer.SNAPSHOT_READS = snapshot;
+            for (double readRatio : new double[]{0.9, 0.99}) {
+                System.out.println(String.format("%s, %2.0f%% reads: %.0f transactions/s",
+                        snapshot ? "snapshot reads" : "locking reads", readRatio * 100,
+                        transactionThroughput(TransactionalKVStoreWorkload.readHeavyInfiniteWorkload(10, readRatio),
+                                20, 2000)));
+            }
+        }
+    }
+
+    @Test(timeout = 60 * 1000)
+    @PrettyTestName("Latency of a 100-key fetch over three groups, one Get at a time vs one batch")
+    @Category(RunTests.class)
+    public void test12BatchedFetch() throws InterruptedException {
+        int numKeys = 100, rounds = 10;
+        setupStates(3, 3, 1, 10);
+        runState.start(runSettings);
+        for (int g = 1; g <= 3; g++) {
+            joinGroup(g, 3);
+        }
+
+        Client client = runState.addClient(client(1));
+        List<Command> puts = new ArrayList<>(), gets = new ArrayList<>();
+        List<Result> putOks = new ArrayList<>(), getResults = new ArrayList<>();
+        for (int i = 0; i < numKeys; i++) {
+            puts.add(put("key-" + i, "v" + i));
+            putOks.add(putOk());
+            gets.add(get("key-" + i));
+            getResults.add(getResult("v" + i));
+        }
+        sendCommandAndCheck(client, new Batch(puts), new BatchResult(putOks));
+
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < numKeys; i++) {
+                sendCommandAndCheck(client, gets.get(i), getResults.get(i));
+            }
+        }
+        double sequentialMs = (System.nanoTime() - start) / 1e6 / rounds;
+
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            sendCommandAndCheck(client, new Batch(gets), new BatchResult(getResults));
+        }
+        double batchedMs = (System.nanoTime() - start) / 1e6 / rounds;
+        runState.stop();
+        System.out.println(String.format("%d keys: %.1f ms one Get at a time, %.1f ms batched", numKeys, sequentialMs,
+                batchedMs));
+    }
+
+    /**
+     * Gets keys of random shards from one client while shards move back and forth between groups 1 and 2.
+     *
+     * @return the Gets' latencies in microseconds, sorted
+     */
+    private long[] migrationLatencies(int millis) throws InterruptedException {
+        int numShards = 10;
+        setupStates(2, 3, 1, numShards);
+        runState.start(runSettings);
+        joinGroup(1, 3);
+        joinGroup(2, 3);
+
+        Client client = runState.addClient(client(1));
+        for (int i = 1; i <= numShards; i++) {
+            sendCommandAndCheck(client, put("key-" + i, "v" + i), putOk());
+        }
+
+        startThread(() -> {
+            try {
+                for (int i = 0; ; i++) {
+                    int shard = i % numShards + 1;
+                    sendCommandAndCheck(configController,
+                            new Move(getConfig().shardToGroupID().get(shard) == 1 ? 2 : 1, shard), new Ok());
+                    Thread.sleep(50);
+                }
+            } catch (InterruptedException ignored) {
+            }
+        });
+        List<Long> latencies = new ArrayList<>();
+        Random rand = new Random(0);
+        long end = System.currentTimeMillis() + millis;
+        while (System.currentTimeMillis() < end) {
+            int i = rand.nextInt(numShards) + 1;
+            long start = System.nanoTime();
+            sendCommandAndCheck(client, get("key-" + i), getResult("v" + i));
+            latencies.add((System.nanoTime() - start) / 1000);
+        }
+        shutdownStartedThreads();
+        runState.stop();
+        runSettings.resetNetwork();
+        return latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+    }
+
+    @Test(timeout = 60 * 1000)
+    @PrettyTestName("Get latency while shards migrate, dropped vs answered wrong-group requests")
+    @Category(RunTests.class)
+    public void test13MigrationTailLatency() throws InterruptedException {
+        for (boolean replies : new boolean[]{false, true}) {
+            ShardStoreServer.WRONG_GROUP_REPLIES = replies;
+            long[] latencies = migrationLatencies(5000);
+            System.out.println(String.format("%s: %d Gets, p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+                    replies ? "wrong-group replies" : "dropped requests", latencies.length,
+                    latencies[latencies.length / 2] / 1e3, latencies[latencies.length * 99 / 100] / 1e3,
+                    latencies[latencies.length - 1] / 1e3));
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package dslabs.shardmaster;
+
+import dslabs.framework.Address;
+import dslabs.framework.testing.LocalAddress;
+import dslabs.framework.testing.junit.DSLabsTestRunner;
+import dslabs.framework.testing.junit.PrettyTestName;
+import dslabs.shardmaster.ShardMaster.ConfigDelta;
+import dslabs.shardmaster.ShardMaster.ConfigDeltas;
+import dslabs.shardmaster.ShardMaster.DeltaQuery;
+import dslabs.shardmaster.ShardMaster.Join;
+import dslabs.shardmaster.ShardMaster.Move;
+import dslabs.shardmaster.ShardMaster.Leave;
+import dslabs.shardmaster.ShardMaster.Query;
+import dslabs.shardmaster.ShardMaster.Report;
+import dslabs.shardmaster.ShardMaster.ShardConfig;
+import dslabs.shardmaster.ShardMaster.ShardLoad;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.apache.commons.lang3.SerializationUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.After;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Simulated rebalancing, the ShardMaster is driven directly with the reports groups would send. These print their
+ * measurements instead of checking them against a bound.
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+@RunWith(DSLabsTestRunner.class)
+public class ShardMasterBenchmarkTest {
+
+    private static final int NUM_SHARDS = 100;
+    private static final long REQUESTS_PER_ROUND = 100_000;
+
+    @After
+    public void cleanup() {
+        ShardMaster.LOAD_AWARE = false;
+        ShardMaster.SPLIT_SHARDS = false;
+        ShardMaster.CHECKPOINT_INTERVAL = 32;
+        ShardMaster.CONFIG_HISTORY = 1024;
+    }
+
+    private static Set<Address> group(int i) {
+        return IntStream.rangeClosed(3 * i - 2, 3 * i)
+                        .mapToObj(j -> new LocalAddress("server" + j))
+                        .collect(Collectors.toSet());
+    }
+
+    /**
+     * Requests per shard following Zipf's law with exponent 0.99, the ranks shuffled over the shards so hot shards
+     * aren't neighbours. Shard sizes grow with their load.
+     */
+    private static Map<Integer, ShardLoad> zipfianLoads(long seed) {
+        List<Integer> ranks = IntStream.rangeClosed(1, NUM_SHARDS).boxed().collect(Collectors.toList());
+        Collections.shuffle(ranks, new Random(seed));
+        double sum = 0;
+        for (int rank = 1; rank <= NUM_SHARDS; rank++) {
+            sum += 1 / Math.pow(rank, 0.99);
+        }
+        Map<Integer, ShardLoad> loads = new HashMap<>();
+        for (int shard = 1; shard <= NUM_SHARDS; shard++) {
+            long requests = (long) (REQUESTS_PER_ROUND / Math.pow(ranks.get(shard - 1), 0.99) / sum);
+            loads.put(shard, new ShardLoad(requests, 1_000_000 + 100 * requests));
+        }
+        return loads;
+    }
+
+    private static ShardConfig latest(ShardMaster shardMaster) {
+        return (ShardConfig) shardMaster.execute(new Query(-1));
+    }
+
+    /**
+     * @return the peak group load over the mean, and the bytes moved from the first config with every group on
+     */
+    private static double[] simulate(boolean loadAware) {
+        ShardMaster.LOAD_AWARE = loadAware;
+        ShardMaster shardMaster = new ShardMaster(NUM_SHARDS);
+        Map<Integer, ShardLoad> loads = zipfianLoads(42);
+
+        for (int g = 1; g <= 4; g++) {
+            shardMaster.execute(new Join(g, group(g)));
+        }
+
+        double peakSkew = 0;
+        long movedBytes = 0;
+        ShardConfig previous = latest(shardMaster);
+        for (int round = 1; round <= 10; round++) {
+            if (round == 4) {
+                shardMaster.execute(new Join(5, group(5)));
+            } else if (round == 7) {
+                shardMaster.execute(new Leave(2));
+            }
+
+            report(shardMaster, round, loads);
+
+            ShardConfig config = latest(shardMaster);
+            for (int shard = 1; shard <= NUM_SHARDS; shard++) {
+                if (!config.shardToGroupID().get(shard).equals(previous.shardToGroupID().get(shard))) {
+                    movedBytes += loads.get(shard).bytes();
+                }
+            }
+            peakSkew = Math.max(peakSkew, loadSkew(config, loads));
+            previous = config;
+        }
+        return new double[]{peakSkew, movedBytes};
+    }
+
+    /**
+     * Sends every group's report of the given loads for the period, as a group would see them in the latest config.
+     */
+    private static void report(ShardMaster shardMaster, long period, Map<Integer, ShardLoad> loads) {
+        for (Map.Entry<Integer, Pair<Set<Address>, Set<Integer>>> e : latest(shardMaster).groupInfo().entrySet()) {
+            Map<Integer, ShardLoad> report = new HashMap<>();
+            for (int shard : e.getValue().getRight()) {
+                report.put(shard, loads.get(shard));
+            }
+            shardMaster.execute(new Report(e.getKey(), period, report));
+        }
+    }
+
+    private static double loadSkew(ShardConfig config, Map<Integer, ShardLoad> loads) {
+        long max = 0;
+        for (Pair<Set<Address>, Set<Integer>> p : config.groupInfo().values()) {
+            max = Math.max(max, p.getRight().stream().mapToLong(s -> loads.get(s).requests()).sum());
+        }
+        long total = loads.values().stream().mapToLong(ShardLoad::requests).sum();
+        return ((double) max) * config.groupInfo().size() / total;
+    }
+
+    /**
+     * Four groups on ten shards, with half of all requests going to the keys of shard 1.
+     *
+     * @return the group load skew and the number of shards after 20 rounds of reports
+     */
+    private static double[] simulateHotShard(boolean split) {
+        ShardMaster.LOAD_AWARE = true;
+        ShardMaster.SPLIT_SHARDS = split;
+        ShardMaster shardMaster = new ShardMaster(10);
+        for (int g = 1; g <= 4; g++) {
+            shardMaster.execute(new Join(g, group(g)));
+        }
+        for (int round = 1; round <= 20; round++) {
+            report(shardMaster, round, hotShardLoads(latest(shardMaster)));
+        }
+        ShardConfig config = latest(shardMaster);
+        return new double[]{loadSkew(config, hotShardLoads(config)), config.shardToGroupID().size()};
+    }
+
+    /**
+     * Loads of 10,000 keys of 100 bytes over the shards of the config, each key of shard 1 nine times as busy.
+     */
+    private static Map<Integer, ShardLoad> hotShardLoads(ShardConfig config) {
+        Map<Integer, ShardLoad> loads = new HashMap<>();
+        for (int shard : config.shardToGroupID().keySet()) {
+            loads.put(shard, new ShardLoad(0, 0));
+        }
+        for (int i = 0; i < 10_000; i++) {
+            String key = "key" + (char) ('a' + i % 26) + i / 26;
+            int base = Math.floorMod(key.hashCode(), 10) + 1;
+            loads.merge(config.leafShard(base, key.hashCode()), new ShardLoad(base == 1 ? 9 : 1, 100),
+                    (a, b) -> new ShardLoad(a.requests() + b.requests(), a.bytes() + b.bytes()));
+        }
+        return loads;
+    }
+
+    @Test(timeout = 60 * 1000)
+    @PrettyTestName("Peak group load and migrated bytes on a Zipfian workload, count vs load-aware rebalancing")
+    public void test01ZipfianRebalancing() {
+        for (boolean loadAware : new boolean[]{false, true}) {
+            double[] result = simulate(loadAware);
+            System.out.println(String.format("%s: peak group load %.2fx the mean, %.1f MB migrated",
+                    loadAware ? "load-aware" : "count-balanced", result[0], result[1] / 1e6));
+        }
+    }
+
+    @Test(timeout = 60 * 1000)
+    @PrettyTestName("Group load skew with one hot shard, with and without shard splitting")
+    public void test02HotShardSplitting() {
+        for (boolean split : new boolean[]{false, true}) {
+            double[] result = simulateHotShard(split);
+            System.out.println(String.format("%s: group load %.2fx the mean, %.0f shards",
+                    split ? "splitting" : "fixed shards", result[0], result[1]));
+        }
+    }
+
+    /**
+     * Runs 5,000 Moves of 100 shards over 10 groups, checking that configs rebuilt from deltas are the ones queried.
+     *
+     * @return the serialized size of the ShardMaster, of a full Query reply and of a DeltaQuery reply for the next
+     * config, in bytes
+     */
+    private static long[] configLogFootprint() {
+        ShardMaster shardMaster = new ShardMaster(NUM_SHARDS);
+        for (int g = 1; g <= 10; g++) {
+            shardMaster.execute(new Join(g, group(g)));
+        }
+        Random rand = new Random(42);
+        long queryBytes = 0, deltaBytes = 0;
+        int queries = 0;
+        ShardConfig recorded = null;
+        for (int i = 0; i < 5000; i++) {
+            ShardConfig known = latest(shardMaster);
+            if (i == 4500) {
+                recorded = known;
+            }
+            shardMaster.execute(new Move(1 + rand.nextInt(10), 1 + rand.nextInt(NUM_SHARDS)));
+            ShardConfig next = latest(shardMaster);
+            if (next.configNum() == known.configNum()) {
+                continue; // moved to the group that had it
+            }
+
+            ConfigDeltas deltas = (ConfigDeltas) shardMaster.execute(new DeltaQuery(-1, known.configNum()));
+            ShardConfig rebuilt = known;
+            for (ConfigDelta delta : deltas.deltas()) {
+                rebuilt = rebuilt.apply(delta);
+            }
+            assertEquals(next, rebuilt);
+            queryBytes += SerializationUtils.serialize(next).length;
+            deltaBytes += SerializationUtils.serialize(deltas).length;
+            queries++;
+        }
+        assertEquals(recorded, shardMaster.execute(new Query(recorded.configNum())));
+        return new long[]{SerializationUtils.serialize(shardMaster).length, queryBytes / queries, deltaBytes / queries};
+    }
+
+    @Test(timeout = 60 * 1000)
+    @PrettyTestName("ShardMaster state and config reply sizes, every config in full vs deltas with compaction")
+    public void test03ConfigLogFootprint() {
+        for (boolean deltas : new boolean[]{false, true}) {
+            ShardMaster.CHECKPOINT_INTERVAL = deltas ? 32 : 1;
+            ShardMaster.CONFIG_HISTORY = deltas ? 1024 : Integer.MAX_VALUE;
+            long[] bytes = configLogFootprint();
+            System.out.println(String.format("%s: ShardMaster state %.1f KB, full config reply %d bytes, "
+                            + "delta reply %d bytes", deltas ? "deltas" : "full configs", bytes[0] / 1e3, bytes[1],
+                    bytes[2]));
+        }
+    }
+}